@@ -0,0 +1,97 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import ove.x0ff5e7db.util.binary.Codec;
+
+/**
+ * Benchmark support - component contexts, scratch directories, and request frames.
+ *
+ * @author alphazero
+ */
+final class Benches {
+	private Benches() {}
+
+	/** @return a root context with the given property overrides - faults are rethrown */
+	static Servant.Context newContext(final Properties props) {
+		return new Servant.Context() {
+			final Map<String, Object> map = new HashMap<String, Object>();
+			@Override final
+			public void onError(Servant.Fault f) {
+				throw new RuntimeException(f.toString(), f.t);
+			}
+			@Override final
+			public String getProperty(Servant.Property prop) {
+				return props.getProperty(prop.key(), prop.defval());
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V bind(String k, V v) {
+				return (V) map.put(k, v);
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V get(String k, Class<V> vc) {
+				return (V) map.get(k);
+			}
+		};
+	}
+
+	/** @return a new empty temp directory */
+	static File newTempDir(String prefix) throws IOException {
+		final File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdirs())
+			throw new IOException("failed to create temp dir " + dir);
+		return dir;
+	}
+
+	/** deletes the file, or the directory and its content */
+	static void delete(File f) {
+		final File[] files = f.listFiles();
+		if(files != null) {
+			for(File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	/** @return the request frame, ready to write (or decode) */
+	static ByteBuffer frame(Protocol.Op op, long reqid, byte[] key, long offset, byte[] data) {
+		final boolean append = op == Protocol.Op.APPEND;
+		final int paylen = Protocol.KEYLEN_BYTES + key.length + (append ? Codec.LONG_BYTES : 0) + data.length;
+		final ByteBuffer b = ByteBuffer.allocate(Protocol.HEADER_BYTES + paylen);
+		b.putInt(paylen).put(op.code).put((byte)0).putShort((short)0).putLong(reqid);
+		b.putShort((short) key.length).put(key);
+		if(append) b.putLong(offset);
+		b.put(data);
+		b.flip();
+		return b;
+	}
+}
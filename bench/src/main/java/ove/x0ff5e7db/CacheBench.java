@@ -0,0 +1,119 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BlockCache} read hits, misses and loads.  Cache state is shared, so
+ * running with threads (<code>-t</code>) measures shard contention.
+ *
+ * @author alphazero
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBench {
+	// ------------------------------------------------------------------------
+	// parameters
+	// ------------------------------------------------------------------------
+	/** cache block size in bytes */
+	@Param({"512", "4096"})
+	public int size;
+
+	/** number of distinct cached blocks read - a power of 2 */
+	@Param({"1024"})
+	public int blocks;
+
+	// ------------------------------------------------------------------------
+	// state
+	// ------------------------------------------------------------------------
+	private BlockCache cache;
+	private ByteBuffer block;
+	private final BlockCache.Reader<ByteBuffer> reader = new BlockCache.Reader<ByteBuffer>() {
+		@Override final
+		public ByteBuffer read(ByteBuffer arena, int base, int pos, int valid) {
+			return arena.get(base + pos) == 0 ? null : arena;
+		}
+	};
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		final Random rand = new Random();
+		long next(int mask) { return rand.nextInt() & mask; }
+	}
+
+	@Setup
+	public void setup() throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_CACHE_BLOCK_SIZE.key(), String.valueOf(size));
+		props.setProperty(Servant.Property.DB_CACHE_SIZE.key(), String.valueOf((long) size * blocks * 2));
+		cache = new BlockCache();
+		cache.setContext(Benches.newContext(props));
+		cache.initialize(BlockCache.class);
+
+		final byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		block = ByteBuffer.wrap(b);
+		for(int i=0; i<blocks; i++)
+			cache.load(i, block);
+	}
+
+	// ------------------------------------------------------------------------
+	// benchmarks
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public ByteBuffer readHit(Cursor cursor) {
+		return cache.read(cursor.next(blocks - 1), 0, reader);
+	}
+
+	@Benchmark
+	public ByteBuffer readMiss(Cursor cursor) {
+		return cache.read(blocks + cursor.next(blocks - 1), 0, reader);
+	}
+
+	/** refresh of a cached block */
+	@Benchmark
+	public BlockCache load(Cursor cursor) {
+		cache.load(cursor.next(blocks - 1), block);
+		return cache;
+	}
+}
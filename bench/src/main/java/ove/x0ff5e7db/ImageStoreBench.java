@@ -0,0 +1,165 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ImageStore} request service - GET via the index and, optionally, the
+ * block cache, and PUT.
+ * <p>
+ * The image is append only, so PUT is measured in fixed size batches to bound
+ * the disk used.  Neither includes the WAL - durable writes are bound by the
+ * group commit fsync, and are better measured end to end over the network.
+ *
+ * @author alphazero
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageStoreBench {
+	// ------------------------------------------------------------------------
+	// parameters
+	// ------------------------------------------------------------------------
+	/** value size in bytes */
+	@Param({"64", "4096"})
+	public int size;
+
+	/** read via block cache */
+	@Param({"true", "false"})
+	public boolean cached;
+
+	static final int KEYS = 1024;
+	static final int PUT_BATCH = 10000;
+
+	// ------------------------------------------------------------------------
+	// state
+	// ------------------------------------------------------------------------
+	private File root;
+	private ImageStore store;
+	private final Protocol.Request[] gets = new Protocol.Request[KEYS];
+	private final Protocol.Request[] puts = new Protocol.Request[KEYS];
+	private final Random rand = new Random();
+	private final Responder responder = new Responder();
+
+	/** retains the last reply */
+	static final class Responder implements Protocol.Responder {
+		Protocol.Status status;
+		ByteBuffer body;
+		long v;
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, ByteBuffer body) {
+			this.status = status;
+			this.body = body;
+		}
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, long v) {
+			this.status = status;
+			this.v = v;
+		}
+		@Override final
+		public void replyPooled(Protocol.Op op, long reqid, Protocol.Status status, BufferPool.Buffer body) {
+			this.status = status;
+			this.v = body.buf.remaining();
+			body.release();
+		}
+	}
+
+	@Setup
+	public void setup() throws Throwable {
+		root = Benches.newTempDir("0ff5e7db-bench");
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), root.getAbsolutePath());
+		final Servant.Context context = Benches.newContext(props);
+		if(cached) {
+			final BlockCache cache = new BlockCache();
+			cache.setContext(context);
+			cache.initialize(BlockCache.class);
+			context.bind(Servant.CtxBinding.block_cache.id(), cache);
+		}
+		store = new ImageStore();
+		store.setContext(context);
+		store.initialize(ImageStore.class);
+
+		final byte[] value = new byte[size];
+		new Random(size).nextBytes(value);
+		for(int i=0; i<KEYS; i++) {
+			final byte[] key = String.format("bench-key-%06d", i).getBytes();
+			puts[i] = decode(Benches.frame(Protocol.Op.PUT, i, key, 0, value));
+			gets[i] = decode(Benches.frame(Protocol.Op.GET, i, key, 0, new byte[0]));
+			store.serve(puts[i], responder);
+		}
+	}
+	private static Protocol.Request decode(ByteBuffer frame) {
+		final Protocol.Request req = new Protocol.Request();
+		if(req.decode(frame, 0, frame.limit()) != Protocol.Status.OK)
+			throw new IllegalStateException("bad frame");
+		return req;
+	}
+
+	@TearDown
+	public void teardown() {
+		Benches.delete(root);
+	}
+
+	// ------------------------------------------------------------------------
+	// benchmarks
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public ByteBuffer get() {
+		store.serve(gets[rand.nextInt(KEYS)], responder);
+		return responder.body;
+	}
+
+	/** score is per batch of {@link #PUT_BATCH} requests */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 5, batchSize = 1)
+	public long put() {
+		for(int i=0; i<PUT_BATCH; i++)
+			store.serve(puts[i & (KEYS - 1)], responder);
+		return responder.v;
+	}
+}
@@ -0,0 +1,407 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ove.x0ff5e7db.util.Histogram;
+import ove.x0ff5e7db.util.binary.Codec;
+
+/**
+ * End to end load generator.  Drives <code>-conns</code> connections, each with
+ * <code>-depth</code> pipelined requests in flight, with a <code>-reads</code>
+ * fraction of GETs and otherwise PUTs over <code>-keys</code> keys of
+ * <code>-size</code> byte values.  Reports ops/sec and p50/p99/p999 latency
+ * per op.
+ * <p>
+ * The server is either already running (<code>-server none</code>), started in
+ * this process (<code>inproc</code>), or started as a child JVM (<code>spawn</code>)
+ * on this classpath.  Started servers use a scratch image root, deleted on exit.
+ * <pre>
+ * java -cp bench/target/benchmarks.jar ove.x0ff5e7db.LoadGenerator -server spawn -conns 8 -depth 16 -reads 0.9
+ * </pre>
+ * Latency of a request is measured from the write of its batch to the read of
+ * its response, so includes the wait behind the requests pipelined before it.
+ *
+ * @author alphazero
+ */
+public class LoadGenerator {
+	// ------------------------------------------------------------------------
+	// options
+	// ------------------------------------------------------------------------
+	enum Option {
+		server ("none", "none | inproc | spawn"),
+		conf ("", "base server configuration file for inproc and spawn"),
+		host ("localhost", "server host"),
+		port ("7727", "server port"),
+		conns ("4", "connections"),
+		depth ("1", "pipelined requests per connection"),
+		reads ("0.9", "fraction of requests that are GETs - the rest are PUTs"),
+		keys ("10000", "number of distinct keys"),
+		size ("64", "value size in bytes"),
+		warmup ("2", "warmup seconds"),
+		duration ("10", "measured seconds");
+		final String defval;
+		final String desc;
+		Option(String defval, String desc) {
+			this.defval = defval;
+			this.desc = desc;
+		}
+	}
+
+	private static Map<Option, String> parseArgs(String[] args) throws IllegalArgumentException {
+		final Map<Option, String> opts = new HashMap<Option, String>();
+		for(Option opt : Option.values())
+			opts.put(opt, opt.defval);
+		for(int i=0; i<args.length; i+=2) {
+			if(!args[i].startsWith("-") || i + 1 == args.length)
+				throw new IllegalArgumentException(args[i]);
+			opts.put(Option.valueOf(args[i].substring(1)), args[i + 1]);
+		}
+		return opts;
+	}
+
+	private static void usage() {
+		System.err.println("usage: LoadGenerator [-option value]*");
+		for(Option opt : Option.values())
+			System.err.format("  -%-9s %s (default: %s)\n", opt.name(), opt.desc, opt.defval);
+	}
+
+	// ------------------------------------------------------------------------
+	// main
+	// ------------------------------------------------------------------------
+	public static void main(String[] args) throws Exception {
+		Map<Option, String> opts = null;
+		try {
+			opts = parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			usage();
+			System.exit(-1);
+		}
+		final String host = opts.get(Option.host);
+		final int port = Integer.parseInt(opts.get(Option.port));
+		final int conns = Integer.parseInt(opts.get(Option.conns));
+		final int depth = Integer.parseInt(opts.get(Option.depth));
+		final double reads = Double.parseDouble(opts.get(Option.reads));
+		final int size = Integer.parseInt(opts.get(Option.size));
+		final int warmup = Integer.parseInt(opts.get(Option.warmup));
+		final int duration = Integer.parseInt(opts.get(Option.duration));
+		final byte[][] keys = new byte[Integer.parseInt(opts.get(Option.keys))][];
+		for(int i=0; i<keys.length; i++)
+			keys[i] = String.format("key-%08d", i).getBytes();
+
+		final String mode = opts.get(Option.server);
+		File root = null;
+		Process child = null;
+		if(!mode.equals("none")) {
+			root = Benches.newTempDir("0ff5e7db-load");
+			final File conf = writeConf(opts.get(Option.conf), root, port);
+			if(mode.equals("inproc"))
+				startServant(conf);
+			else if(mode.equals("spawn"))
+				child = spawnServant(conf, new File(root, "server.log"));
+			else {
+				usage();
+				System.exit(-1);
+			}
+		}
+		int status = 0;
+		try {
+			awaitServer(host, port, 10000);
+			final Load load = new Load(host, port, conns, depth, reads, keys, size);
+			System.out.format("0x0FF5E7DB load - server:%s conns:%d depth:%d reads:%.2f keys:%d size:%d - warmup %ds - measure %ds\n",
+					mode, conns, depth, reads, keys.length, size, warmup, duration);
+			load.run(warmup, duration);
+			load.report(System.out, duration);
+			status = load.errors.get() == 0 ? 0 : 1;
+		} finally {
+			if(child != null) {
+				child.destroy();
+				child.waitFor();
+			}
+			if(root != null)
+				Benches.delete(root);
+		}
+		System.exit(status);
+	}
+
+	// ------------------------------------------------------------------------
+	// server
+	// ------------------------------------------------------------------------
+	/** @return server configuration with port and image root set, per base (if any) */
+	private static File writeConf(String base, File root, int port) throws IOException {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.LOG_LEVEL.key(), "WARNING");
+		if(!base.isEmpty()) {
+			final InputStream in = new FileInputStream(base);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		props.setProperty(Servant.Property.DB_SERVER_PORT.key(), String.valueOf(port));
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), new File(root, "image").getAbsolutePath());
+		final File conf = new File(root, "server.conf");
+		final OutputStream out = new FileOutputStream(conf);
+		try {
+			props.store(out, "LoadGenerator");
+		} finally {
+			out.close();
+		}
+		return conf;
+	}
+
+	private static void startServant(File conf) throws Exception {
+		final Servant.Configuration config = Servant.Configuration.Load(conf.getAbsolutePath());
+		final Servant.Context context = new Servant.Context() {
+			final Map<String, Object> map = new HashMap<String, Object>();
+			@Override final
+			public void onError(Servant.Fault f) {
+				System.err.format("server fault: %s\n", f);
+				System.exit(-2);
+			}
+			@Override final
+			public String getProperty(Servant.Property prop) {
+				return config.get(prop);
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V bind(String k, V v) {
+				return (V) map.put(k, v);
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V get(String k, Class<V> vc) {
+				return (V) map.get(k);
+			}
+		};
+		final Thread t = new Thread(new Servant(context), "0ff5e7db-server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static Process spawnServant(File conf, File logfile) throws IOException {
+		final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+		final ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Main.class.getName(), "-conf", conf.getAbsolutePath());
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(logfile);
+		return pb.start();
+	}
+
+	private static void awaitServer(String host, int port, long timeout) throws Exception {
+		final long t0 = System.currentTimeMillis();
+		for(;;) {
+			try {
+				SocketChannel.open(new InetSocketAddress(host, port)).close();
+				return;
+			} catch (IOException e) {
+				if(System.currentTimeMillis() - t0 > timeout)
+					throw new IOException(String.format("server at %s:%d not available", host, port), e);
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	// ========================================================================
+	// INNER TYPES
+	// ========================================================================
+
+	// ------------------------------------------------------------------------
+	// LoadGenerator.Load
+	// ------------------------------------------------------------------------
+	/** the run - preload, warmup, measure - and its results */
+	static final class Load {
+		final String host;
+		final int port;
+		final int depth;
+		final double reads;
+		final byte[][] keys;
+		final byte[] value;
+		final Connection[] conns;
+		final AtomicLong errors = new AtomicLong();
+
+		/** 0: warmup, 1: measure, 2: stop */
+		volatile int phase;
+
+		Load(String host, int port, int nconns, int depth, double reads, byte[][] keys, int size) {
+			this.host = host;
+			this.port = port;
+			this.depth = depth;
+			this.reads = reads;
+			this.keys = keys;
+			this.value = new byte[size];
+			new Random(size).nextBytes(value);
+			this.conns = new Connection[nconns];
+		}
+
+		final void run(int warmup, int duration) throws Exception {
+			// preload all keys so GETs hit
+			final Connection preload = new Connection(this, -1);
+			preload.preload();
+			preload.close();
+
+			final Thread[] threads = new Thread[conns.length];
+			for(int i=0; i<conns.length; i++) {
+				conns[i] = new Connection(this, i);
+				threads[i] = new Thread(conns[i], "0ff5e7db-load-" + i);
+				threads[i].start();
+			}
+			Thread.sleep(warmup * 1000L);
+			phase = 1;
+			Thread.sleep(duration * 1000L);
+			phase = 2;
+			for(Thread t : threads)
+				t.join();
+		}
+
+		final void report(java.io.PrintStream out, int duration) {
+			final Histogram gets = new Histogram();
+			final Histogram puts = new Histogram();
+			for(Connection c : conns) {
+				gets.add(c.gets);
+				puts.add(c.puts);
+			}
+			final Histogram all = new Histogram().add(gets).add(puts);
+			final long usec = 1000;
+			out.format("GET %10.0f ops/s - %s usec\n", (double) gets.count() / duration, gets.summary(usec));
+			out.format("PUT %10.0f ops/s - %s usec\n", (double) puts.count() / duration, puts.summary(usec));
+			out.format("ALL %10.0f ops/s - %s usec\n", (double) all.count() / duration, all.summary(usec));
+			out.format("errors: %d\n", errors.get());
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// LoadGenerator.Connection
+	// ------------------------------------------------------------------------
+	/** a client connection, run on its own thread */
+	static final class Connection implements Runnable {
+		final Load load;
+		final SocketChannel chan;
+		final Random rand;
+		final ByteBuffer out;
+		final ByteBuffer in;
+		final Histogram gets = new Histogram();
+		final Histogram puts = new Histogram();
+		/** per pipelined request - by reqid - op is GET */
+		final boolean[] isget;
+		long reqid;
+
+		Connection(Load load, int id) throws IOException {
+			this.load = load;
+			this.rand = new Random(id);
+			this.isget = new boolean[load.depth];
+			final int maxkey = load.keys[load.keys.length - 1].length;
+			out = ByteBuffer.allocateDirect(load.depth * (Protocol.HEADER_BYTES + Protocol.KEYLEN_BYTES + maxkey + load.value.length));
+			in = ByteBuffer.allocateDirect(load.depth * (Protocol.HEADER_BYTES + Math.max(load.value.length, Codec.LONG_BYTES)));
+			chan = SocketChannel.open(new InetSocketAddress(load.host, load.port));
+			chan.socket().setTcpNoDelay(true);
+		}
+
+		final void close() throws IOException {
+			chan.close();
+		}
+
+		final void preload() throws IOException {
+			for(int i=0; i<load.keys.length; ) {
+				out.clear();
+				final long base = reqid;
+				int n = 0;
+				for(; n<load.depth && i<load.keys.length; n++, i++) {
+					isget[n] = false;
+					encode(Protocol.Op.PUT, load.keys[i]);
+				}
+				roundtrip(base, n, 0, false);
+			}
+		}
+
+		@Override final
+		public void run() {
+			try {
+				while(load.phase < 2) {
+					out.clear();
+					final long base = reqid;
+					for(int n=0; n<load.depth; n++) {
+						isget[n] = rand.nextDouble() < load.reads;
+						encode(isget[n] ? Protocol.Op.GET : Protocol.Op.PUT, load.keys[rand.nextInt(load.keys.length)]);
+					}
+					roundtrip(base, load.depth, System.nanoTime(), load.phase == 1);
+				}
+			} catch (Exception e) {
+				System.err.format("connection %s faulted - %s\n", Thread.currentThread().getName(), e);
+				load.errors.incrementAndGet();
+			} finally {
+				try { close(); } catch (IOException ignore) { }
+			}
+		}
+
+		private final void encode(Protocol.Op op, byte[] key) {
+			final boolean put = op == Protocol.Op.PUT;
+			final int paylen = Protocol.KEYLEN_BYTES + key.length + (put ? load.value.length : 0);
+			out.putInt(paylen).put(op.code).put((byte) 0).putShort((short) 0).putLong(reqid++);
+			out.putShort((short) key.length).put(key);
+			if(put)
+				out.put(load.value);
+		}
+
+		/** writes the n requests from reqid base and reads their responses, which may be out of order */
+		private final void roundtrip(long base, int n, long t0, boolean record) throws IOException {
+			out.flip();
+			while(out.hasRemaining())
+				chan.write(out);
+			in.clear();
+			for(int i=0, pos=0; i<n; i++) {
+				fill(pos + Protocol.HEADER_BYTES);
+				final int paylen = Protocol.Frames.payloadLength(in, pos);
+				final int slot = (int) (Codec.Binary.BigEndian.readLong(in, pos + Protocol.REQID_OFF) - base);
+				if(in.get(pos + Protocol.STATUS_OFF) != Protocol.Status.OK.code || slot < 0 || slot >= n)
+					load.errors.incrementAndGet();
+				pos += Protocol.HEADER_BYTES + paylen;
+				fill(pos);
+				if(record && slot >= 0 && slot < n)
+					(isget[slot] ? gets : puts).record(System.nanoTime() - t0);
+			}
+		}
+		/** reads until in's position is at least limit */
+		private final void fill(int limit) throws IOException {
+			while(in.position() < limit) {
+				if(chan.read(in) < 0)
+					throw new EOFException();
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback round trips through the {@link NetworkInterface} selector loop to the
+ * {@link ImageStore}.  Each invocation writes <code>depth</code> pipelined GET
+ * requests and reads all of their responses, so the score is per batch of depth
+ * requests.
+ * <p>
+ * The acceptor and reactors run on daemon threads and are stopped by closing
+ * their selectors.
+ *
+ * @author alphazero
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBench {
+	// ------------------------------------------------------------------------
+	// parameters
+	// ------------------------------------------------------------------------
+	/** value size in bytes */
+	@Param({"64", "4096"})
+	public int size;
+
+	/** pipelined requests per invocation */
+	@Param({"1", "16"})
+	public int depth;
+
+	// ------------------------------------------------------------------------
+	// state
+	// ------------------------------------------------------------------------
+	private File root;
+	private Servant.Context context;
+	private NetworkInterface netcomp;
+	private SocketChannel client;
+	private ByteBuffer requests;
+	private ByteBuffer responses;
+
+	@Setup
+	public void setup() throws Throwable {
+		root = Benches.newTempDir("0ff5e7db-bench");
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), root.getAbsolutePath());
+		props.setProperty(Servant.Property.DB_SERVER_PORT.key(), "0");
+		props.setProperty(Servant.Property.DB_NET_REACTORS.key(), "1");
+		context = Benches.newContext(props);
+
+		final ImageStore store = new ImageStore();
+		store.setContext(context);
+		store.initialize(ImageStore.class);
+		context.bind(Servant.CtxBinding.protocol_service.id(), store);
+
+		netcomp = new NetworkInterface(context);
+		netcomp.initialize(NetworkInterface.class);
+		for(NetworkInterface.Reactor reactor : netcomp.reactors())
+			start(reactor, "0ff5e7db-bench-reactor");
+		start(netcomp, "0ff5e7db-bench-acceptor");
+
+		final ServerSocketChannel ssch = context.get(NetworkInterface.CtxBinding.server_socket_chan.id(), ServerSocketChannel.class);
+		client = SocketChannel.open(new InetSocketAddress("localhost", ssch.socket().getLocalPort()));
+		client.socket().setTcpNoDelay(true);
+
+		final byte[] key = "bench-key".getBytes();
+		final byte[] value = new byte[size];
+		new Random(size).nextBytes(value);
+		requests = Benches.frame(Protocol.Op.PUT, 0, key, 0, value);
+		responses = ByteBuffer.allocateDirect(depth * (Protocol.HEADER_BYTES + size));
+		roundtrip(1);
+
+		final ByteBuffer get = Benches.frame(Protocol.Op.GET, 0, key, 0, new byte[0]);
+		requests = ByteBuffer.allocateDirect(depth * get.remaining());
+		for(int i=0; i<depth; i++)
+			requests.put(get.duplicate());
+		requests.flip();
+	}
+	private static void start(Runnable r, String name) {
+		final Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@TearDown
+	public void teardown() throws IOException {
+		client.close();
+		context.get(NetworkInterface.CtxBinding.server_socket_chan.id(), ServerSocketChannel.class).close();
+		context.get(NetworkInterface.CtxBinding.ssch_accept_selector.id(), Selector.class).close();
+		for(NetworkInterface.Reactor reactor : netcomp.reactors())
+			reactor.selector.close();
+		Benches.delete(root);
+	}
+
+	/** writes the requests and reads n responses */
+	private ByteBuffer roundtrip(int n) throws IOException {
+		requests.rewind();
+		while(requests.hasRemaining())
+			client.write(requests);
+		responses.clear();
+		for(int i=0, pos=0; i<n; i++) {
+			read(pos + Protocol.HEADER_BYTES);
+			final int paylen = Protocol.Frames.payloadLength(responses, pos);
+			if(responses.get(pos + Protocol.STATUS_OFF) != Protocol.Status.OK.code)
+				throw new IllegalStateException("response status " + responses.get(pos + Protocol.STATUS_OFF));
+			pos += Protocol.HEADER_BYTES + paylen;
+			read(pos);
+		}
+		return responses;
+	}
+	/** reads until the responses buffer position is at least limit */
+	private void read(int limit) throws IOException {
+		while(responses.position() < limit) {
+			if(client.read(responses) < 0)
+				throw new EOFException();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// benchmarks
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public ByteBuffer get() throws IOException {
+		return roundtrip(depth);
+	}
+}
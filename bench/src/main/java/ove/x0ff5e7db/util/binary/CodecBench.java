@@ -0,0 +1,151 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util.binary;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link Codec.Binary} int64 encode/decode - per element vs. bulk, over heap
+ * arrays and direct buffers - and {@link Codec.VarInt} for reference.
+ *
+ * @author alphazero
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+	// ------------------------------------------------------------------------
+	// parameters
+	// ------------------------------------------------------------------------
+	/** encoded buffer size in bytes */
+	@Param({"64", "512", "4096"})
+	public int size;
+
+	// ------------------------------------------------------------------------
+	// state
+	// ------------------------------------------------------------------------
+	private static final Codec.Binary codec = Codec.Binary.BigEndian;
+	private long[] values;
+	private byte[] array;
+	private ByteBuffer direct;
+	private byte[] varints;
+
+	@Setup
+	public void setup() {
+		final int n = size / Codec.LONG_BYTES;
+		final Random rand = new Random(size);
+		values = new long[n];
+		for(int i=0; i<n; i++)
+			values[i] = rand.nextLong() >>> rand.nextInt(Long.SIZE);
+		array = new byte[size];
+		direct = ByteBuffer.allocateDirect(size);
+		codec.writeLongs(values, 0, n, array, 0);
+		codec.writeLongs(values, 0, n, direct, 0);
+		varints = new byte[n * Codec.VarInt.MAX_BYTES];
+	}
+
+	// ------------------------------------------------------------------------
+	// byte[]
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public byte[] writeLongArray() {
+		for(int i=0, off=0; i<values.length; i++, off+=Codec.LONG_BYTES)
+			codec.writeLong(values[i], array, off);
+		return array;
+	}
+
+	@Benchmark
+	public byte[] writeLongsArray() {
+		codec.writeLongs(values, 0, values.length, array, 0);
+		return array;
+	}
+
+	@Benchmark
+	public void readLongArray(Blackhole bh) {
+		for(int off=0; off<size; off+=Codec.LONG_BYTES)
+			bh.consume(codec.readLong(array, off));
+	}
+
+	@Benchmark
+	public long[] readLongsArray() {
+		codec.readLongs(array, 0, values, 0, values.length);
+		return values;
+	}
+
+	// ------------------------------------------------------------------------
+	// direct ByteBuffer
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public ByteBuffer writeLongDirect() {
+		for(int i=0, off=0; i<values.length; i++, off+=Codec.LONG_BYTES)
+			codec.writeLong(values[i], direct, off);
+		return direct;
+	}
+
+	@Benchmark
+	public ByteBuffer writeLongsDirect() {
+		codec.writeLongs(values, 0, values.length, direct, 0);
+		return direct;
+	}
+
+	@Benchmark
+	public void readLongDirect(Blackhole bh) {
+		for(int off=0; off<size; off+=Codec.LONG_BYTES)
+			bh.consume(codec.readLong(direct, off));
+	}
+
+	@Benchmark
+	public long[] readLongsDirect() {
+		codec.readLongs(direct, 0, values, 0, values.length);
+		return values;
+	}
+
+	// ------------------------------------------------------------------------
+	// varint
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public int writeVarInts() {
+		int off = 0;
+		for(int i=0; i<values.length; i++)
+			off += Codec.VarInt.writeLong(values[i], varints, off);
+		return off;
+	}
+}
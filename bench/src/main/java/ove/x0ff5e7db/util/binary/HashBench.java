@@ -0,0 +1,109 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util.binary;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Hash.Provider} throughput, one shot and streamed, over heap arrays
+ * and direct buffers.
+ * <p>
+ * Supersedes the timing loops formerly in TestHash.
+ *
+ * @author alphazero
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBench {
+	// ------------------------------------------------------------------------
+	// parameters
+	// ------------------------------------------------------------------------
+	@Param({"MBInt32", "MBUint32", "Murmur3_32", "CRC32C", "XXH64", "WyH64"})
+	public String provider;
+
+	/** hashed buffer size in bytes */
+	@Param({"8", "64", "512", "4096"})
+	public int size;
+
+	// ------------------------------------------------------------------------
+	// state
+	// ------------------------------------------------------------------------
+	private Hash hash;
+	private Hash.Stream stream;
+	private byte[] array;
+	private ByteBuffer direct;
+
+	@Setup
+	public void setup() {
+		hash = Hash.Provider.valueOf(provider).provider;
+		stream = hash.stream();
+		array = new byte[size];
+		new Random(size).nextBytes(array);
+		direct = ByteBuffer.allocateDirect(size);
+		direct.put(array).flip();
+	}
+
+	// ------------------------------------------------------------------------
+	// benchmarks
+	// ------------------------------------------------------------------------
+	@Benchmark
+	public int hashArray() {
+		return hash.hash(array);
+	}
+
+	@Benchmark
+	public long hash64Array() {
+		return hash.hash64(array);
+	}
+
+	@Benchmark
+	public long hash64Direct() {
+		return hash.hash64(direct, 0, size);
+	}
+
+	/** streamed in 3 uneven chunks */
+	@Benchmark
+	public long hash64Stream() {
+		final int a = size / 3;
+		final int b = size - size / 4;
+		return stream.reset().update(array, 0, a).update(array, a, b - a).update(array, b, size - b).digest64();
+	}
+}
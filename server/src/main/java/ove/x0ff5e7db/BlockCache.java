@@ -0,0 +1,362 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+
+/**
+ * Block cache component.  Caches fixed size ({@link Servant.Property#DB_CACHE_BLOCK_SIZE})
+ * blocks of the image in a preallocated direct (off-heap) arena of
+ * {@link Servant.Property#DB_CACHE_SIZE} bytes.
+ * <p>
+ * The cache is split into independently locked shards, each running a 2Q
+ * replacement policy:  new blocks enter a FIFO probation queue (A1in), and only
+ * blocks re-referenced after having been evicted from probation (per the A1out
+ * ghost queue of block ids) are admitted to the main queue (Am), itself managed
+ * by CLOCK.  A scan of cold blocks thus only churns the probation queue.
+ * <p>
+ * Cache bookkeeping is all primitive arrays - no per block objects.
+ *
+ * @author alphazero
+ */
+class BlockCache extends Servant.Component.Base {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	static final int SHARDS = 16;
+	/** shards are picked by the high bits of the mixed block number - the low bits place it in the shard's maps */
+	static final int SHARD_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(SHARDS);
+
+	private int blocksize;
+	private Shard[] shards;
+
+	// ------------------------------------------------------------------------
+	// BlockCache.Reader
+	// ------------------------------------------------------------------------
+	/**
+	 * Reads from a cached block.  Called with the block's shard locked, so must
+	 * not retain references to the arena and should be brief.
+	 */
+	interface Reader<T> {
+		/**
+		 * @param arena the arena - position and limit may be freely changed
+		 * @param base offset of block in arena
+		 * @param pos the requested position in the block
+		 * @param valid number of valid bytes in block
+		 * @return read result - null if the block content is not valid for the read
+		 */
+		T read(ByteBuffer arena, int base, int pos, int valid);
+	}
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		blocksize = Integer.parseInt(context.getProperty(Servant.Property.DB_CACHE_BLOCK_SIZE));
+		final long capacity = Long.parseLong(context.getProperty(Servant.Property.DB_CACHE_SIZE));
+		Assert.isTrue(blocksize > 0 && Integer.bitCount(blocksize) == 1, "block size is a power of 2", IllegalArgumentException.class);
+
+		final long nblocks = Math.max(capacity / blocksize / SHARDS, 1);
+		Assert.isTrue(nblocks * blocksize <= Integer.MAX_VALUE, "shard arena fits in a ByteBuffer", IllegalArgumentException.class);
+		shards = new Shard[SHARDS];
+		for(int i=0; i<SHARDS; i++) {
+			shards[i] = new Shard((int) nblocks, blocksize);
+		}
+		Specification.metrics.gauge("cache.hits", new Metrics.Gauge() {
+			@Override final public long value() { return hits(); }
+		});
+		Specification.metrics.gauge("cache.misses", new Metrics.Gauge() {
+			@Override final public long value() { return misses(); }
+		});
+		Specification.metrics.gauge("cache.evictions", new Metrics.Gauge() {
+			@Override final public long value() { return evictions(); }
+		});
+		log.log(Level.FINER, "CACHE - %d shards of %d blocks of %d bytes", SHARDS, nblocks, blocksize);
+		return (T) this;
+	}
+
+	// ------------------------------------------------------------------------
+	// cache api
+	// ------------------------------------------------------------------------
+	final int blocksize() { return blocksize; }
+
+	private final Shard shard(final long blockno) {
+		return shards[shardOf(blockno)];
+	}
+	/** @return index of the block's shard */
+	static final int shardOf(final long blockno) {
+		return (int) (mix(blockno) >>> SHARD_SHIFT);
+	}
+
+	/**
+	 * @param blockno
+	 * @param pos position in block
+	 * @param reader
+	 * @return the result of the reader, or null if block is not cached.
+	 */
+	final <T> T read(final long blockno, final int pos, final Reader<T> reader) {
+		return shard(blockno).read(blockno, pos, reader);
+	}
+
+	/**
+	 * Caches (or refreshes) the block.
+	 * @param src block content from position to limit - at most block size bytes
+	 */
+	final void load(final long blockno, final ByteBuffer src) {
+		Assert.isTrue(src.remaining() <= blocksize, "src fits in block", IllegalArgumentException.class);
+		shard(blockno).load(blockno, src);
+	}
+
+	final long hits() {
+		long n = 0;
+		for(Shard s : shards) n += s.hits;
+		return n;
+	}
+	final long misses() {
+		long n = 0;
+		for(Shard s : shards) n += s.misses;
+		return n;
+	}
+	final long evictions() {
+		long n = 0;
+		for(Shard s : shards) n += s.evictions;
+		return n;
+	}
+
+	/** murmur3 fmix64 - all bits avalanche, so both the high (shard) and low (slot) bits are usable */
+	static final long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	// ------------------------------------------------------------------------
+	// BlockCache.Shard
+	// ------------------------------------------------------------------------
+	/** 2Q cache shard.  All access is synchronized on the shard. */
+	private static final class Shard {
+		static final byte FREE = 0;
+		static final byte A1IN = 1;
+		static final byte AM = 2;
+
+		final int blocksize;
+		final int capacity;
+		final ByteBuffer arena;
+		/* -- per slot -- */
+		final long[] tags;
+		final byte[] queue;
+		final boolean[] ref;
+		final int[] valid;
+		final LongIntMap map;
+		int used;
+		/* -- A1in: FIFO of slots -- */
+		final int kin;
+		final int[] inq;
+		int inhead, incount;
+		/* -- Am: CLOCK over slots -- */
+		int amcount;
+		int hand;
+		/* -- A1out: FIFO of ghost block ids -- */
+		final long[] ghosts;
+		final LongIntMap ghostmap;
+		int ghead, gcount;
+		/* -- stats -- */
+		volatile long hits, misses, evictions;
+
+		Shard(int capacity, int blocksize) {
+			this.blocksize = blocksize;
+			this.capacity = capacity;
+			this.arena = ByteBuffer.allocateDirect(capacity * blocksize);
+			this.tags = new long[capacity];
+			this.queue = new byte[capacity];
+			this.ref = new boolean[capacity];
+			this.valid = new int[capacity];
+			this.map = new LongIntMap(capacity);
+			this.kin = Math.max(capacity / 4, 1);
+			this.inq = new int[capacity];
+			final int kout = Math.max(capacity / 2, 1);
+			this.ghosts = new long[kout];
+			this.ghostmap = new LongIntMap(kout);
+		}
+
+		synchronized final <T> T read(final long blockno, final int pos, final Reader<T> reader) {
+			final int slot = map.get(blockno);
+			if(slot < 0) {
+				misses++;
+				return null;
+			}
+			hits++;
+			if(queue[slot] == AM)
+				ref[slot] = true;
+			arena.clear();
+			return reader.read(arena, slot * blocksize, pos, valid[slot]);
+		}
+
+		synchronized final void load(final long blockno, final ByteBuffer src) {
+			int slot = map.get(blockno);
+			if(slot < 0) {
+				final boolean ghost = ghostmap.remove(blockno) >= 0;
+				slot = reclaim();
+				tags[slot] = blockno;
+				map.put(blockno, slot);
+				if(ghost) {
+					queue[slot] = AM;
+					ref[slot] = false;
+					amcount++;
+				} else {
+					queue[slot] = A1IN;
+					inq[(inhead + incount) % capacity] = slot;
+					incount++;
+				}
+			}
+			arena.clear();
+			arena.position(slot * blocksize);
+			valid[slot] = src.remaining();
+			arena.put(src.duplicate());
+		}
+
+		/** @return a free slot - evicting per 2Q if necessary */
+		private final int reclaim() {
+			if(used < capacity)
+				return used++;
+
+			int slot;
+			if(incount > kin || amcount == 0) {
+				slot = inq[inhead];
+				inhead = (inhead + 1) % capacity;
+				incount--;
+				ghost(tags[slot]);
+			} else {
+				for(;;) {
+					if(queue[hand] == AM) {
+						if(!ref[hand])
+							break;
+						ref[hand] = false;
+					}
+					hand = (hand + 1) % capacity;
+				}
+				slot = hand;
+				hand = (hand + 1) % capacity;
+				amcount--;
+			}
+			map.remove(tags[slot]);
+			queue[slot] = FREE;
+			evictions++;
+			return slot;
+		}
+
+		/** remember the evicted probation block id in A1out */
+		private final void ghost(final long blockno) {
+			if(gcount == ghosts.length) {
+				final long oldest = ghosts[ghead];
+				if(ghostmap.get(oldest) == ghead)
+					ghostmap.remove(oldest);
+				ghead = (ghead + 1) % ghosts.length;
+				gcount--;
+			}
+			final int idx = (ghead + gcount) % ghosts.length;
+			ghosts[idx] = blockno;
+			ghostmap.put(blockno, idx);
+			gcount++;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// BlockCache.LongIntMap
+	// ------------------------------------------------------------------------
+	/**
+	 * Minimal open addressing (linear probe) map of non-negative long keys to
+	 * non-negative int values, with backward shift deletion.  Fixed capacity.
+	 */
+	static final class LongIntMap {
+		static final long EMPTY = -1L;
+		final long[] keys;
+		final int[] vals;
+		final int mask;
+
+		LongIntMap(int capacity) {
+			final int n = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+			keys = new long[n];
+			vals = new int[n];
+			mask = n - 1;
+			Arrays.fill(keys, EMPTY);
+		}
+		/** @return value for key, or -1 if none */
+		final int get(final long k) {
+			for(int i = home(k); ; i = (i + 1) & mask) {
+				final long ki = keys[i];
+				if(ki == k) return vals[i];
+				if(ki == EMPTY) return -1;
+			}
+		}
+		final void put(final long k, final int v) {
+			int i = home(k);
+			while(keys[i] != EMPTY && keys[i] != k)
+				i = (i + 1) & mask;
+			keys[i] = k;
+			vals[i] = v;
+		}
+		/** @return removed value, or -1 if none */
+		final int remove(final long k) {
+			int i = home(k);
+			for(;;) {
+				if(keys[i] == EMPTY) return -1;
+				if(keys[i] == k) break;
+				i = (i + 1) & mask;
+			}
+			final int v = vals[i];
+			// backward shift
+			int j = i;
+			for(;;) {
+				j = (j + 1) & mask;
+				if(keys[j] == EMPTY) break;
+				final int h = home(keys[j]);
+				// move keys[j] to i if its home h is not cyclically in (i, j]
+				if(i <= j ? (h <= i || h > j) : (h <= i && h > j)) {
+					keys[i] = keys[j];
+					vals[i] = vals[j];
+					i = j;
+				}
+			}
+			keys[i] = EMPTY;
+			return v;
+		}
+		/** @return the home slot of k - see {@link BlockCache#SHARD_SHIFT} */
+		final int home(final long k) {
+			return (int) mix(k) & mask;
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.binary.Codec;
+
+/**
+ * Thread per connection alternative to the {@link NetworkInterface} selector
+ * reactors - {@link Servant.Property#DB_NET_MODE} <code>vthreads</code>.
+ * <p>
+ * A single thread (this component's {@link #run()}) accepts on a blocking
+ * listener, and each connection is served on its own thread with blocking
+ * reads and writes.  Threads are virtual (Java 21+), else - with a warning - 
+ * pooled platform threads.  Request frames are decoded and served by the
+ * same {@link NetworkInterface.ProtocolHandler} as the reactors use, so a
+ * storage call that blocks only blocks its own connection.
+ * <p>
+ * Responses of the connection's own thread are written after each read's
+ * requests are served.  Responses completed on other threads (e.g. WAL
+ * group commit) are written by a task on a thread of their own, so a slow
+ * client never stalls the completing thread.
+ * <p>
+ * Admission control is per {@link Servant.Property#DB_NET_CONN_INFLIGHT} and
+ * {@link Servant.Property#DB_NET_INFLIGHT}: the connection thread blocks
+ * before serving a request until both admit it.  Response bytes are not
+ * queued beyond a read's worth, as writes block.
+ * <p>
+ * Listener options are as of the {@link NetworkInterface}, less
+ * {@link Servant.Property#DB_NET_LISTENERS}, as a single listener is used.
+ *
+ * @author alphazero
+ */
+class BlockingNetworkInterface extends Servant.Component.Base implements Runnable {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	/** max buffers per gathering write */
+	static final int GATHER_MAX = 64;
+
+	private ServerSocketChannel listener;
+	private ExecutorService executor;
+	private boolean virtual;
+	private NetworkInterface.ProtocolHandler handler;
+	private BufferPool pool;
+	private int iobufsize;
+	private boolean nodelay;
+	private int sndbuf;
+	private int connInflight;
+	/** in flight requests of all connections */
+	private Semaphore inflight;
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		final int port = Integer.parseInt(context.getProperty(Servant.Property.DB_SERVER_PORT));
+		final int backlog = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_BACKLOG));
+		final int rcvbuf = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_SO_RCVBUF));
+		iobufsize = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_BUFFER_SIZE));
+		nodelay = Boolean.parseBoolean(context.getProperty(Servant.Property.DB_NET_TCP_NODELAY));
+		sndbuf = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_SO_SNDBUF));
+		connInflight = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_CONN_INFLIGHT));
+		inflight = new Semaphore(Integer.parseInt(context.getProperty(Servant.Property.DB_NET_INFLIGHT)));
+		Assert.isTrue(backlog > 0, "backlog is positive", IllegalArgumentException.class);
+		Assert.isTrue(connInflight > 0 && inflight.availablePermits() > 0, "in flight limits are positive", IllegalArgumentException.class);
+		pool = BufferPool.of(context);
+
+		handler = new NetworkInterface.ProtocolHandler();
+		handler.setContext(context);
+
+		executor = newVirtualThreadExecutor();
+		virtual = executor != null;
+		if(!virtual) {
+			log.warning("NET - virtual threads not supported - using platform threads");
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				final AtomicInteger seq = new AtomicInteger();
+				@Override final public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, String.format("0ff5e7db-conn-%d", seq.getAndIncrement()));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		listener = ServerSocketChannel.open();
+		listener.socket().setReuseAddress(true);
+		if(rcvbuf > 0)
+			listener.socket().setReceiveBufferSize(rcvbuf);
+		listener.socket().bind(new InetSocketAddress(port), backlog);
+		log.log(Level.FINER, "NET - blocking listener bound to %s - backlog %d - virtual threads:%b", listener.socket().getLocalSocketAddress(), backlog, virtual);
+		return (T) this;
+	}
+
+	/** @return a virtual thread per task executor (Java 21+) - null if not available */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** @return the bound port */
+	final int port() {
+		return listener.socket().getLocalPort();
+	}
+
+	/** closes the listener - the accept loop exits - and interrupts all connection threads */
+	final void close() throws IOException {
+		listener.close();
+		executor.shutdownNow();
+	}
+
+	// ------------------------------------------------------------------------
+	// component execution
+	// ------------------------------------------------------------------------
+	/** Acceptor loop.  Blocks in accept and starts a thread per connection. */
+	@Override final
+	public void run() {
+		for(;;) {
+			final SocketChannel sch;
+			try {
+				sch = listener.accept();
+			} catch (ClosedChannelException e) {
+				log.log(Level.FINE, "NET - listener closed - exiting accept loop");
+				return;
+			} catch (IOException e) {
+				log.error("in accept loop", e);
+				continue;
+			}
+			log.log(Level.FINE, "Accepted connection - %s", sch);
+			NetworkInterface.m_accepts.increment();
+			try {
+				final Socket socket = sch.socket();
+				socket.setTcpNoDelay(nodelay);
+				if(sndbuf > 0)
+					socket.setSendBufferSize(sndbuf);
+				executor.execute(new Connection(sch));
+			} catch (Exception e) {
+				log.warning(String.format("NET - failed to start %s", sch), e);
+				try { sch.close(); } catch (IOException ignore) { }
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// BlockingNetworkInterface.Connection
+	// ------------------------------------------------------------------------
+	/** a response - header and optional body - queued for write */
+	private static final class Response {
+		final ByteBuffer h;
+		final ByteBuffer body;
+		/** pooled buffer of body - released once written */
+		final BufferPool.Buffer pooled;
+		Response(ByteBuffer h, ByteBuffer body, BufferPool.Buffer pooled) {
+			this.h = h;
+			this.body = body;
+			this.pooled = pooled;
+		}
+	}
+
+	/**
+	 * Connection read loop and {@link Protocol.Responder}.  Responders methods
+	 * are safe to call from any thread.
+	 */
+	final class Connection implements Runnable, Protocol.Responder {
+		final SocketChannel chan;
+		/** request decode flyweight */
+		private final Protocol.Request req = new Protocol.Request();
+		/** in flight requests of this connection */
+		private final Semaphore permits = new Semaphore(connInflight);
+		private final Queue<Response> out = new ConcurrentLinkedQueue<Response>();
+		/* -- guarded by wlock -- */
+		private final ReentrantLock wlock = new ReentrantLock();
+		private final List<ByteBuffer> gather = new ArrayList<ByteBuffer>();
+		private final List<BufferPool.Buffer> written = new ArrayList<BufferPool.Buffer>();
+		/** set while a flush task is pending */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile Thread thread;
+
+		/** writes responses queued by other threads */
+		private final Runnable flusher = new Runnable() {
+			@Override final public void run() {
+				scheduled.set(false);
+				try {
+					flush();
+				} catch (IOException e) {
+					log.log(Level.FINE, "NET - flush fault on %s - %s", Connection.this, e);
+					close();
+				} finally {
+					pool.detach();
+				}
+			}
+		};
+
+		Connection(SocketChannel chan) {
+			this.chan = chan;
+		}
+
+		@Override final
+		public void run() {
+			thread = Thread.currentThread();
+			NetworkInterface.m_connections.increment();
+			final BufferPool.Buffer inbuf = pool.acquire(iobufsize);
+			final ByteBuffer in = inbuf.buf;
+			in.clear();
+			try {
+				final int maxlen = in.capacity() - Protocol.HEADER_BYTES;
+				for(;;) {
+					final int n = chan.read(in);
+					if(n < 0) {
+						log.log(Level.FINE, "NET - EOF on %s", this);
+						break;
+					}
+					NetworkInterface.m_reads.increment();
+					NetworkInterface.m_readbytes.add(n);
+
+					in.flip();
+					while(in.remaining() >= Protocol.HEADER_BYTES) {
+						final int pos = in.position();
+						final int paylen = Protocol.Frames.payloadLength(in, pos);
+						if(paylen < 0 || paylen > maxlen)
+							throw new IOException(String.format("invalid frame payload length %d - max is %d", paylen, maxlen));
+						final int len = Protocol.HEADER_BYTES + paylen;
+						if(in.remaining() < len)
+							break;
+
+						in.position(pos + len);
+						admit();
+						handler.serve(req, in, pos, len, this);
+					}
+					in.compact();
+					flush();
+				}
+			} catch (InterruptedException e) {
+				log.log(Level.FINE, "NET - interrupted on %s", this);
+			} catch (Exception e) {
+				if(chan.isOpen())
+					log.error(String.format("NET - fault on %s", this), e);
+			} finally {
+				close();
+				inbuf.release();
+				pool.detach();
+				NetworkInterface.m_connections.add(-1);
+			}
+		}
+
+		/** blocks until the request is admitted - queued responses are written first */
+		private final void admit() throws InterruptedException, IOException {
+			if(!permits.tryAcquire()) {
+				flush();
+				permits.acquire();
+			}
+			if(!inflight.tryAcquire()) {
+				flush();
+				try {
+					inflight.acquire();
+				} catch (InterruptedException e) {
+					permits.release();
+					throw e;
+				}
+			}
+		}
+
+		private final void send(final ByteBuffer h, final ByteBuffer body, final BufferPool.Buffer pooled) {
+			permits.release();
+			inflight.release();
+			out.add(new Response(h, body, pooled));
+			if(!chan.isOpen()) {
+				discard();
+				return;
+			}
+			if(Thread.currentThread() != thread && scheduled.compareAndSet(false, true))
+				executor.execute(flusher);
+		}
+
+		/** writes all queued responses - blocks until written */
+		final void flush() throws IOException {
+			wlock.lock();
+			try {
+				while(!out.isEmpty()) {
+					Response r;
+					while(gather.size() < GATHER_MAX - 1 && (r = out.poll()) != null) {
+						gather.add(r.h);
+						if(r.body != null)
+							gather.add(r.body);
+						if(r.pooled != null)
+							written.add(r.pooled);
+					}
+					final ByteBuffer[] bs = gather.toArray(new ByteBuffer[gather.size()]);
+					long remaining = 0;
+					for(ByteBuffer b : bs)
+						remaining += b.remaining();
+					while(remaining > 0) {
+						final long w = chan.write(bs);
+						remaining -= w;
+						NetworkInterface.m_writebytes.add(w);
+						NetworkInterface.m_writes.increment();
+					}
+					gather.clear();
+					for(BufferPool.Buffer b : written)
+						b.release();
+					written.clear();
+				}
+			} finally {
+				if(!written.isEmpty()) { // write faulted
+					for(BufferPool.Buffer b : written)
+						b.release();
+					written.clear();
+				}
+				gather.clear();
+				wlock.unlock();
+			}
+		}
+
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, ByteBuffer body) {
+			final int paylen = body == null ? 0 : body.remaining();
+			send(Protocol.Frames.header(op, reqid, status, paylen, false, 0), body, null);
+		}
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, long v) {
+			send(Protocol.Frames.header(op, reqid, status, Codec.LONG_BYTES, true, v), null, null);
+		}
+		@Override final
+		public void replyPooled(Protocol.Op op, long reqid, Protocol.Status status, BufferPool.Buffer body) {
+			send(Protocol.Frames.header(op, reqid, status, body.buf.remaining(), false, 0), body.buf, body);
+		}
+
+		/** closes the channel and drops queued responses.  Idempotent. */
+		final void close() {
+			try {
+				chan.close();
+			} catch (IOException e) {
+				log.warning("NET - on connection close", e);
+			}
+			discard();
+		}
+		private final void discard() {
+			Response r;
+			while((r = out.poll()) != null) {
+				if(r.pooled != null)
+					r.pooled.release();
+			}
+		}
+		@Override final
+		public String toString() {
+			return String.format("conn:{%s %s}", thread, chan);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+
+/**
+ * Pool of direct {@link ByteBuffer}s in power of 2 size classes, from
+ * {@link Servant.Property#DB_CACHE_BLOCK_SIZE} to {@link #MAX_CLASS_SIZE}.
+ * <p>
+ * Released buffers go to the releasing thread's free list of the class -
+ * so a reactor reuses its own buffers without synchronization - and past
+ * {@link #LOCAL_MAX} per class, to a shared (locked) free list.  Buffers
+ * are only allocated when both are empty, and only while the total size
+ * of the pool's buffers is within {@link Servant.Property#DB_BUFFER_POOL_SIZE}.
+ * Beyond that, and for sizes above the largest class, {@link #acquire(int)}
+ * returns unpooled heap buffers, which release simply drops.
+ * <p>
+ * If {@link Servant.Property#DB_BUFFER_POOL_DEBUG}, the acquisition site of
+ * every outstanding buffer is tracked - see {@link #leaks()}.
+ * <p>
+ * REVU: free buffers of a thread that exits are lost to the pool but still
+ * count against its capacity.  Short lived threads must {@link #detach()}.
+ *
+ * @author alphazero
+ */
+class BufferPool extends Servant.Component.Base {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	static final int MAX_CLASS_SIZE = 1024 * 1024;
+	/** per thread free buffers per size class */
+	static final int LOCAL_MAX = 32;
+	/** shared free buffers per size class */
+	static final int SHARED_MAX = 1 << 16;
+
+	private int minshift;
+	private int nclasses;
+	private long capacity;
+	private boolean debug;
+	private Stack[] shared;
+	private ThreadLocal<Stack[]> locals;
+	private final AtomicLong allocated = new AtomicLong();
+	private final ConcurrentMap<Buffer, Throwable> outstanding = new ConcurrentHashMap<Buffer, Throwable>();
+
+	/* -- metrics -- */
+	static final Metrics.Counter m_acquired = Specification.metrics.counter("pool.acquired");
+	static final Metrics.Counter m_unpooled = Specification.metrics.counter("pool.unpooled");
+
+	// ------------------------------------------------------------------------
+	// BufferPool.Buffer
+	// ------------------------------------------------------------------------
+	/** a (possibly pooled) buffer - must be released exactly once */
+	static final class Buffer {
+		final ByteBuffer buf;
+		/** size class - -1 if unpooled */
+		final int sizeclass;
+		private final BufferPool pool;
+		private boolean free;
+		Buffer(BufferPool pool, ByteBuffer buf, int sizeclass) {
+			this.pool = pool;
+			this.buf = buf;
+			this.sizeclass = sizeclass;
+		}
+		/** returns the buffer to its pool.  Neither it nor buf may be used after. */
+		final void release() throws IllegalStateException {
+			if(free)
+				throw new IllegalStateException("buffer already released");
+			free = true;
+			if(pool != null)
+				pool.release(this);
+		}
+	}
+
+	/** bounded stack of free buffers */
+	private static final class Stack {
+		private final Buffer[] items;
+		private int size;
+		Stack(int capacity) { items = new Buffer[capacity]; }
+		final Buffer pop() {
+			if(size == 0) return null;
+			final Buffer b = items[--size];
+			items[size] = null;
+			return b;
+		}
+		final boolean push(final Buffer b) {
+			if(size == items.length) return false;
+			items[size++] = b;
+			return true;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		final int minsize = Integer.parseInt(context.getProperty(Servant.Property.DB_CACHE_BLOCK_SIZE));
+		capacity = Long.parseLong(context.getProperty(Servant.Property.DB_BUFFER_POOL_SIZE));
+		debug = Boolean.parseBoolean(context.getProperty(Servant.Property.DB_BUFFER_POOL_DEBUG));
+		Assert.isTrue(minsize > 0 && Integer.bitCount(minsize) == 1 && minsize <= MAX_CLASS_SIZE, "min size is a power of 2 within max", IllegalArgumentException.class);
+		Assert.isTrue(capacity >= 0, "capacity is non-negative", IllegalArgumentException.class);
+
+		minshift = Integer.numberOfTrailingZeros(minsize);
+		nclasses = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - minshift + 1;
+		shared = new Stack[nclasses];
+		for(int c=0; c<nclasses; c++)
+			shared[c] = new Stack((int) Math.min(SHARED_MAX, capacity / classSize(c)));
+		locals = new ThreadLocal<Stack[]>() {
+			@Override protected Stack[] initialValue() {
+				final Stack[] s = new Stack[nclasses];
+				for(int c=0; c<nclasses; c++)
+					s[c] = new Stack(LOCAL_MAX);
+				return s;
+			}
+		};
+		Specification.metrics.gauge("pool.bytes", new Metrics.Gauge() {
+			@Override final public long value() { return allocated.get(); }
+		});
+		log.log(Level.FINER, "POOL - %d size classes from %d bytes - capacity %d bytes - debug:%b", nclasses, minsize, capacity, debug);
+		return (T) this;
+	}
+
+	/** @return the pool bound in the context, else a new pool per the context's properties */
+	static BufferPool of(final Servant.Context context) throws Throwable {
+		final BufferPool bound = context.get(Servant.CtxBinding.buffer_pool.id(), BufferPool.class);
+		if(bound != null)
+			return bound;
+		final BufferPool pool = new BufferPool();
+		pool.setContext(context);
+		return pool.initialize(BufferPool.class);
+	}
+
+	// ------------------------------------------------------------------------
+	// pool api
+	// ------------------------------------------------------------------------
+	final int classSize(final int sizeclass) {
+		return 1 << (minshift + sizeclass);
+	}
+	/** @return the size class of size - -1 if above the largest class */
+	final int sizeClass(final int size) {
+		if(size > MAX_CLASS_SIZE)
+			return -1;
+		if(size <= 1 << minshift)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - minshift;
+	}
+
+	/**
+	 * @param size min capacity
+	 * @return a cleared buffer with limit at size - capacity may be larger
+	 */
+	final Buffer acquire(final int size) {
+		Assert.isTrue(size >= 0, "size is non-negative", IllegalArgumentException.class);
+		m_acquired.increment();
+		final int c = sizeClass(size);
+		Buffer b = null;
+		if(c >= 0) {
+			b = locals.get()[c].pop();
+			if(b == null) {
+				synchronized (shared[c]) {
+					b = shared[c].pop();
+				}
+			}
+			if(b == null)
+				b = allocate(c);
+		}
+		if(b == null) {
+			m_unpooled.increment();
+			b = new Buffer(this, ByteBuffer.allocate(size), -1);
+		}
+		b.free = false;
+		b.buf.limit(size);
+		if(debug)
+			outstanding.put(b, new Throwable(String.format("buffer of %d bytes acquired by %s", size, Thread.currentThread().getName())));
+		return b;
+	}
+	private final Buffer allocate(final int c) {
+		final int bytes = classSize(c);
+		for(;;) {
+			final long n = allocated.get();
+			if(n + bytes > capacity)
+				return null;
+			if(allocated.compareAndSet(n, n + bytes))
+				return new Buffer(this, ByteBuffer.allocateDirect(bytes), c);
+		}
+	}
+	private final void release(final Buffer b) {
+		if(debug)
+			outstanding.remove(b);
+		if(b.sizeclass < 0)
+			return;
+		b.buf.clear();
+		if(locals.get()[b.sizeclass].push(b))
+			return;
+		synchronized (shared[b.sizeclass]) {
+			if(shared[b.sizeclass].push(b))
+				return;
+		}
+		allocated.addAndGet(-b.buf.capacity());
+	}
+
+	/**
+	 * Moves the calling thread's free buffers to the shared free lists.  For
+	 * short lived (e.g. per connection) threads, before they exit.
+	 */
+	final void detach() {
+		final Stack[] local = locals.get();
+		for(int c=0; c<nclasses; c++) {
+			Buffer b;
+			while((b = local[c].pop()) != null) {
+				boolean kept;
+				synchronized (shared[c]) {
+					kept = shared[c].push(b);
+				}
+				if(!kept)
+					allocated.addAndGet(-b.buf.capacity());
+			}
+		}
+		locals.remove();
+	}
+
+	/** @return total size of the pool's buffers */
+	final long allocated() {
+		return allocated.get();
+	}
+
+	/** @return acquisition sites of buffers not yet released - empty unless debug */
+	final Collection<Throwable> leaks() {
+		return new ArrayList<Throwable>(outstanding.values());
+	}
+}
@@ -0,0 +1,235 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+
+/**
+ * Dispatch stage of the {@link NetworkInterface}: requests that can not be
+ * served without blocking - cache misses, say - are handed off by
+ * the reactor threads to a bounded worker pool (or, per {@link Servant.Property#DB_DISPATCH_VTHREADS},
+ * a virtual thread per task), so that storage io does not stall the other 
+ * connections of a reactor.
+ * <p>
+ * Each connection's handed off requests are served in order, one at a time,
+ * by its {@link Strand}, and a connection's requests are only served inline
+ * while its strand is idle - so a client reads its own writes.  Responses go 
+ * back to the reactor via {@link NetworkInterface.Reactor#execute(Runnable)}'s
+ * queue, with a selector wakeup.  As with WAL commit completions, responses 
+ * are matched to requests by request id and may be sent out of request order.
+ * <p>
+ * The worker queue is bounded by {@link Servant.Property#DB_DISPATCH_QUEUE}.  
+ * Strands, not requests, are queued.  A strand rejected by a full queue is
+ * parked, and its connection's reads held (see {@link NetworkInterface.Backpressure}),
+ * until a worker drains a strand and reschedules it - it is never run on the
+ * reactor thread.  Requests queued per strand are bounded by the network 
+ * interface's in flight limits.
+ *
+ * @author alphazero
+ */
+class Dispatcher extends Servant.Component.Base {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	private ExecutorService executor;
+	/** the workers' queue - null for virtual threads */
+	private ArrayBlockingQueue<Runnable> queued;
+	private BufferPool pool;
+	private boolean virtual;
+	/** strands rejected by the full worker queue, in order */
+	private final ConcurrentLinkedQueue<Strand> parked = new ConcurrentLinkedQueue<Strand>();
+
+	/* -- metrics -- */
+	/** requests served on the reactor thread */
+	static final Metrics.Counter m_inline = Specification.metrics.counter("dispatch.inline");
+	/** requests handed off to the workers */
+	static final Metrics.Counter m_offloaded = Specification.metrics.counter("dispatch.offloaded");
+	/** strands parked on a full worker queue */
+	static final Metrics.Counter m_parked = Specification.metrics.counter("dispatch.parked");
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		final int workers = Integer.parseInt(context.getProperty(Servant.Property.DB_DISPATCH_WORKERS));
+		final int queue = Integer.parseInt(context.getProperty(Servant.Property.DB_DISPATCH_QUEUE));
+		Assert.isTrue(workers > 0, "workers is positive", IllegalArgumentException.class);
+		Assert.isTrue(queue > 0, "queue is positive", IllegalArgumentException.class);
+		pool = BufferPool.of(context);
+
+		if(Boolean.parseBoolean(context.getProperty(Servant.Property.DB_DISPATCH_VTHREADS))) {
+			executor = BlockingNetworkInterface.newVirtualThreadExecutor();
+			virtual = executor != null;
+			if(!virtual)
+				log.warning("DISPATCH - virtual threads not supported - using %d workers", workers);
+		}
+		if(!virtual) {
+			queued = new ArrayBlockingQueue<Runnable>(queue);
+			executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+					queued,
+					new ThreadFactory() {
+						final AtomicInteger seq = new AtomicInteger();
+						@Override final public Thread newThread(Runnable r) {
+							final Thread t = new Thread(r, String.format("0ff5e7db-worker-%d", seq.getAndIncrement()));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		log.log(Level.FINER, "DISPATCH - workers:%d queue:%d virtual threads:%b", workers, queue, virtual);
+		return (T) this;
+	}
+
+	/** stops the workers - queued requests are dropped */
+	final void close() {
+		executor.shutdownNow();
+	}
+
+	/** 
+	 * Reschedules the first parked strand, if any, and releases its connection's
+	 * reads.  Called by a worker as it drains a strand.
+	 */
+	private final void unpark() {
+		final Strand strand = parked.poll();
+		if(strand == null)
+			return;
+		if(!strand.schedule()) {
+			parked.add(strand);
+			return;
+		}
+		strand.conn.reactor.execute(new Runnable() {
+			@Override final public void run() {
+				strand.conn.unhold();
+			}
+		});
+	}
+
+	// ------------------------------------------------------------------------
+	// Dispatcher.Strand
+	// ------------------------------------------------------------------------
+	/**
+	 * A connection's handed off requests, served in order.  {@link #submit} 
+	 * and {@link #idle()} are reactor thread only.
+	 */
+	final class Strand implements Runnable {
+		private final NetworkInterface.ProtocolHandler handler;
+		private final NetworkInterface.Connection conn;
+		/** request frames - copies, as the connection's input buffer is reused */
+		private final ConcurrentLinkedQueue<BufferPool.Buffer> frames = new ConcurrentLinkedQueue<BufferPool.Buffer>();
+		/** frames submitted and not yet served - the strand is scheduled while non-zero */
+		private final AtomicInteger pending = new AtomicInteger();
+		/** request decode flyweight - worker side */
+		private final Protocol.Request req = new Protocol.Request();
+
+		Strand(NetworkInterface.ProtocolHandler handler, NetworkInterface.Connection conn) {
+			this.handler = handler;
+			this.conn = conn;
+		}
+
+		/** @return true if no requests are pending - a request may then be served inline without reordering */
+		final boolean idle() {
+			return pending.get() == 0;
+		}
+
+		/**
+		 * Queues a copy of the request frame, and schedules the strand if not 
+		 * already scheduled.
+		 */
+		final void submit(final ByteBuffer b, final int off, final int len) {
+			final BufferPool.Buffer frame = pool.acquire(len);
+			final ByteBuffer src = b.duplicate();
+			src.limit(off + len).position(off);
+			frame.buf.clear();
+			frame.buf.put(src).flip();
+			frames.add(frame);
+			m_offloaded.increment();
+			if(pending.getAndIncrement() == 0 && !schedule()) {
+				// the worker queue is full - hold reads until a worker reschedules the strand
+				conn.hold();
+				parked.add(this);
+				m_parked.increment();
+				log.log(Level.FINEST, "DISPATCH - worker queue full - parked strand of %s", conn);
+				// in case the workers drained before the strand was parked
+				if(queued.remainingCapacity() > 0)
+					unpark();
+			}
+		}
+
+		/** @return false if rejected by the full worker queue */
+		private final boolean schedule() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				if(executor.isShutdown())
+					return true; // dropped, as on close
+				return false;
+			}
+			return true;
+		}
+
+		@Override final
+		public void run() {
+			try {
+				do {
+					final BufferPool.Buffer frame = frames.poll();
+					try {
+						if(conn.chan.isOpen())
+							handler.serveDeferred(req, frame.buf, 0, frame.buf.limit(), conn);
+					} catch (Throwable t) {
+						log.error(String.format("DISPATCH - serve fault on %s", conn), t);
+						conn.reactor.execute(new Runnable() {
+							@Override final public void run() {
+								conn.close();
+							}
+						});
+					} finally {
+						frame.release();
+					}
+				} while(pending.decrementAndGet() > 0);
+			} finally {
+				if(virtual)
+					pool.detach();
+				else
+					unpark();
+			}
+		}
+	}
+}
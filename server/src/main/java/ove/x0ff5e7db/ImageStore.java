@@ -0,0 +1,564 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+import ove.x0ff5e7db.util.binary.Codec;
+import ove.x0ff5e7db.util.binary.Hash;
+
+/**
+ * Storage component.  Manages the db image - an append-only sequence of
+ * fixed size segment files under {@link Servant.Property#DB_IMAGE_ROOT}, each
+ * memory mapped in full.  Reads are served straight from the mapped pages.
+ * <p>
+ * Records are addressed by their (64 bit) image offset and do not span segments:
+ * <pre>
+ * [keylen:uint16][vallen:int32][key][value]
+ * </pre>
+ * A vallen of {@link #TOMBSTONE} marks a deleted key. A keylen of 0 marks the
+ * end of the records in a segment.
+ * <p>
+ * Keys are indexed by an {@link OffsetIndex}, rebuilt on initialize by a scan
+ * of the image.
+ * <p>
+ * If a {@link BlockCache} is bound in the context, records that fit in a cache
+ * block are read through the cache.  Cache hits, and misses of the index, are
+ * served inline - see {@link Protocol.InlineService}.
+ * <p>
+ * If a {@link WriteAheadLog} is bound in the context, every appended record is
+ * also logged, and mutation requests are only responded to once their record
+ * is committed to the log.  The log is replayed into the image on initialize,
+ * and truncated whenever the image is forced - on initialize and on segment roll.
+ *
+ * @author alphazero
+ */
+class ImageStore extends Servant.Component.Base implements Protocol.InlineService {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	static final String SEGMENT_FNAME_FMT = "image.%06d";
+	static final int RECORD_HEADER_BYTES = Codec.SHORT_BYTES + Codec.INTEGER_BYTES;
+	static final int TOMBSTONE = -1;
+
+	private File root;
+	private int segsize;
+	/** mapped segments - copy on extend */
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	/** image offset of the next record - written under writer */
+	private volatile long tail;
+	/** serializes appends - inline writers only try it, as it is held through checkpoints.  package access for tests */
+	final ReentrantLock writer = new ReentrantLock();
+	private BlockCache cache;
+	private WriteAheadLog wal;
+	private BufferPool pool;
+	private final BlockCache.Reader<BufferPool.Buffer> cachedValueReader = new CachedValueReader();
+
+	private OffsetIndex index;
+
+	/* -- metrics -- */
+	static final Metrics.Counter m_misses = Specification.metrics.counter("store.get.misses");
+	/** mutation request to response - includes the WAL group commit, if any */
+	static final Metrics.Timer m_commit = Specification.metrics.timer("store.commit");
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		root = new File(context.getProperty(Servant.Property.DB_IMAGE_ROOT));
+		segsize = Integer.parseInt(context.getProperty(Servant.Property.DB_IMAGE_SEGMENT_SIZE));
+		Assert.isTrue(segsize > RECORD_HEADER_BYTES, "segment size is viable", IllegalArgumentException.class);
+
+		cache = context.get(Servant.CtxBinding.block_cache.id(), BlockCache.class);
+		if(cache != null)
+			Assert.isTrue(segsize % cache.blocksize() == 0, "segment size is a multiple of cache block size", IllegalArgumentException.class);
+
+		wal = context.get(Servant.CtxBinding.write_ahead_log.id(), WriteAheadLog.class);
+		pool = BufferPool.of(context);
+
+		final Hash hash = Hash.Provider.valueOf(context.getProperty(Servant.Property.DB_INDEX_HASH)).provider;
+		final int capacity = Integer.parseInt(context.getProperty(Servant.Property.DB_INDEX_CAPACITY));
+		index = new OffsetIndex(hash, capacity, new OffsetIndex.Keys() {
+			@Override final
+			public boolean matches(long offset, ByteBuffer b, int off, int len) {
+				return keyEquals(offset, b, off, len);
+			}
+		});
+
+		log.log(Level.FINER, "FS - initialize image at %s", root.getAbsolutePath());
+		if(!root.exists() && !root.mkdirs())
+			throw new IOException(String.format("failed to create image root %s", root.getAbsolutePath()));
+
+		for(int segno = 0; new File(root, String.format(SEGMENT_FNAME_FMT, segno)).exists(); segno++) {
+			extend(segno);
+		}
+		if(segments.length == 0)
+			extend(0);
+
+		if(wal != null) {
+			wal.replay(new WriteAheadLog.Replay() {
+				@Override final
+				public void onRecord(long offset, ByteBuffer record) throws IOException {
+					final int segno = (int) (offset / segsize);
+					while(segments.length <= segno)
+						extend(segments.length);
+					final ByteBuffer seg = segments[segno].duplicate();
+					seg.position((int) (offset % segsize));
+					seg.put(record);
+				}
+			});
+			checkpoint();
+		}
+
+		recover();
+		Specification.metrics.gauge("store.keys", new Metrics.Gauge() {
+			@Override final public long value() { return index.size(); }
+		});
+		Specification.metrics.gauge("store.bytes", new Metrics.Gauge() {
+			@Override final public long value() { return tail; }
+		});
+		log.log(Level.FINER, "FS - image recovered - %d segments - %d keys - tail at %d", segments.length, index.size(), tail);
+		return (T) this;
+	}
+
+	/** maps the segment file - creating it if necessary */
+	private final void extend(final int segno) throws IOException {
+		final File f = new File(root, String.format(SEGMENT_FNAME_FMT, segno));
+		final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			final MappedByteBuffer seg = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segsize);
+			final MappedByteBuffer[] extended = Arrays.copyOf(segments, segno + 1);
+			extended[segno] = seg;
+			segments = extended;
+		} finally {
+			raf.close();
+		}
+		log.log(Level.FINE, "FS - mapped segment %s", f);
+	}
+
+	/** 
+	 * scan the image to rebuild the index and locate the tail.  A segment's
+	 * scan stops at the first invalid record header - a value length that is 
+	 * neither a length nor {@link #TOMBSTONE}, or a record overrunning the 
+	 * segment - and the rest of the segment is zeroed.
+	 */
+	private final void recover() {
+		final MappedByteBuffer[] segments = this.segments;
+		for(int segno = 0; segno < segments.length; segno++) {
+			final ByteBuffer seg = segments[segno];
+			int pos = 0;
+			while(segsize - pos >= RECORD_HEADER_BYTES) {
+				final int keylen = seg.getShort(pos) & 0xFFFF;
+				if(keylen == 0)
+					break;
+				final int vallen = seg.getInt(pos + Codec.SHORT_BYTES);
+				if((vallen < 0 && vallen != TOMBSTONE) || (long) RECORD_HEADER_BYTES + keylen + Math.max(vallen, 0) > segsize - pos) {
+					log.warning("FS - invalid record header at %d (keylen:%d vallen:%d) - segment %d truncated", offset(segno, pos), keylen, vallen, segno);
+					for(int i = pos; i < segsize; i++)
+						seg.put(i, (byte) 0);
+					break;
+				}
+				final int keypos = pos + RECORD_HEADER_BYTES;
+				if(vallen == TOMBSTONE) {
+					index.remove(seg, keypos, keylen);
+					pos += RECORD_HEADER_BYTES + keylen;
+				} else {
+					index.put(seg, keypos, keylen, offset(segno, pos));
+					pos += RECORD_HEADER_BYTES + keylen + vallen;
+				}
+			}
+			tail = offset(segno, pos);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// image api
+	// ------------------------------------------------------------------------
+	private final long offset(final int segno, final int pos) {
+		return (long) segno * segsize + pos;
+	}
+
+	/**
+	 * Appends a record.  Value is the concatenation of the (optional) value prefix
+	 * and the value.  Under writer.
+	 * @param key buffer with key at keyoff
+	 * @param prefix value prefix - may be null
+	 * @param val buffer with value at valoff - may be null for tombstones
+	 * @param vallen length of value, or {@link #TOMBSTONE}
+	 * @param commit notified on commit of the record to the log, if any
+	 * @return the image offset of the record
+	 */
+	private final long append(final ByteBuffer key, final int keyoff, final int keylen,
+			final ByteBuffer prefix, final ByteBuffer val, final int valoff, final int vallen, final Commit commit) throws IOException
+	{
+		final int plen = prefix == null ? 0 : prefix.remaining();
+		final int reclen = RECORD_HEADER_BYTES + keylen + plen + Math.max(vallen, 0);
+		if(reclen > segsize)
+			throw new IOException(String.format("record size %d exceeds segment size %d", reclen, segsize));
+
+		int segno = (int) (tail / segsize);
+		int pos = (int) (tail % segsize);
+		if(segno == segments.length) {
+			// the tail segment is filled to the byte
+			checkpoint();
+			extend(segno);
+		} else if(segsize - pos < reclen) {
+			checkpoint();
+			segno++;
+			pos = 0;
+			extend(segno);
+		}
+
+		final ByteBuffer seg = segments[segno].duplicate();
+		seg.position(pos + Codec.SHORT_BYTES);
+		seg.putInt(vallen == TOMBSTONE ? TOMBSTONE : plen + vallen);
+		put(seg, key, keyoff, keylen);
+		if(prefix != null)
+			seg.put(prefix.duplicate());
+		if(vallen > 0)
+			put(seg, val, valoff, vallen);
+		// keylen last - it is the record commit mark for recovery
+		seg.putShort(pos, (short) keylen);
+
+		final long offset = offset(segno, pos);
+		tail = offset + reclen;
+
+		commit.offset = offset;
+		if(wal != null) {
+			seg.limit(pos + reclen).position(pos);
+			wal.append(offset, seg, commit);
+		}
+		return offset;
+	}
+
+	/** @return true if a record of reclen bytes fits in the tail segment - under writer */
+	private final boolean fits(final long reclen) {
+		return tail / segsize < segments.length && segsize - (int) (tail % segsize) >= reclen;
+	}
+
+	/** 
+	 * Forces the image and truncates the log. 
+	 * Under writer, or on initialize.
+	 * REVU: forcing an entire segment stalls writers.  
+	 */
+	private final void checkpoint() throws IOException {
+		force();
+		if(wal != null)
+			wal.truncate();
+	}
+	private static final void put(final ByteBuffer dst, final ByteBuffer src, final int off, final int len) {
+		if(src.hasArray()) {
+			dst.put(src.array(), src.arrayOffset() + off, len);
+		} else {
+			final ByteBuffer s = src.duplicate();
+			s.limit(off + len).position(off);
+			dst.put(s);
+		}
+	}
+
+	/** @return view of the value of the record at offset - position to limit.  Reads from mapped pages. */
+	final ByteBuffer read(final long offset) {
+		final ByteBuffer seg = segments[(int) (offset / segsize)].duplicate();
+		final int pos = (int) (offset % segsize);
+		final int keylen = seg.getShort(pos) & 0xFFFF;
+		final int vallen = seg.getInt(pos + Codec.SHORT_BYTES);
+		final int valpos = pos + RECORD_HEADER_BYTES + keylen;
+		seg.limit(valpos + vallen).position(valpos);
+		return seg;
+	}
+
+	/** @return true if the key of the record at offset equals key b[off, off+len).  Reads from mapped pages. */
+	private final boolean keyEquals(final long offset, final ByteBuffer b, final int off, final int len) {
+		final ByteBuffer seg = segments[(int) (offset / segsize)];
+		final int pos = (int) (offset % segsize);
+		if((seg.getShort(pos) & 0xFFFF) != len)
+			return false;
+		final int keypos = pos + RECORD_HEADER_BYTES;
+		int i = 0;
+		// word compares require same byte order views
+		for(final int words = b.order() == seg.order() ? len : 0; i + Codec.LONG_BYTES <= words; i += Codec.LONG_BYTES) {
+			if(seg.getLong(keypos + i) != b.getLong(off + i))
+				return false;
+		}
+		for(; i<len; i++) {
+			if(seg.get(keypos + i) != b.get(off + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the value of the record at offset via the block cache.  Cache
+	 * misses load the record's block from the image, for subsequent reads.
+	 * @return the value in a pooled buffer - position to limit - or null if
+	 * not cached (or not cacheable), in which case the image is read directly.
+	 */
+	final BufferPool.Buffer cached(final long offset) {
+		final BufferPool.Buffer v = probe(offset);
+		if(v == SPANS_BLOCK)
+			return null;
+		if(v != null)
+			return v;
+
+		// miss (or stale): load the committed part of the block 
+		final int bs = cache.blocksize();
+		final long blockno = offset / bs;
+		final long blockoff = blockno * bs;
+		final int valid = (int) Math.min(bs, tail - blockoff);
+		final ByteBuffer block = segments[(int) (blockoff / segsize)].duplicate();
+		final int pos = (int) (blockoff % segsize);
+		block.limit(pos + valid).position(pos);
+		cache.load(blockno, block);
+		return null;
+	}
+	/**
+	 * Reads the value of the record at offset from the block cache only.
+	 * @return the value in a pooled buffer - position to limit - or null if not cached
+	 */
+	final BufferPool.Buffer peek(final long offset) {
+		final BufferPool.Buffer v = probe(offset);
+		return v == SPANS_BLOCK ? null : v;
+	}
+	/** @return the cached value, null, or {@link #SPANS_BLOCK} */
+	private final BufferPool.Buffer probe(final long offset) {
+		final int bs = cache.blocksize();
+		return cache.read(offset / bs, (int) (offset % bs), cachedValueReader);
+	}
+	/** marker result of the {@link CachedValueReader} */
+	private static final BufferPool.Buffer SPANS_BLOCK = new BufferPool.Buffer(null, ByteBuffer.allocate(0), -1);
+
+	/** copies the value of the record at pos out of the cached block, into a pooled buffer */
+	private final class CachedValueReader implements BlockCache.Reader<BufferPool.Buffer> {
+		@Override final
+		public BufferPool.Buffer read(ByteBuffer arena, int base, int pos, int valid) {
+			final int bs = cache.blocksize();
+			if(pos + RECORD_HEADER_BYTES > bs)
+				return SPANS_BLOCK;
+			if(pos + RECORD_HEADER_BYTES > valid)
+				return null;
+			final int keylen = arena.getShort(base + pos) & 0xFFFF;
+			if(keylen == 0)
+				return null;
+			final int vallen = arena.getInt(base + pos + Codec.SHORT_BYTES);
+			final int valpos = pos + RECORD_HEADER_BYTES + keylen;
+			if(valpos + vallen > bs)
+				return SPANS_BLOCK;
+			if(valpos + vallen > valid)
+				return null;
+			final BufferPool.Buffer v = pool.acquire(vallen);
+			final ByteBuffer src = arena.duplicate();
+			src.limit(base + valpos + vallen).position(base + valpos);
+			v.buf.put(src).flip();
+			return v;
+		}
+	}
+
+	/** flush all mapped segments to the storage device */
+	final void force() {
+		for(MappedByteBuffer seg : segments)
+			seg.force();
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Service
+	// ------------------------------------------------------------------------
+	/**
+	 * Serves GETs of keys not in the index, or with values in the block cache,
+	 * and - with a WAL, whose flusher syncs - PUTs and DELETEs whose records 
+	 * fit in the tail segment.  Records that roll the image to a new segment (a
+	 * checkpoint, and the mapping of a new segment file), writes that find the
+	 * writer lock held (possibly through a checkpoint), and APPENDs, which read
+	 * the current value, are not served inline.
+	 * <p>
+	 * REVU: the index probe compares the key with the record's key in the image,
+	 * which may fault in a page for a cold key.
+	 */
+	@Override final
+	public boolean serveInline(final Protocol.Request req, final Protocol.Responder responder) {
+		if(req.op == Protocol.Op.PUT || req.op == Protocol.Op.DELETE) {
+			if(wal == null)
+				return false;
+			final long vallen = req.op == Protocol.Op.PUT ? req.datalen : 0;
+			// never wait on the writer lock - it is held through a checkpoint's force
+			if(!writer.tryLock())
+				return false;
+			try {
+				// holding the lock, no other append can roll the segment before this one
+				if(!fits(RECORD_HEADER_BYTES + req.keylen + vallen))
+					return false;
+				serve(req, responder);
+			} finally {
+				writer.unlock();
+			}
+			return true;
+		}
+		if(req.op != Protocol.Op.GET)
+			return false;
+		final long offset = index.get(req.buf, req.keyoff, req.keylen);
+		if(offset == OffsetIndex.EMPTY) {
+			m_misses.increment();
+			responder.reply(req.op, req.reqid, Protocol.Status.NOT_FOUND, null);
+			return true;
+		}
+		if(cache == null)
+			return false;
+		final BufferPool.Buffer v = peek(offset);
+		if(v == null)
+			return false;
+		responder.replyPooled(req.op, req.reqid, Protocol.Status.OK, v);
+		return true;
+	}
+
+	@Override final
+	public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+		try {
+			switch (req.op) {
+			case GET: {
+				final long offset = index.get(req.buf, req.keyoff, req.keylen);
+				if(offset == OffsetIndex.EMPTY) {
+					m_misses.increment();
+					responder.reply(req.op, req.reqid, Protocol.Status.NOT_FOUND, null);
+					return;
+				}
+				if(cache != null) {
+					final BufferPool.Buffer v = cached(offset);
+					if(v != null) {
+						responder.replyPooled(req.op, req.reqid, Protocol.Status.OK, v);
+						return;
+					}
+				}
+				responder.reply(req.op, req.reqid, Protocol.Status.OK, read(offset));
+				return;
+			}
+			case PUT: {
+				final Commit commit = new Commit(req, responder);
+				writer.lock();
+				try {
+					index.put(req.buf, req.keyoff, req.keylen, append(req.buf, req.keyoff, req.keylen, null, req.buf, req.dataoff, req.datalen, commit));
+				} finally {
+					writer.unlock();
+				}
+				if(wal == null) 
+					commit.onCommit(null);
+				return;
+			}
+			case DELETE: {
+				final Commit commit = new Commit(req, responder);
+				writer.lock();
+				try {
+					if(index.get(req.buf, req.keyoff, req.keylen) == OffsetIndex.EMPTY) {
+						responder.reply(req.op, req.reqid, Protocol.Status.NOT_FOUND, null);
+						return;
+					}
+					// tombstone first - if the append fails the key remains, as it will on recovery
+					append(req.buf, req.keyoff, req.keylen, null, null, 0, TOMBSTONE, commit);
+					index.remove(req.buf, req.keyoff, req.keylen);
+				} finally {
+					writer.unlock();
+				}
+				if(wal == null) 
+					commit.onCommit(null);
+				return;
+			}
+			case APPEND: {
+				final Commit commit = new Commit(req, responder);
+				writer.lock();
+				try {
+					final long offset = index.get(req.buf, req.keyoff, req.keylen);
+					final ByteBuffer prefix = offset == OffsetIndex.EMPTY ? null : read(offset);
+					final long curlen = prefix == null ? 0 : prefix.remaining();
+					if(req.offset != Protocol.APPEND_AT_END && req.offset != curlen) {
+						responder.reply(req.op, req.reqid, Protocol.Status.CONFLICT, curlen);
+						return;
+					}
+					commit.length = curlen + req.datalen;
+					index.put(req.buf, req.keyoff, req.keylen, append(req.buf, req.keyoff, req.keylen, prefix, req.buf, req.dataoff, req.datalen, commit));
+				} finally {
+					writer.unlock();
+				}
+				if(wal == null) 
+					commit.onCommit(null);
+				return;
+			}
+			default:
+				responder.reply(req.op, req.reqid, Protocol.Status.UNSUPPORTED, null);
+			}
+		} catch (Exception e) {
+			log.error(String.format("FS - on %s", req), e);
+			responder.reply(req.op, req.reqid, Protocol.Status.ERROR, null);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// inner types
+	// ------------------------------------------------------------------------
+	/** responds to a mutation request on commit of its record */
+	private static final class Commit implements WriteAheadLog.Completion {
+		final Protocol.Op op;
+		final long reqid;
+		final Protocol.Responder responder;
+		/** image offset of the record */
+		long offset;
+		/** APPEND only - value length after append */
+		long length;
+		final long t0 = System.nanoTime();
+		Commit(Protocol.Request req, Protocol.Responder responder) {
+			this.op = req.op;
+			this.reqid = req.reqid;
+			this.responder = responder;
+		}
+		@Override final
+		public void onCommit(Throwable t) {
+			m_commit.since(t0);
+			if(t != null) {
+				responder.reply(op, reqid, Protocol.Status.ERROR, null);
+				return;
+			}
+			switch (op) {
+			case PUT:
+				responder.reply(op, reqid, Protocol.Status.OK, offset);
+				break;
+			case APPEND:
+				responder.reply(op, reqid, Protocol.Status.OK, length);
+				break;
+			default:
+				responder.reply(op, reqid, Protocol.Status.OK, null);
+			}
+		}
+	}
+}
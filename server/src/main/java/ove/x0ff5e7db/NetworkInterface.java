@@ -22,21 +22,50 @@
 
 package ove.x0ff5e7db;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import ove.x0ff5e7db.util.Assert;
 import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+import ove.x0ff5e7db.util.binary.Codec;
 
 
 /**
  * This component is tasked with managing all network front-end responsibilities
  * of the server.
+ * <p>
+ * Structure is a single acceptor (this component's {@link #run()}) and a pool of
+ * {@link Reactor}s, each owning its own {@link Selector}.  Accepted connections
+ * are assigned to reactors round-robin and live out their life on that reactor. 
+ * Pool size is {@link Servant.Property#DB_NET_REACTORS}.
+ * <p>
+ * The acceptor selects on {@link Servant.Property#DB_NET_LISTENERS} listening
+ * sockets.  More than one requires SO_REUSEPORT (Linux, Java 9+), with which
+ * the kernel spreads incoming connections over the listeners' accept queues.
+ * <p>
+ * Connections are subject to admission control - see {@link Backpressure}.
  * 
  * @author alphazero
  */
@@ -48,6 +77,26 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 	private final Servant.Context context;
 	private int ssport;
 	private InetSocketAddress inetadd;
+	/** per connection input buffer size - also max request frame size */
+	private int iobufsize;
+	private BufferPool pool;
+	private Backpressure backpressure;
+	/** listening sockets - the first is bound as {@link CtxBinding#server_socket_chan} */
+	private ServerSocketChannel[] listeners;
+
+	/* -- metrics -- */
+	static final Metrics.Counter m_accepts = Specification.metrics.counter("net.accepts");
+	static final Metrics.Counter m_connections = Specification.metrics.counter("net.connections");
+	static final Metrics.Counter m_reads = Specification.metrics.counter("net.reads");
+	static final Metrics.Counter m_readbytes = Specification.metrics.counter("net.read.bytes");
+	static final Metrics.Counter m_writes = Specification.metrics.counter("net.writes");
+	static final Metrics.Counter m_writebytes = Specification.metrics.counter("net.write.bytes");
+	static final Metrics.Counter m_requests = Specification.metrics.counter("proto.requests");
+	static final Metrics.Counter m_badrequests = Specification.metrics.counter("proto.bad.requests");
+	static final Metrics.Counter m_suspends = Specification.metrics.counter("net.read.suspends");
+	static final Metrics.Counter m_saturations = Specification.metrics.counter("net.saturations");
+	/** time in {@link Protocol.Service#serve} - i.e. excludes async completion */
+	static final Metrics.Timer m_serve = Specification.metrics.timer("proto.serve");
 
 	// ------------------------------------------------------------------------
 	// Context bindings
@@ -57,9 +106,9 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 		ssch_accept_handler,
 		ssch_read_handler,
 		ssch_write_handler,
-		ssch_accept_selector, 
-		ssch_read_selector, 
-		ssch_write_selector;
+		ssch_accept_selector,
+		ssch_frame_handler,
+		net_reactors;
 		private final String id;
 		CtxBinding () {
 			this.id = this.name().toLowerCase().replace('_', '.');
@@ -69,11 +118,13 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 	// REVU: like but error prone ..
 	private ServerSocketChannel sschan = null;
 	private Selector asel = null;
-	private Selector rsel = null;
-	private Selector wsel = null;
+	private Reactor[] reactors = null;
 	private SSChanAcceptHandler ahandler = null;
 	private SSChanReadHandler rhandler;
 	private SSChanWriteHandler whandler;
+	private FrameHandler fhandler;
+	/** null if requests are all served on the reactor threads */
+	private Dispatcher dispatcher;
 
 	// ------------------------------------------------------------------------
 	// initialization concerns
@@ -99,10 +150,9 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 				/* -- selectors -- */
 				else if (k.equals(CtxBinding.ssch_accept_selector.id) && Selector.class.isAssignableFrom(v.getClass()))
 					asel = (Selector) v;
-				else if (k.equals(CtxBinding.ssch_read_selector.id) && Selector.class.isAssignableFrom(v.getClass()))
-					rsel = (Selector) v;
-				else if (k.equals(CtxBinding.ssch_write_selector.id) && Selector.class.isAssignableFrom(v.getClass()))
-					wsel = (Selector) v;
+				/* -- reactors -- */
+				else if (k.equals(CtxBinding.net_reactors.id) && Reactor[].class.isAssignableFrom(v.getClass()))
+					reactors = (Reactor[]) v;
 				/* -- handlers -- */
 				else if (k.equals(CtxBinding.ssch_accept_handler.id) && SSChanAcceptHandler.class.isAssignableFrom(v.getClass()))
 					ahandler = (NetworkInterface.SSChanAcceptHandler) v;
@@ -110,6 +160,8 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 					rhandler = (NetworkInterface.SSChanReadHandler) v;
 				else if (k.equals(CtxBinding.ssch_write_handler.id) && SSChanWriteHandler.class.isAssignableFrom(v.getClass()))
 					whandler = (NetworkInterface.SSChanWriteHandler) v;
+				else if (k.equals(CtxBinding.ssch_frame_handler.id) && FrameHandler.class.isAssignableFrom(v.getClass()))
+					fhandler = (NetworkInterface.FrameHandler) v;
 				// else
 				return parent.bind(k, v);
 			}
@@ -125,10 +177,9 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 				/* -- selectors -- */
 				else if (k.equals(CtxBinding.ssch_accept_selector.id) && vc.isAssignableFrom(Selector.class))
 					return (V) asel;
-				else if (k.equals(CtxBinding.ssch_read_selector.id) && vc.isAssignableFrom(Selector.class))
-					return (V) rsel;
-				else if (k.equals(CtxBinding.ssch_write_selector.id) && vc.isAssignableFrom(Selector.class))
-					return (V) wsel;
+				/* -- reactors -- */
+				else if (k.equals(CtxBinding.net_reactors.id) && vc.isAssignableFrom(Reactor[].class))
+					return (V) reactors;
 				/* -- handlers -- */
 				else if (k.equals(CtxBinding.ssch_accept_handler.id) && vc.isAssignableFrom(NetworkInterface.Handler.class))
 					return (V) ahandler;
@@ -136,6 +187,8 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 					return (V) rhandler;
 				else if (k.equals(CtxBinding.ssch_write_handler.id) && vc.isAssignableFrom(NetworkInterface.Handler.class))
 					return (V) whandler;
+				else if (k.equals(CtxBinding.ssch_frame_handler.id) && vc.isAssignableFrom(NetworkInterface.FrameHandler.class))
+					return (V) fhandler;
 				// else
 				return parent.get(k, vc);
 			}
@@ -150,13 +203,35 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 		log.log(Level.FINER, "NET - initialize SSChans ");
 		try {
 			ssport = Integer.parseInt(propPort);
+			iobufsize = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_BUFFER_SIZE));
+			pool = BufferPool.of(context);
 			inetadd = new InetSocketAddress(ssport);
+			final int backlog = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_BACKLOG));
+			final int rcvbuf = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_SO_RCVBUF));
+			int n = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_LISTENERS));
+			Assert.isTrue(n > 0, "listener count is positive", IllegalArgumentException.class);
+			Assert.isTrue(backlog > 0, "backlog is positive", IllegalArgumentException.class);
+
+			final Object reuseport = n > 1 ? soReusePort() : null;
+			if(n > 1 && reuseport == null) {
+				log.warning("NET - SO_REUSEPORT not supported - using 1 of %d listeners", n);
+				n = 1;
+			}
+			listeners = new ServerSocketChannel[n];
+			for(int i=0; i<n; i++) {
+				final ServerSocketChannel ssch = ServerSocketChannel.open();
+				ssch.socket().setReuseAddress(true);
+				if(reuseport != null)
+					setOption(ssch, reuseport, Boolean.TRUE);
+				// accepted sockets inherit the receive buffer - set before bind for window scaling
+				if(rcvbuf > 0)
+					ssch.socket().setReceiveBufferSize(rcvbuf);
+				ssch.socket().bind(inetadd, backlog);
+				listeners[i] = ssch;
+			}
+			context.bind(CtxBinding.server_socket_chan.id(), listeners[0]);
 			
-			final ServerSocketChannel ssch = ServerSocketChannel.open();
-			context.bind(CtxBinding.server_socket_chan.id(), ssch);
-			ssch.socket().bind(inetadd);
-			
-			log.log(Level.FINER, "NET - %s bound to %s", sschan, inetadd);
+			log.log(Level.FINER, "NET - %d listeners bound to %s - backlog %d", listeners.length, inetadd, backlog);
 		} catch (Throwable e) {
 			log.error("sschan initialize failed", e);
 			throw e;
@@ -166,9 +241,17 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 		log.log(Level.FINER, "NET - initialize sschan-op-selectors ");
 		try {
 			context.bind(CtxBinding.ssch_accept_selector.id(), Selector.open());
-			context.bind(CtxBinding.ssch_read_selector.id(), Selector.open());
-			context.bind(CtxBinding.ssch_write_selector.id(), Selector.open());
 
+			int n = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_REACTORS));
+			if(n < 1) 
+				n = Runtime.getRuntime().availableProcessors();
+			final Reactor[] rpool = new Reactor[n];
+			for(int i=0; i<n; i++) {
+				rpool[i] = new Reactor(i, Selector.open());
+			}
+			context.bind(CtxBinding.net_reactors.id(), rpool);
+			backpressure = new Backpressure(context, rpool);
+			log.log(Level.FINER, "NET - %d reactors - %s", n, backpressure);
 		} catch (Exception e) {
 			log.error("selectors init failed", e);
 			throw e;
@@ -201,65 +284,726 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 		}
 		log.log(Level.FINER, "NET - handler %s initialized and bound", whandler);
 
+		if(fhandler == null) {
+			final ProtocolHandler phandler = new ProtocolHandler();
+			phandler.setContext(context);
+			if(Integer.parseInt(context.getProperty(Servant.Property.DB_DISPATCH_WORKERS)) > 0) {
+				try {
+					final Dispatcher dispatcher = new Dispatcher();
+					dispatcher.setContext(context);
+					phandler.dispatcher = this.dispatcher = dispatcher.initialize(Dispatcher.class);
+				} catch (Throwable e) {
+					log.error("dispatcher init failed - serving on reactor threads", e);
+				}
+			}
+			context.bind(CtxBinding.ssch_frame_handler.id(), phandler);
+			log.log(Level.FINER, "NET - bound protocol frame handler %s", phandler);
+		}
+
 		
 		try {
-			final ServerSocketChannel ssch = context.get(CtxBinding.server_socket_chan.id(), ServerSocketChannel.class);
-			ssch.configureBlocking(false); 
-			ssch.register(asel, SelectionKey.OP_ACCEPT, ahandler);
+			for(ServerSocketChannel ssch : listeners) {
+				ssch.configureBlocking(false); 
+				ssch.register(asel, SelectionKey.OP_ACCEPT, ahandler);
+			}
 		} catch (Exception e) {
 			log.error("sschan registration (OP_ACCEPT) failed", e);
 		}
 		return (T) this;
 	}
 
+	/** @return the SO_REUSEPORT socket option (Java 9+) - null if not available */
+	static Object soReusePort() {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	/** sets a {@link java.net.SocketOption} (Java 7+) - reflective, per our 1.6 source level */
+	static void setOption(final ServerSocketChannel ssch, final Object option, final Object value) throws Exception {
+		final Method setter = ServerSocketChannel.class.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+		try {
+			setter.invoke(ssch, option, value);
+		} catch (InvocationTargetException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
 	// ------------------------------------------------------------------------
 	// component execution
 	// ------------------------------------------------------------------------
 	
+	/** @return the reactor pool - each is to be run on its own thread */
+	final Reactor[] reactors() {
+		return reactors;
+	}
+
+	/** @return the bound port of the (first) listener */
+	final int port() {
+		return listeners[0].socket().getLocalPort();
+	}
+
+	/** closes the listeners and selectors - the accept and reactor loops exit - and stops the dispatcher */
+	final void close() throws IOException {
+		for(ServerSocketChannel ssch : listeners)
+			ssch.close();
+		asel.close();
+		for(Reactor reactor : reactors)
+			reactor.selector.close();
+		if(dispatcher != null)
+			dispatcher.close();
+	}
+
+	/**
+	 * Acceptor loop.  Blocks in {@link Selector#select()} on the OP_ACCEPT
+	 * selector and hands accepted connections to the {@link Reactor}s.
+	 */
 	@Override final
 	public void run() {
-		final Selector asel = context.get(CtxBinding.ssch_accept_selector.id(), Selector.class);
-		final Selector rsel = context.get(CtxBinding.ssch_read_selector.id(), Selector.class);
-		final Selector wsel = context.get(CtxBinding.ssch_write_selector.id(), Selector.class);
-		final Selector[] selectors = {
-				Assert.notNull(wsel, "wsel", IllegalArgumentException.class), 
-				Assert.notNull(rsel, "rsel", IllegalArgumentException.class), 
-				Assert.notNull(asel, "asel", IllegalArgumentException.class) 
-		}; // order is meaningful
-
-		// REVU: should be constrained e.g. take n selection from A then ... etc.
-		// where n is a small-ish number
+		final Selector asel = Assert.notNull(context.get(CtxBinding.ssch_accept_selector.id(), Selector.class), "asel", IllegalArgumentException.class);
 		for(;;) {
-			boolean idling = true;
-			for(Selector s : selectors){
-				log.log(Level.FINER, "check selector %s", s);
+			try {
+				if(asel.select() == 0)
+					continue;
+
+				final Iterator<SelectionKey> it = asel.selectedKeys().iterator();
+				while(it.hasNext()){
+					final SelectionKey k = it.next();
+					it.remove();
+					ahandler.handle(k);
+				}
+			} catch (ClosedSelectorException e) {
+				log.log(Level.FINE, "NET - accept selector closed - exiting accept loop");
+				return;
+			} catch (Exception e) {
+				log.error("in accept loop", e);
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// NetworkInterface.Reactor
+	// ------------------------------------------------------------------------
+	/**
+	 * Selector event loop for OP_READ and OP_WRITE of the connections assigned 
+	 * to it.  Blocks in {@link Selector#select()} until there is either channel 
+	 * activity or an {@link #execute(Runnable)} wakeup, so idle connections cost
+	 * nothing. 
+	 * <p>
+	 * REVU: JVM provides no means of pinning the reactor threads to cores.  
+	 * Pool size defaults to the core count and we leave placement to the OS.
+	 */
+	final class Reactor implements Runnable {
+		final int id;
+		final Selector selector;
+		private volatile Thread thread;
+		/** reactor thread task queue - see {@link #execute(Runnable)} */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/** connections with reads suspended - reactor thread only */
+		private final List<Connection> suspended = new ArrayList<Connection>();
+
+		Reactor(int id, Selector selector) {
+			this.id = id;
+			this.selector = selector;
+		}
+
+		/**
+		 * Hand off a task to the reactor thread.  Safe to call from any thread;
+		 * the task is run by the reactor thread on its next pass, which is forced
+		 * via {@link Selector#wakeup()}.  All channel interest changes made on behalf
+		 * of other threads must go through here.
+		 * @param task
+		 */
+		final void execute(final Runnable task) {
+			Assert.notNull(task, "task", IllegalArgumentException.class);
+			tasks.offer(task);
+			selector.wakeup();
+		}
+
+		/** registers the (accepted) socket channel with this reactor for OP_READ */
+		final void register(final SocketChannel sch) {
+			execute(new Runnable() {
+				@Override final public void run() {
+					try {
+						final Connection conn = new Connection(sch, Reactor.this, pool.acquire(iobufsize), backpressure);
+						conn.key = sch.register(selector, SelectionKey.OP_READ, conn);
+						m_connections.increment();
+						log.log(Level.FINEST, "%s registered with reactor %d for OP_READs", conn, id);
+					} catch (Exception e) {
+						log.error(String.format("NET - reactor %d failed to register %s", id, sch), e);
+						try { sch.close(); } catch (Exception ignore) { }
+					}
+				}
+			});
+		}
+
+		/** resumes reads of suspended connections that are under their low watermarks */
+		final void resumeAll() {
+			execute(new Runnable() {
+				@Override final public void run() {
+					final Iterator<Connection> it = suspended.iterator();
+					while(it.hasNext()) {
+						if(it.next().resume())
+							it.remove();
+					}
+				}
+			});
+		}
+
+		/** @return true if the caller is running on this reactor's thread */
+		final boolean inReactorThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		@Override final
+		public void run() {
+			thread = Thread.currentThread();
+			for(;;) {
 				try {
-					if(s.selectNow() == 0)
+					final int n = selector.select();
+					runTasks();
+					if(n == 0)
 						continue;
-					
-					Set<SelectionKey> selections = s.selectedKeys();
-					for(SelectionKey k : selections){
-						log.log(Level.FINEST, "selected: %s %s", k, k.attachment());
-						Handler hdlr = (Handler) k.attachment();
-						hdlr.handle(k);
-						selections.remove(k);
+
+					final Set<SelectionKey> selections = selector.selectedKeys();
+					final Iterator<SelectionKey> it = selections.iterator();
+					while(it.hasNext()){
+						final SelectionKey k = it.next();
+						it.remove();
+						if(log.isLoggable(Level.FINEST))
+							log.log(Level.FINEST, "selected: %s %s", k, k.attachment());
+						dispatch(k);
 					}
-					idling = false;
+				} catch (ClosedSelectorException e) {
+					log.log(Level.FINE, "NET - reactor %d selector closed - exiting event loop", id);
+					return;
 				} catch (Exception e) {
 					log.error("in select loop", e);
 				}
 			}
-
-			// REVU: this needs a better solution to the idle.
-			try {
-				if(idling){
-					Thread.sleep(1000);
-					log.log(Level.FINER, "nothing to do ..");
+		}
+		private final void runTasks() {
+			Runnable task = null;
+			while((task = tasks.poll()) != null){
+				try {
+					task.run();
+				} catch (Exception e) {
+					log.error("in reactor task", e);
 				}
+			}
+		}
+		/** dispatch ready ops of the key to the op handlers. A faulted socket channel is closed. */
+		private final void dispatch(final SelectionKey k) {
+			try {
+				if(k.isReadable())
+					rhandler.handle(k);
+				if(k.isValid() && k.isWritable())
+					whandler.handle(k);
 			} catch (Exception e) {
-				log.error("in idle sleep", e);
+				log.error(String.format("NET - handler fault on %s", k.attachment()), e);
+				((Connection) k.attachment()).close();
 			}
 		}
+		@Override final
+		public String toString() {
+			return String.format("reactor-%d", id);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// NetworkInterface.Connection
+	// ------------------------------------------------------------------------
+	/**
+	 * Per connection state, attached to the connection's {@link SelectionKey}.
+	 * Only ever touched by the owning {@link Reactor}'s thread, with the exception
+	 * of {@link #send(ByteBuffer...)} and the {@link Protocol.Responder} methods.
+	 */
+	static final class Connection implements Protocol.Responder {
+		/** max buffers per gathering write */
+		static final int GATHER_MAX = 64;
+
+		final SocketChannel chan;
+		final Reactor reactor;
+		/** request input buffer - pooled direct, so socket reads land in place - reused for the life of the connection */
+		final ByteBuffer in;
+		private final BufferPool.Buffer inbuf;
+		/** response output queue - drained by {@link #flush()} */
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		/** pooled buffers of out, in order - released as written */
+		private final ArrayDeque<BufferPool.Buffer> owned = new ArrayDeque<BufferPool.Buffer>();
+		private final ByteBuffer[] gather = new ByteBuffer[GATHER_MAX];
+		/** request decode flyweight */
+		final Protocol.Request req = new Protocol.Request();
+		SelectionKey key;
+
+		/** requests handed off to the dispatcher - null until the first */
+		Dispatcher.Strand strand;
+
+		/* -- admission control - reactor thread only -- */
+		private final Backpressure bp;
+		/** response bytes queued and not yet written */
+		private int queued;
+		/** requests dispatched and not yet responded to */
+		private int inflight;
+		private boolean suspended;
+		/** reads held while the connection's strand is parked - see {@link Dispatcher} */
+		private boolean held;
+
+		Connection(SocketChannel chan, Reactor reactor, BufferPool.Buffer inbuf, Backpressure bp) {
+			this.chan = chan;
+			this.reactor = reactor;
+			this.bp = bp;
+			this.inbuf = inbuf;
+			this.in = inbuf.buf;
+			in.clear();
+		}
+
+		/**
+		 * Queue a response for write.  Safe to call from any thread: if not on
+		 * the reactor thread, the enqueue is handed off to the reactor. 
+		 * Buffers must not be modified by caller after the call.
+		 * @param bs response bytes (position to limit) - written contiguously and in order
+		 */
+		final void send(final ByteBuffer... bs) {
+			if(reactor.inReactorThread()) {
+				responded(bs);
+				for(ByteBuffer b : bs) enqueue(b);
+				return;
+			}
+			reactor.execute(new Runnable() {
+				@Override final public void run() {
+					if(!chan.isOpen()) return;
+					responded(bs);
+					for(ByteBuffer b : bs) enqueue(b);
+					try {
+						flush();
+					} catch (IOException e) {
+						log.error(String.format("NET - flush fault on %s", Connection.this), e);
+						close();
+					}
+				}
+			});
+		}
+		/** as {@link #send(ByteBuffer...)} of h and body's buffer - body is released once written */
+		final void send(final ByteBuffer h, final BufferPool.Buffer body) {
+			if(reactor.inReactorThread()) {
+				responded(h, body.buf);
+				enqueue(h);
+				enqueue(body);
+				return;
+			}
+			reactor.execute(new Runnable() {
+				@Override final public void run() {
+					if(!chan.isOpen()) {
+						body.release();
+						return;
+					}
+					responded(h, body.buf);
+					enqueue(h);
+					enqueue(body);
+					try {
+						flush();
+					} catch (IOException e) {
+						log.error(String.format("NET - flush fault on %s", Connection.this), e);
+						close();
+					}
+				}
+			});
+		}
+		private final void enqueue(final BufferPool.Buffer b) {
+			owned.add(b);
+			enqueue(b.buf);
+		}
+		private final void enqueue(final ByteBuffer b) {
+			out.add(b);
+			if(key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0)
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+
+		// --- admission control ---
+
+		/** accounts for a request dispatched to the frame handler */
+		final void requested() {
+			inflight++;
+			bp.requests.incrementAndGet();
+		}
+		/** accounts for the queueing of the response to a request */
+		private final void responded(final ByteBuffer... bs) {
+			if(!chan.isOpen())
+				return;
+			int n = 0;
+			for(ByteBuffer b : bs)
+				n += b.remaining();
+			queued += n;
+			bp.queued.addAndGet(n);
+			if(inflight > 0) {
+				inflight--;
+				bp.requests.decrementAndGet();
+			}
+		}
+		/** accounts for written response bytes */
+		private final void written(final long n) {
+			queued -= n;
+			bp.queued.addAndGet(-n);
+		}
+
+		/**
+		 * Suspends reads (OP_READ interest) if over the connection's or the
+		 * global high watermarks.  Called after each read's requests are dispatched.
+		 * <p>
+		 * REVU: a read's complete frames are all dispatched before the check, so
+		 * limits may be exceeded by up to an input buffer's worth of requests.
+		 */
+		final void admit() {
+			if(suspended || !key.isValid())
+				return;
+			final boolean overloaded = bp.overloaded();
+			if(!overloaded && queued <= bp.connHigh && inflight <= bp.connInflight)
+				return;
+			suspend();
+			if(overloaded) {
+				bp.saturate();
+				bp.onRelief(); // in case of relief before saturate
+			}
+		}
+		/** suspends reads until the connection's strand is rescheduled - see {@link #unhold()} */
+		final void hold() {
+			held = true;
+			if(!suspended && key.isValid())
+				suspend();
+		}
+		/** releases reads held by {@link #hold()} - resumed if otherwise under the watermarks */
+		final void unhold() {
+			held = false;
+			if(suspended && resume())
+				reactor.suspended.remove(this);
+		}
+		private final void suspend() {
+			suspended = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			reactor.suspended.add(this);
+			m_suspends.increment();
+			log.log(Level.FINEST, "NET - reads suspended on %s - queued:%d inflight:%d held:%b", this, queued, inflight, held);
+		}
+		/**
+		 * Resumes reads if under the connection's low watermarks, not held, and 
+		 * reads are not globally suspended.
+		 * @return true if not (or no longer) suspended
+		 */
+		final boolean resume() {
+			if(!suspended)
+				return true;
+			if(held || queued > bp.connLow || inflight > bp.connInflight / 2 || bp.saturated())
+				return false;
+			suspended = false;
+			if(key.isValid())
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			log.log(Level.FINEST, "NET - reads resumed on %s", this);
+			return true;
+		}
+
+		/** @return true if there are queued response bytes not yet written */
+		final boolean pending() {
+			return !out.isEmpty();
+		}
+
+		/**
+		 * Gathering write of queued responses, as much as the socket will take.
+		 * OP_WRITE interest is set while bytes remain and cleared when the queue
+		 * is drained.
+		 * @throws IOException
+		 */
+		final void flush() throws IOException {
+			while(!out.isEmpty()) {
+				int n = 0;
+				for(ByteBuffer b : out) {
+					gather[n++] = b;
+					if(n == GATHER_MAX) break;
+				}
+				try {
+					final long w = chan.write(gather, 0, n);
+					written(w);
+					m_writebytes.add(w);
+					m_writes.increment();
+				} finally {
+					Arrays.fill(gather, 0, n, null);
+				}
+				int drained = 0;
+				while(drained < n && !out.peek().hasRemaining()) {
+					final ByteBuffer b = out.poll();
+					if(!owned.isEmpty() && owned.peek().buf == b)
+						owned.poll().release();
+					drained++;
+				}
+				if(drained < n)
+					break; // socket buffer is full
+			}
+			if(suspended && resume())
+				reactor.suspended.remove(this);
+			bp.onRelief();
+			if(!key.isValid())
+				return;
+			final int ops = key.interestOps();
+			if(out.isEmpty()) {
+				if((ops & SelectionKey.OP_WRITE) != 0)
+					key.interestOps(ops & ~SelectionKey.OP_WRITE);
+			} else if ((ops & SelectionKey.OP_WRITE) == 0) {
+				key.interestOps(ops | SelectionKey.OP_WRITE);
+			}
+		}
+
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, ByteBuffer body) {
+			final int paylen = body == null ? 0 : body.remaining();
+			final ByteBuffer h = Protocol.Frames.header(op, reqid, status, paylen, false, 0);
+			if(body == null)
+				send(h);
+			else
+				send(h, body);
+		}
+		@Override final
+		public void reply(Protocol.Op op, long reqid, Protocol.Status status, long v) {
+			send(Protocol.Frames.header(op, reqid, status, Codec.LONG_BYTES, true, v));
+		}
+		@Override final
+		public void replyPooled(Protocol.Op op, long reqid, Protocol.Status status, BufferPool.Buffer body) {
+			send(Protocol.Frames.header(op, reqid, status, body.buf.remaining(), false, 0), body);
+		}
+
+		/** cancels the key and closes the channel.  Idempotent. */
+		final void close() {
+			if(chan.isOpen()) {
+				m_connections.add(-1);
+				inbuf.release();
+				bp.queued.addAndGet(-queued);
+				bp.requests.addAndGet(-inflight);
+				queued = inflight = 0;
+				if(suspended)
+					reactor.suspended.remove(this);
+				bp.onRelief();
+			}
+			out.clear();
+			for(BufferPool.Buffer b : owned)
+				b.release();
+			owned.clear();
+			if(key != null)
+				key.cancel();
+			try {
+				chan.close();
+			} catch (IOException e) {
+				log.warning("NET - on connection close", e);
+			}
+			log.log(Level.FINE, "NET - closed %s", this);
+		}
+		@Override final
+		public String toString() {
+			return String.format("conn:{%s %s}", reactor, chan);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// NetworkInterface.Backpressure
+	// ------------------------------------------------------------------------
+	/**
+	 * Admission control watermarks and the global (all connections) counts.
+	 * <p>
+	 * A connection stops reading - OP_READ interest is cleared - while its
+	 * queued response bytes are above {@link Servant.Property#DB_NET_CONN_HIGH_WATER},
+	 * or its in flight requests are above {@link Servant.Property#DB_NET_CONN_INFLIGHT},
+	 * and resumes once under {@link Servant.Property#DB_NET_CONN_LOW_WATER} and half
+	 * the in flight limit, respectively.  Likewise, once the sum over all connections
+	 * is above {@link Servant.Property#DB_NET_HIGH_WATER} or {@link Servant.Property#DB_NET_INFLIGHT},
+	 * every connection stops reading on its next read, until the sums are under
+	 * {@link Servant.Property#DB_NET_LOW_WATER} and half the in flight limit.
+	 * <p>
+	 * Unread request bytes are bounded by the connection's input buffer - and
+	 * beyond that by the socket buffers - as suspended connections are not read;
+	 * TCP flow control then pushes back on the client.
+	 */
+	static final class Backpressure {
+		final int connHigh;
+		final int connLow;
+		final int connInflight;
+		final long high;
+		final long low;
+		final int inflight;
+		/** queued response bytes of all connections */
+		final AtomicLong queued = new AtomicLong();
+		/** in flight requests of all connections */
+		final AtomicInteger requests = new AtomicInteger();
+		/** set while over the global high watermarks and until relieved */
+		private final AtomicBoolean saturated = new AtomicBoolean();
+		private final Reactor[] reactors;
+
+		Backpressure(final Servant.Context context, final Reactor[] reactors) {
+			this.reactors = reactors;
+			connHigh = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_CONN_HIGH_WATER));
+			connLow = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_CONN_LOW_WATER));
+			connInflight = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_CONN_INFLIGHT));
+			high = Long.parseLong(context.getProperty(Servant.Property.DB_NET_HIGH_WATER));
+			low = Long.parseLong(context.getProperty(Servant.Property.DB_NET_LOW_WATER));
+			inflight = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_INFLIGHT));
+			Assert.isTrue(connLow >= 0 && connLow <= connHigh, "connection low watermark is within [0, high]", IllegalArgumentException.class);
+			Assert.isTrue(low >= 0 && low <= high, "low watermark is within [0, high]", IllegalArgumentException.class);
+			Assert.isTrue(connInflight > 0 && inflight > 0, "in flight limits are positive", IllegalArgumentException.class);
+
+			Specification.metrics.gauge("net.queued.bytes", new Metrics.Gauge() {
+				@Override final public long value() { return queued.get(); }
+			});
+			Specification.metrics.gauge("net.inflight", new Metrics.Gauge() {
+				@Override final public long value() { return requests.get(); }
+			});
+		}
+
+		/** @return true if above the global high watermarks */
+		final boolean overloaded() {
+			return queued.get() > high || requests.get() > inflight;
+		}
+		/** @return true if under the global low watermarks */
+		final boolean relieved() {
+			return queued.get() <= low && requests.get() <= inflight / 2;
+		}
+		/** @return true if reads are globally suspended */
+		final boolean saturated() {
+			return saturated.get();
+		}
+		final void saturate() {
+			if(saturated.compareAndSet(false, true)) {
+				m_saturations.increment();
+				log.log(Level.FINE, "NET - saturated - queued:%d inflight:%d", queued.get(), requests.get());
+			}
+		}
+		/** on relief of saturation, resumes the suspended connections of all reactors */
+		final void onRelief() {
+			if(!saturated.get() || !relieved())
+				return;
+			if(saturated.compareAndSet(true, false)) {
+				log.log(Level.FINE, "NET - relieved - queued:%d inflight:%d", queued.get(), requests.get());
+				for(Reactor r : reactors)
+					r.resumeAll();
+			}
+		}
+		@Override final
+		public String toString() {
+			return String.format("backpressure:{conn:%d/%d bytes %d requests - all:%d/%d bytes %d requests}", connHigh, connLow, connInflight, high, low, inflight);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// NetworkInterface.FrameHandler
+	// ------------------------------------------------------------------------
+	/**
+	 * Consumer of decoded request frames.  The frame bytes are only valid for 
+	 * the duration of the call - buffer is reused by the read handler.
+	 */
+	interface FrameHandler {
+		/**
+		 * @param conn the connection of the request
+		 * @param b buffer containing the frame
+		 * @param off offset of the frame (header) in b
+		 * @param len length of the frame - header and payload
+		 */
+		void onFrame(Connection conn, ByteBuffer b, int off, int len) throws Exception;
+	}
+
+	// ------------------------------------------------------------------------
+	// NetworkInterface.ProtocolHandler
+	// ------------------------------------------------------------------------
+	/**
+	 * Decodes {@link Protocol} request frames and serves them via the 
+	 * {@link Protocol.Service} bound in the context.  Absent a service, all 
+	 * requests are responded to with {@link Protocol.Status#UNSUPPORTED}.
+	 * <p>
+	 * If a {@link Dispatcher} is set, requests that the service can not serve
+	 * inline - see {@link Protocol.InlineService} - are handed off to it, as
+	 * are all requests of a connection that follow one so handed off.
+	 * <p>
+	 * Also used by the {@link BlockingNetworkInterface}, via {@link #serve}.
+	 */
+	static class ProtocolHandler extends Servant.Component.Base implements FrameHandler {
+		private Protocol.Service service;
+		/** null for inline service of all requests */
+		Dispatcher dispatcher;
+
+		@Override final
+		public void onFrame(Connection conn, ByteBuffer b, int off, int len) throws Exception {
+			if(dispatcher == null) {
+				serve(conn.req, b, off, len, conn);
+				return;
+			}
+			// counted here, once, whichever way the request is served
+			m_requests.increment();
+			if(conn.strand == null)
+				conn.strand = dispatcher.new Strand(this, conn);
+			if(conn.strand.idle() && serveInline(conn.req, b, off, len, conn)) {
+				Dispatcher.m_inline.increment();
+				return;
+			}
+			conn.strand.submit(b, off, len);
+		}
+		/**
+		 * Decodes and serves the request frame.
+		 * @param req decode flyweight
+		 * @param conn responder of the request
+		 */
+		final void serve(final Protocol.Request req, ByteBuffer b, int off, int len, final Protocol.Responder conn) throws Exception {
+			m_requests.increment();
+			serveDeferred(req, b, off, len, conn);
+		}
+		/** as {@link #serve} - of a request counted by the caller, see {@link #onFrame} */
+		final void serveDeferred(final Protocol.Request req, ByteBuffer b, int off, int len, final Protocol.Responder conn) throws Exception {
+			if(respond(req, b, off, len, conn))
+				return;
+			final long t0 = System.nanoTime();
+			service.serve(req, conn);
+			m_serve.since(t0);
+		}
+		/**
+		 * Decodes the request frame and serves it if possible without blocking.
+		 * The request is counted by the caller, see {@link #onFrame}.
+		 * @return false if not served - in which case it is to be served via {@link #serveDeferred}
+		 */
+		final boolean serveInline(final Protocol.Request req, ByteBuffer b, int off, int len, final Protocol.Responder conn) throws Exception {
+			if(respond(req, b, off, len, conn))
+				return true;
+			if(!(service instanceof Protocol.InlineService))
+				return false;
+			final long t0 = System.nanoTime();
+			if(!((Protocol.InlineService) service).serveInline(req, conn))
+				return false;
+			m_serve.since(t0);
+			return true;
+		}
+		/**
+		 * Decodes the request, and responds to bad requests, STATS, and all 
+		 * requests absent a service.
+		 * @return true if responded to
+		 */
+		private final boolean respond(final Protocol.Request req, ByteBuffer b, int off, int len, final Protocol.Responder conn) throws Exception {
+			final Protocol.Status status = req.decode(b, off, len);
+			if(status != Protocol.Status.OK) {
+				m_badrequests.increment();
+				log.log(Level.FINE, "NET - %s on %s from %s", status, req, conn);
+				conn.reply(req.op, req.reqid, status, null);
+				return true;
+			}
+			if(req.op == Protocol.Op.STATS) {
+				final String prefix = new String(req.key(), "UTF-8");
+				conn.reply(req.op, req.reqid, Protocol.Status.OK, ByteBuffer.wrap(Specification.metrics.dump(prefix).getBytes("UTF-8")));
+				return true;
+			}
+			if(service() == null) {
+				conn.reply(req.op, req.reqid, Protocol.Status.UNSUPPORTED, null);
+				return true;
+			}
+			return false;
+		}
+		private final Protocol.Service service() {
+			if(service == null)
+				service = context.get(Servant.CtxBinding.protocol_service.id(), Protocol.Service.class);
+			return service;
+		}
 	}
 
 	// ------------------------------------------------------------------------
@@ -273,50 +1017,136 @@ class NetworkInterface extends Servant.Component.Base implements Runnable{
 	// ------------------------------------------------------------------------
 	// NetworkInterface.AcceptHandler
 	// ------------------------------------------------------------------------
+	/**
+	 * Accepts pending connections of the selected listener - up to
+	 * {@link Servant.Property#DB_NET_ACCEPT_BATCH} per selection, so a reconnect
+	 * storm drains the accept queue without starving the other listeners - and
+	 * hands them to the reactors round-robin.
+	 */
 	private static class SSChanAcceptHandler extends NetworkInterface.Handler.Base {
+		/** round-robin reactor assignment sequence */
+		private final AtomicInteger next = new AtomicInteger();
+		private int batch;
+		private boolean nodelay;
+		private int sndbuf;
+
+		@SuppressWarnings("unchecked")
+		@Override final
+		public <T> T initialize(Class<T> vt) throws Throwable {
+			batch = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_ACCEPT_BATCH));
+			nodelay = Boolean.parseBoolean(context.getProperty(Servant.Property.DB_NET_TCP_NODELAY));
+			sndbuf = Integer.parseInt(context.getProperty(Servant.Property.DB_NET_SO_SNDBUF));
+			Assert.isTrue(batch > 0, "accept batch is positive", IllegalArgumentException.class);
+			return (T) this;
+		}
+
 		@Override final
 		public void handle(final SelectionKey key) throws Exception {
 			Assert.notNull(key, "key", IllegalArgumentException.class);
 			Assert.isTrue(key.isAcceptable(), "key should be acceptable", IllegalArgumentException.class);
 
-			ServerSocketChannel chan = null;
-			chan = context.get(CtxBinding.server_socket_chan.id(), ServerSocketChannel.class);
-
-			SocketChannel sch = chan.accept();
-			log.log(Level.FINE, "Accepted connection - %s", sch);
-
-			Selector rsel = context.get(CtxBinding.ssch_read_selector.id(), Selector.class);
-			SSChanReadHandler reqhdlr = context.get(CtxBinding.ssch_read_handler.id(), SSChanReadHandler.class);
-			sch.configureBlocking(false);
-			sch.register(rsel, SelectionKey.OP_READ, reqhdlr);
-			log.log(Level.FINEST, "%s registered with %s OP_READs to be handled by - %s", sch, rsel, reqhdlr);
-
-			log.warning("did not register for OP_WRITE -- IMPLEMENT WRITE HANDLER ..");
+			final ServerSocketChannel chan = (ServerSocketChannel) key.channel();
+			final Reactor[] reactors = context.get(CtxBinding.net_reactors.id(), Reactor[].class);
+			for(int i=0; i<batch; i++) {
+				final SocketChannel sch = chan.accept();
+				if(sch == null)
+					return;
+				log.log(Level.FINE, "Accepted connection - %s", sch);
+				m_accepts.increment();
+				try {
+					final Socket socket = sch.socket();
+					socket.setTcpNoDelay(nodelay);
+					if(sndbuf > 0)
+						socket.setSendBufferSize(sndbuf);
+					sch.configureBlocking(false);
+				} catch (IOException e) {
+					log.warning(String.format("NET - failed to configure %s", sch), e);
+					sch.close();
+					continue;
+				}
+				final Reactor reactor = reactors[(next.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+				reactor.register(sch);
+			}
 		}
 	}
 
 	// ------------------------------------------------------------------------
 	// NetworkInterface.RequestHandler
 	// ------------------------------------------------------------------------
+	/**
+	 * Incremental request frame decoder.  Frames are a fixed size {@link Protocol}
+	 * header, which leads with the payload length, followed by the payload.
+	 * Reads accumulate in the connection's input buffer, all complete frames
+	 * are dispatched in place to the {@link FrameHandler}, and any partial 
+	 * frame is compacted to the head of the buffer for the next read.
+	 */
 	private static class SSChanReadHandler extends NetworkInterface.Handler.Base{
+		private FrameHandler fhandler;
+
 		@Override final
 		public void handle(SelectionKey key) throws Exception {
 			Assert.notNull(key, "key", IllegalArgumentException.class);
 			Assert.isTrue(key.isReadable(), "key should be readable", IllegalArgumentException.class);
 
-			key.channel().close(); // TEMP
-			log.warning("closed socket channel -- IMPLEMENT READ HANDLER ..");
-			throw new RuntimeException("Handler#handle NOT IMPLEMENTED");
+			final Connection conn = (Connection) key.attachment();
+			final ByteBuffer in = conn.in;
+			final int n = conn.chan.read(in);
+			if(n < 0) {
+				log.log(Level.FINE, "NET - EOF on %s", conn);
+				conn.close();
+				return;
+			}
+			m_reads.increment();
+			m_readbytes.add(n);
+
+			in.flip();
+			final int maxlen = in.capacity() - Protocol.HEADER_BYTES;
+			while(in.remaining() >= Protocol.HEADER_BYTES) {
+				final int pos = in.position();
+				final int paylen = Protocol.Frames.payloadLength(in, pos);
+				if(paylen < 0 || paylen > maxlen) {
+					in.clear();
+					throw new IOException(String.format("invalid frame payload length %d - max is %d", paylen, maxlen));
+				}
+				final int len = Protocol.HEADER_BYTES + paylen;
+				if(in.remaining() < len)
+					break;
+
+				in.position(pos + len);
+				conn.requested();
+				fhandler().onFrame(conn, in, pos, len);
+				if(!conn.chan.isOpen())
+					return;
+			}
+			in.compact();
+			conn.admit();
+
+			// responses to all the pipelined requests of this read go out in one write 
+			if(conn.pending())
+				conn.flush();
+		}
+		private final FrameHandler fhandler() {
+			if(fhandler == null)
+				fhandler = context.get(CtxBinding.ssch_frame_handler.id(), FrameHandler.class);
+			return fhandler;
 		}
 	}
 
 	// ------------------------------------------------------------------------
 	// NetworkInterface.ResponseHandler
 	// ------------------------------------------------------------------------
+	/**
+	 * Flushes the connection's response queue.  Only selected while there are
+	 * pending response bytes - see {@link Connection#flush()}.
+	 */
 	private static class SSChanWriteHandler extends NetworkInterface.Handler.Base {
 		@Override final
 		public void handle(SelectionKey key) throws Exception {
-			throw new RuntimeException("Handler#handle NOT IMPLEMENTED");
+			Assert.notNull(key, "key", IllegalArgumentException.class);
+			Assert.isTrue(key.isWritable(), "key should be writable", IllegalArgumentException.class);
+
+			final Connection conn = (Connection) key.attachment();
+			conn.flush();
 		}
 	}
 }
@@ -0,0 +1,315 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ove.x0ff5e7db.util.Assert;
+import ove.x0ff5e7db.util.binary.Hash;
+
+/**
+ * Off-heap open addressing (linear probe) hash index of keys to 64 bit image
+ * offsets.
+ * <p>
+ * Keys are not stored in the index.  A slot is 16 bytes of direct memory:
+ * <pre>
+ * [offset:int64][hash:int32][-:int32]
+ * </pre>
+ * and key equality is resolved by the {@link Keys} (i.e. the image) on hash match.
+ * Buckets are selected by the {@link Hash} provider's hash of the key.  Keys are
+ * hashed and matched in place - index operations do not allocate.
+ * <p>
+ * The table doubles when its load exceeds {@link #LOAD_FACTOR}.  Resizing is
+ * incremental: the new table takes all inserts and each mutation migrates
+ * {@link #MIGRATE_STEP} slots of the old table, which is searched (after the
+ * new) until fully migrated.  Deletes in the table being migrated leave
+ * tombstones; otherwise deletion is by backward shift.
+ * At the capacity limit, puts of new keys fail with an {@link IllegalStateException}
+ * and leave the index unchanged.
+ * <p>
+ * Reads are concurrent; mutations are exclusive.
+ *
+ * @author alphazero
+ */
+final class OffsetIndex {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	static final int SLOT_BYTES = 16;
+	static final int HASH_OFF = 8;
+	static final long EMPTY = -1L;
+	static final long DELETED = -2L;
+	static final float LOAD_FACTOR = 0.75f;
+	static final int MIGRATE_STEP = 64;
+	/** largest power of 2 table whose slots fit a ByteBuffer */
+	static final int MAX_CAPACITY = 1 << 26;
+
+	private final Hash hash;
+	private final Keys keys;
+	private final int maxCapacity;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/* -- guarded by lock -- */
+	private Table table;
+	/** table being migrated - null if not resizing */
+	private Table prior;
+	private int cursor;
+	private int size;
+
+	// ------------------------------------------------------------------------
+	// OffsetIndex.Keys
+	// ------------------------------------------------------------------------
+	/** key equality resolver */
+	interface Keys {
+		/** @return true if the key of the record at offset equals key b[off, off+len) */
+		boolean matches(long offset, ByteBuffer b, int off, int len);
+	}
+
+	// ------------------------------------------------------------------------
+	// constructor
+	// ------------------------------------------------------------------------
+	/**
+	 * @param hash bucket hash provider
+	 * @param capacity initial expected number of keys
+	 * @param keys key equality resolver
+	 */
+	OffsetIndex(final Hash hash, final int capacity, final Keys keys) {
+		this(hash, capacity, keys, MAX_CAPACITY);
+	}
+	/**
+	 * @param maxCapacity table capacity limit in slots - a power of 2 no greater than {@link #MAX_CAPACITY}
+	 */
+	OffsetIndex(final Hash hash, final int capacity, final Keys keys, final int maxCapacity) {
+		Assert.notNull(hash, "hash", IllegalArgumentException.class);
+		Assert.notNull(keys, "keys", IllegalArgumentException.class);
+		Assert.isTrue(capacity > 0, "capacity is positive", IllegalArgumentException.class);
+		Assert.isTrue(maxCapacity >= 2 && maxCapacity <= MAX_CAPACITY && Integer.bitCount(maxCapacity) == 1, "maxCapacity is a power of 2 in [2, MAX_CAPACITY]", IllegalArgumentException.class);
+		this.hash = hash;
+		this.keys = keys;
+		this.maxCapacity = maxCapacity;
+		final int slots = Integer.highestOneBit((int) Math.min((long) (capacity / LOAD_FACTOR) * 2 - 1, maxCapacity));
+		this.table = new Table(Math.max(slots, 2));
+	}
+
+	// ------------------------------------------------------------------------
+	// index api
+	// ------------------------------------------------------------------------
+	/* 
+	 * keys are b[off, off+len) 
+	 */
+	/** @return offset of key, or {@link #EMPTY} if none */
+	final long get(final ByteBuffer b, final int off, final int len) {
+		final int h = hash.hash(b, off, len);
+		lock.readLock().lock();
+		try {
+			final long offset = table.find(h, b, off, len, keys, false);
+			if(offset != EMPTY || prior == null)
+				return offset;
+			return prior.find(h, b, off, len, keys, false);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return prior offset of key, or {@link #EMPTY} if none */
+	final long put(final ByteBuffer b, final int off, final int len, final long offset) {
+		Assert.isTrue(offset >= 0, "offset is non-negative", IllegalArgumentException.class);
+		final int h = hash.hash(b, off, len);
+		lock.writeLock().lock();
+		try {
+			long previous = table.replace(h, b, off, len, keys, offset);
+			if(previous == EMPTY) {
+				if(prior != null)
+					previous = prior.find(h, b, off, len, keys, true);
+				if(previous == EMPTY) {
+					// refuse new keys (only) before anything is changed
+					Assert.isTrue(table.capacity < maxCapacity || size < table.capacity * LOAD_FACTOR, "index capacity exceeded", IllegalStateException.class);
+					size++;
+				}
+				table.insert(h, offset);
+			}
+			rehash();
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** @return removed offset of key, or {@link #EMPTY} if none */
+	final long remove(final ByteBuffer b, final int off, final int len) {
+		final int h = hash.hash(b, off, len);
+		lock.writeLock().lock();
+		try {
+			long previous = table.find(h, b, off, len, keys, true);
+			if(previous == EMPTY && prior != null)
+				previous = prior.find(h, b, off, len, keys, true);
+			if(previous != EMPTY)
+				size--;
+			rehash();
+			return previous;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	final int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return current table capacity in slots */
+	final int capacity() {
+		lock.readLock().lock();
+		try {
+			return table.capacity;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** grow and/or migrate - under write lock */
+	private final void rehash() {
+		if(prior == null && size > table.capacity * LOAD_FACTOR && table.capacity < maxCapacity) {
+			// allocate first - if it fails the index is unchanged
+			final Table grown = new Table(table.capacity * 2);
+			prior = table;
+			prior.migrating = true;
+			table = grown;
+			cursor = 0;
+		}
+		if(prior == null)
+			return;
+		final int end = Math.min(cursor + MIGRATE_STEP, prior.capacity);
+		for(; cursor < end; cursor++) {
+			final long offset = prior.offset(cursor);
+			if(offset >= 0)
+				table.insert(prior.hash(cursor), offset);
+			if(offset != EMPTY)
+				prior.slots.putLong(cursor * SLOT_BYTES, DELETED);
+		}
+		if(cursor == prior.capacity)
+			prior = null;
+	}
+
+	/** spreads the provider hash over the low (bucket) bits */
+	static final int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	// ------------------------------------------------------------------------
+	// OffsetIndex.Table
+	// ------------------------------------------------------------------------
+	/** a fixed capacity table of slots */
+	private static final class Table {
+		final int capacity;
+		final int mask;
+		final ByteBuffer slots;
+		/** if set, deletes leave tombstones as slots are migrated in order */
+		boolean migrating;
+
+		Table(int capacity) {
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.nativeOrder());
+			for(int i=0; i<capacity; i++)
+				slots.putLong(i * SLOT_BYTES, EMPTY);
+		}
+		final long offset(final int i) { return slots.getLong(i * SLOT_BYTES); }
+		final int hash(final int i) { return slots.getInt(i * SLOT_BYTES + HASH_OFF); }
+		final int home(final int h) { return spread(h) & mask; }
+
+		/**
+		 * @param delete if true the matched slot is deleted
+		 * @return offset of key, or {@link #EMPTY} if none
+		 */
+		final long find(final int h, final ByteBuffer b, final int off, final int len, final Keys keys, final boolean delete) {
+			for(int i = home(h); ; i = (i + 1) & mask) {
+				final long offset = offset(i);
+				if(offset == EMPTY)
+					return EMPTY;
+				if(offset != DELETED && hash(i) == h && keys.matches(offset, b, off, len)) {
+					if(delete)
+						delete(i);
+					return offset;
+				}
+			}
+		}
+
+		/** @return prior offset of key if replaced, or {@link #EMPTY} if none */
+		final long replace(final int h, final ByteBuffer b, final int off, final int len, final Keys keys, final long update) {
+			for(int i = home(h); ; i = (i + 1) & mask) {
+				final long offset = offset(i);
+				if(offset == EMPTY)
+					return EMPTY;
+				if(offset != DELETED && hash(i) == h && keys.matches(offset, b, off, len)) {
+					slots.putLong(i * SLOT_BYTES, update);
+					return offset;
+				}
+			}
+		}
+
+		/** insert of a key known to be absent */
+		final void insert(final int h, final long offset) {
+			int i = home(h);
+			while(offset(i) >= 0)
+				i = (i + 1) & mask;
+			slots.putLong(i * SLOT_BYTES, offset);
+			slots.putInt(i * SLOT_BYTES + HASH_OFF, h);
+		}
+
+		/** 
+		 * backward shift deletion.  Tables being migrated must not shift slots
+		 * back across the migration cursor and so use tombstones. 
+		 */
+		private final void delete(int i) {
+			if(migrating) {
+				slots.putLong(i * SLOT_BYTES, DELETED);
+				return;
+			}
+			int j = i;
+			for(;;) {
+				j = (j + 1) & mask;
+				final long offset = offset(j);
+				if(offset == EMPTY) break;
+				final int h = home(hash(j));
+				// move slot j to i if its home h is not cyclically in (i, j]
+				if(i <= j ? (h <= i || h > j) : (h <= i && h > j)) {
+					slots.putLong(i * SLOT_BYTES, offset);
+					slots.putInt(i * SLOT_BYTES + HASH_OFF, hash(j));
+					i = j;
+				}
+			}
+			slots.putLong(i * SLOT_BYTES, EMPTY);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.binary.Codec;
+
+/**
+ * 0x0FF5E7DB binary wire protocol.
+ * <p>
+ * Requests and responses share the same fixed size header, followed by a
+ * payload of the length specified in the header.  All values are big-endian.
+ * <pre>
+ * header:
+ *   [paylen:int32][op:int8][status:int8][flags:int16][reqid:int64]
+ *
+ * request payloads:
+ *   GET     [keylen:uint16][key]
+ *   PUT     [keylen:uint16][key][value]
+ *   DELETE  [keylen:uint16][key]
+ *   APPEND  [keylen:uint16][key][offset:int64][data]
+ *   STATS   - | [keylen:uint16][prefix]
+ *
+ * response payloads (status OK):
+ *   GET     [value]
+ *   PUT     [offset:int64]
+ *   DELETE  -
+ *   APPEND  [length:int64]
+ *   STATS   [metrics text - see Metrics#dump]
+ * </pre>
+ * APPEND appends data to the value of key at the specified offset, which must
+ * equal the current length of the value (or be {@link #APPEND_AT_END}), else
+ * the response is {@link Status#CONFLICT} with the current length.
+ * <p>
+ * Clients may pipeline any number of requests per connection.  Responses
+ * carry the request's reqid and are <b>not</b> guaranteed to be in request order.
+ * <p>
+ * Frames are decoded in place and may be in heap or direct buffers.
+ *
+ * @author alphazero
+ */
+public interface Protocol {
+
+	int HEADER_BYTES = 16;
+	/* header field offsets */
+	int PAYLEN_OFF = 0;
+	int OP_OFF     = 4;
+	int STATUS_OFF = 5;
+	int FLAGS_OFF  = 6;
+	int REQID_OFF  = 8;
+
+	int KEYLEN_BYTES = Codec.SHORT_BYTES;
+	int MAX_KEY_BYTES = 0xFFFF;
+	long APPEND_AT_END = -1L;
+
+	// ------------------------------------------------------------------------
+	// Protocol.Op
+	// ------------------------------------------------------------------------
+	public enum Op {
+		GET     (0x01),
+		PUT     (0x02),
+		DELETE  (0x03),
+		APPEND  (0x04),
+		/* -- admin -- */
+		STATS   (0x10);
+		final public byte code;
+		Op(int code) {
+			this.code = (byte) code;
+		}
+		private static final Op[] bycode = new Op[256];
+		static {
+			for(Op op : Op.values()) bycode[op.code & 0xFF] = op;
+		}
+		/** @return the op for the code, or null if not a valid op code */
+		public static Op valueOf(final byte code) {
+			return bycode[code & 0xFF];
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Status
+	// ------------------------------------------------------------------------
+	public enum Status {
+		OK            (0x00),
+		NOT_FOUND     (0x01),
+		CONFLICT      (0x02),
+		BAD_REQUEST   (0x10),
+		UNSUPPORTED   (0x11),
+		ERROR         (0x20);
+		final public byte code;
+		Status(int code) {
+			this.code = (byte) code;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Request
+	// ------------------------------------------------------------------------
+	/**
+	 * Decoded view of a request frame.  Flyweight - references the frame bytes
+	 * in place and is only valid for the duration of a {@link Service#serve} call.
+	 */
+	public static final class Request implements Log.Mutable {
+		Op op;
+		long reqid;
+		/** frame buffer */
+		ByteBuffer buf;
+		int keyoff;
+		int keylen;
+		/** APPEND only */
+		long offset;
+		int dataoff;
+		int datalen;
+
+		/**
+		 * Decodes the request frame in place.
+		 * @param b buffer containing the frame
+		 * @param off offset of the frame (header) in b
+		 * @param len frame length - header and payload
+		 * @return {@link Status#OK} if decoded, or the error status for the response
+		 */
+		public final Status decode(final ByteBuffer b, final int off, final int len) {
+			this.buf = b;
+			this.reqid = Codec.Binary.BigEndian.readLong(b, off + REQID_OFF);
+			this.op = Op.valueOf(b.get(off + OP_OFF));
+			if(op == null)
+				return Status.UNSUPPORTED;
+
+			final int end = off + len;
+			int p = off + HEADER_BYTES;
+			if(op == Op.STATS)
+				return decodeStats(b, p, end);
+			if(end - p < KEYLEN_BYTES)
+				return Status.BAD_REQUEST;
+			keylen = Codec.Binary.BigEndian.readShort(b, p) & 0xFFFF;
+			keyoff = p += KEYLEN_BYTES;
+			if(keylen == 0 || end - p < keylen)
+				return Status.BAD_REQUEST;
+			p += keylen;
+
+			offset = 0;
+			if(op == Op.APPEND) {
+				if(end - p < Codec.LONG_BYTES)
+					return Status.BAD_REQUEST;
+				offset = Codec.Binary.BigEndian.readLong(b, p);
+				p += Codec.LONG_BYTES;
+			}
+			dataoff = p;
+			datalen = end - p;
+			if((op == Op.GET || op == Op.DELETE) && datalen != 0)
+				return Status.BAD_REQUEST;
+			return Status.OK;
+		}
+
+		/** STATS payload is empty or an optional key - the metric name prefix */
+		private final Status decodeStats(final ByteBuffer b, final int p, final int end) {
+			offset = 0;
+			keyoff = dataoff = p;
+			keylen = datalen = 0;
+			if(end == p)
+				return Status.OK;
+			if(end - p < KEYLEN_BYTES)
+				return Status.BAD_REQUEST;
+			keylen = Codec.Binary.BigEndian.readShort(b, p) & 0xFFFF;
+			keyoff = p + KEYLEN_BYTES;
+			dataoff = end;
+			return end - keyoff == keylen ? Status.OK : Status.BAD_REQUEST;
+		}
+
+		public final Op op() { return op; }
+		public final long reqid() { return reqid; }
+		/** @return copy of the key bytes - note: allocates */
+		public final byte[] key() {
+			final byte[] k = new byte[keylen];
+			final ByteBuffer b = buf.duplicate();
+			b.limit(keyoff + keylen).position(keyoff);
+			b.get(k);
+			return k;
+		}
+		@Override final
+		public String toString() {
+			return String.format("req:{%s reqid:%d keylen:%d offset:%d datalen:%d}", op, reqid, keylen, offset, datalen);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Responder
+	// ------------------------------------------------------------------------
+	/**
+	 * Sink for responses to requests of a connection.  Implementations must
+	 * be thread-safe, as responses may be completed from any thread.
+	 */
+	public interface Responder {
+		/**
+		 * @param body response payload - may be null.  Must not be modified after the call.
+		 */
+		void reply(Op op, long reqid, Status status, ByteBuffer body);
+		/** response with a single int64 payload */
+		void reply(Op op, long reqid, Status status, long v);
+		/**
+		 * As {@link #reply(Op, long, Status, ByteBuffer)}, and the responder takes
+		 * ownership of body - released once written, or dropped.
+		 */
+		void replyPooled(Op op, long reqid, Status status, BufferPool.Buffer body);
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Service
+	// ------------------------------------------------------------------------
+	/** Request processing contract of the server's back-end */
+	public interface Service {
+		/**
+		 * Serve the request.  The request view is only valid for the duration
+		 * of the call but the response may be completed later, from any thread.
+		 * @param req decoded request
+		 * @param responder for the response
+		 */
+		void serve(Request req, Responder responder);
+	}
+
+	/**
+	 * A {@link Service} that can serve some requests without blocking - e.g.
+	 * from memory - and so on the caller's (reactor) thread.
+	 */
+	public interface InlineService extends Service {
+		/**
+		 * Serve the request if that does not block on I/O.
+		 * @return true if served - else the request is to be served via {@link #serve}
+		 */
+		boolean serveInline(Request req, Responder responder);
+	}
+
+	// ------------------------------------------------------------------------
+	// Protocol.Frames
+	// ------------------------------------------------------------------------
+	/** frame encode/decode utilities */
+	public static final class Frames {
+		private Frames() {}
+		/** @return the payload length of the frame with header at off */
+		public static int payloadLength(final ByteBuffer b, final int off) {
+			return Codec.Binary.BigEndian.readInt(b, off + PAYLEN_OFF);
+		}
+		/** @return response header, optionally followed by an int64 value, ready to write */
+		public static ByteBuffer header(Op op, long reqid, Status status, int paylen, boolean withlong, long v) {
+			final byte[] h = new byte[HEADER_BYTES + (withlong ? Codec.LONG_BYTES : 0)];
+			Codec.Binary.BigEndian.writeInt(paylen, h, PAYLEN_OFF);
+			h[OP_OFF] = op == null ? 0 : op.code;
+			h[STATUS_OFF] = status.code;
+			Codec.Binary.BigEndian.writeLong(reqid, h, REQID_OFF);
+			if(withlong)
+				Codec.Binary.BigEndian.writeLong(v, h, HEADER_BYTES);
+			return ByteBuffer.wrap(h);
+		}
+	}
+}
@@ -29,6 +29,10 @@ import java.io.Reader;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.HashMap;
 import java.util.Map;
@@ -49,7 +53,13 @@ public class Servant implements Runnable {
 	public static final Log.Logger log = Specification.logger;
 
 	private final Context context;
+	private BufferPool poolcomp;
 	private NetworkInterface netcomp;
+	/** alternative to netcomp - see {@link NetMode} */
+	private BlockingNetworkInterface bnetcomp;
+	private ImageStore fscomp;
+	private BlockCache cachecomp;
+	private WriteAheadLog walcomp;
 	
 	// ------------------------------------------------------------------------
 	// constructor
@@ -146,40 +156,140 @@ public class Servant implements Runnable {
 	// ------------------------------------------------------------------------
 	protected final Servant.Fault assemble() {
 
-		// 1 - netcomp
-		netcomp = new NetworkInterface(context);
+		// 0 - poolcomp
+		poolcomp = new BufferPool();
 		try {
-			netcomp.initialize(NetworkInterface.class);
-			context.bind(CtxBinding.network_interface.id(), netcomp);
-			log.log(Level.FINEST, "network interface %s initialized and bound",  netcomp);
+			poolcomp.setContext(context);
+			poolcomp.initialize(BufferPool.class);
+			context.bind(CtxBinding.buffer_pool.id(), poolcomp);
+			log.log(Level.FINEST, "buffer pool %s initialized and bound", poolcomp);
+		} catch (Throwable e) {
+			String err = "failed to initialize poolcomp";
+			log.error(err, e);
+			return new Servant.Fault(this, e, err);
+		}
+
+		// 1 - netcomp (or bnetcomp)
+		try {
+			if(NetMode.valueOf(context.getProperty(Property.DB_NET_MODE)) == NetMode.vthreads) {
+				bnetcomp = new BlockingNetworkInterface();
+				bnetcomp.setContext(context);
+				bnetcomp.initialize(BlockingNetworkInterface.class);
+				context.bind(CtxBinding.network_interface.id(), bnetcomp);
+				log.log(Level.FINEST, "blocking network interface %s initialized and bound",  bnetcomp);
+			} else {
+				netcomp = new NetworkInterface(context);
+				netcomp.initialize(NetworkInterface.class);
+				context.bind(CtxBinding.network_interface.id(), netcomp);
+				log.log(Level.FINEST, "network interface %s initialized and bound",  netcomp);
+			}
 		} catch (Throwable e) {
 			String err = "failed to initialize netcomp";
 			log.error(err, e);
 			return new Servant.Fault(this, e, err);
 		}
-		// TODO: fscomp
-		// TODO: cachecomp
+
+		// 2 - cachecomp
+		cachecomp = new BlockCache();
+		try {
+			cachecomp.setContext(context);
+			cachecomp.initialize(BlockCache.class);
+			context.bind(CtxBinding.block_cache.id(), cachecomp);
+			log.log(Level.FINEST, "block cache %s initialized and bound", cachecomp);
+		} catch (Throwable e) {
+			String err = "failed to initialize cachecomp";
+			log.error(err, e);
+			return new Servant.Fault(this, e, err);
+		}
+
+		// 3 - walcomp
+		walcomp = new WriteAheadLog();
+		try {
+			walcomp.setContext(context);
+			walcomp.initialize(WriteAheadLog.class);
+			context.bind(CtxBinding.write_ahead_log.id(), walcomp);
+			log.log(Level.FINEST, "write ahead log %s initialized and bound", walcomp);
+		} catch (Throwable e) {
+			String err = "failed to initialize walcomp";
+			log.error(err, e);
+			return new Servant.Fault(this, e, err);
+		}
+
+		// 4 - fscomp
+		fscomp = new ImageStore();
+		try {
+			fscomp.setContext(context);
+			fscomp.initialize(ImageStore.class);
+			context.bind(CtxBinding.image_store.id(), fscomp);
+			context.bind(CtxBinding.protocol_service.id(), fscomp);
+			log.log(Level.FINEST, "image store %s initialized and bound", fscomp);
+		} catch (Throwable e) {
+			String err = "failed to initialize fscomp";
+			log.error(err, e);
+			return new Servant.Fault(this, e, err);
+		}
 		return null;
 	}
 	
 	private Servant.Fault bootup() {
 		// TODO: Server#bootup -- May 5, 2012
 		// REVU: this can just be a sequenced list of comps to start in order
-		throw new RuntimeException("Server#bootup is not implemented!");
+		// netcomp has nothing to boot - its threads are started in serve()
+		return null;
 	}
 	
 	private Servant.Fault serve() {
 		// TODO: Server#bootup -- May 5, 2012
 		// REVU: this can just be a sequenced list of comps to start in order
 		try {
-			ExecutorService netex = Executors.newSingleThreadExecutor();
-			netex.execute(netcomp);
-			log.log(Level.FINEST, "network interface executor %s started", netex);
+			if(bnetcomp != null) {
+				final ExecutorService netex = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override final public Thread newThread(Runnable r) {
+						return new Thread(r, "0ff5e7db-net-accept");
+					}
+				});
+				netex.execute(bnetcomp);
+				context.bind(CtxBinding.network_interface_executor.id(), netex);
+				log.log(Level.FINEST, "blocking network interface acceptor started on %s", netex);
+			} else {
+				final NetworkInterface.Reactor[] reactors = netcomp.reactors();
+				final ExecutorService netex = Executors.newFixedThreadPool(reactors.length + 1, new ThreadFactory() {
+					final AtomicInteger seq = new AtomicInteger();
+					@Override final public Thread newThread(Runnable r) {
+						return new Thread(r, String.format("0ff5e7db-net-%d", seq.getAndIncrement()));
+					}
+				});
+				for(NetworkInterface.Reactor reactor : reactors) {
+					netex.execute(reactor);
+				}
+				netex.execute(netcomp);
+				context.bind(CtxBinding.network_interface_executor.id(), netex);
+				log.log(Level.FINEST, "network interface executor %s started - %d reactors", netex, reactors.length);
+			}
 		} catch (Exception e) {
 			log.error("fault on network interface executor intialization", e);
 			return new Fault(this, e, "servant");
 		}
 
+		// periodic metrics dump
+		final long interval = Long.parseLong(context.getProperty(Property.DB_METRICS_INTERVAL));
+		if(interval > 0) {
+			final ScheduledExecutorService metex = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override final public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "0ff5e7db-metrics");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			metex.scheduleAtFixedRate(new Runnable() {
+				@Override final public void run() {
+					log.info("metrics -\n%s", Specification.metrics.dump(""));
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+			context.bind(CtxBinding.metrics_executor.id(), metex);
+			log.log(Level.FINEST, "metrics dump every %d secs", interval);
+		}
+
 		return null;
 	}
 	
@@ -192,7 +302,13 @@ public class Servant implements Runnable {
 	// ------------------------------------------------------------------------
 	enum CtxBinding {
 		network_interface,
-		network_interface_executor;
+		network_interface_executor,
+		image_store,
+		block_cache,
+		write_ahead_log,
+		buffer_pool,
+		protocol_service,
+		metrics_executor;
 		private final String id;
 		CtxBinding () {
 			this.id = this.name().toLowerCase().replace('_', '.');
@@ -292,12 +408,45 @@ public class Servant implements Runnable {
 	// Server.Property
 	// ------------------------------------------------------------------------
 	
+	/** {@link Property#DB_NET_MODE} values */
+	public enum NetMode {
+		/** selector reactors - {@link NetworkInterface} */
+		nio,
+		/** a (virtual) thread per connection - {@link BlockingNetworkInterface} */
+		vthreads
+	}
+
 	/** Server configuration properties and their default values. */
 	public enum Property {
 		LOG_LEVEL ("FINE"),
 		DB_SERVER_PORT ("7727"), 
 		DB_IMAGE_ROOT ("db/image"),
-		DB_CACHE_BLOCK_SIZE ("4096");
+		DB_IMAGE_SEGMENT_SIZE ("67108864"),
+		DB_INDEX_HASH ("WyH64"),
+		DB_INDEX_CAPACITY ("65536"),
+		DB_CACHE_BLOCK_SIZE ("4096"),
+		DB_CACHE_SIZE ("67108864"),
+		DB_NET_BUFFER_SIZE ("65536"),
+		DB_BUFFER_POOL_SIZE ("67108864"),
+		DB_BUFFER_POOL_DEBUG ("false"),
+		DB_NET_MODE ("nio"),
+		DB_NET_REACTORS (String.valueOf(Runtime.getRuntime().availableProcessors())),
+		DB_NET_LISTENERS ("1"),
+		DB_NET_BACKLOG ("1024"),
+		DB_NET_ACCEPT_BATCH ("64"),
+		DB_NET_TCP_NODELAY ("true"),
+		DB_NET_SO_RCVBUF ("0"),
+		DB_NET_SO_SNDBUF ("0"),
+		DB_NET_CONN_HIGH_WATER ("1048576"),
+		DB_NET_CONN_LOW_WATER ("262144"),
+		DB_NET_CONN_INFLIGHT ("1024"),
+		DB_NET_HIGH_WATER ("67108864"),
+		DB_NET_LOW_WATER ("16777216"),
+		DB_NET_INFLIGHT ("65536"),
+		DB_DISPATCH_WORKERS (String.valueOf(2 * Runtime.getRuntime().availableProcessors())),
+		DB_DISPATCH_QUEUE ("4096"),
+		DB_DISPATCH_VTHREADS ("false"),
+		DB_METRICS_INTERVAL ("60");
 		Property (String defval) {
 			this.defval = defval;
 			this.k = this.name().toLowerCase().replace('_', '.');
@@ -25,6 +25,7 @@ package ove.x0ff5e7db;
 import java.util.logging.Level;
 
 import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
 
 public interface Specification {
 	public static final class Version {
@@ -40,4 +41,7 @@ public interface Specification {
 	}
 
 	public static final Log.Logger logger = Log.getLogger("0FF5E7DB", true).setLevel(Level.FINEST);
+
+	/** server metrics - see {@link Protocol.Op#STATS} */
+	public static final Metrics metrics = new Metrics();
 }
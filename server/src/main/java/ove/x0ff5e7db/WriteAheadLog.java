@@ -0,0 +1,336 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import ove.x0ff5e7db.util.Log;
+import ove.x0ff5e7db.util.Metrics;
+import ove.x0ff5e7db.util.binary.Codec;
+import ove.x0ff5e7db.util.binary.Hash;
+
+/**
+ * Append-only write ahead log of image records, with group commit.
+ * <p>
+ * Writers {@link #append} image records and are notified via {@link Completion}
+ * once the record is durable.  A single flusher thread writes all records
+ * appended since its last pass with one write and one {@link FileChannel#force(boolean)},
+ * and then completes all of the batch's waiters.
+ * <p>
+ * A batch that fails to commit is truncated from the log, so that later records
+ * are not appended after torn bytes - which replay would stop at.  If that is not
+ * possible, or the flusher is interrupted, the log fails: queued and all later
+ * appends are completed with the cause.
+ * <p>
+ * Log records are:
+ * <pre>
+ * [len:int32][crc32c:int32][offset:int64][image record:len bytes]
+ * </pre>
+ * where crc32c ({@link Hash#CRC32C}) covers the offset and the image record.  Replay writes each intact
+ * record back at its image offset, which is idempotent as image offsets are
+ * never reused.
+ *
+ * @author alphazero
+ */
+class WriteAheadLog extends Servant.Component.Base implements Runnable {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	public static final Log.Logger log = Specification.logger;
+
+	static final String WAL_FNAME = "wal.log";
+	static final int RECORD_HEADER_BYTES = Codec.INTEGER_BYTES + Codec.INTEGER_BYTES + Codec.LONG_BYTES;
+	static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+	private File file;
+	private FileChannel channel;
+	private Thread flusher;
+	private volatile boolean running;
+
+	/* -- guarded by this -- */
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private List<Completion> waiters = new ArrayList<Completion>();
+	private List<Completion> sparewaiters = new ArrayList<Completion>();
+	private final Hash.Stream crc = Hash.CRC32C.stream();
+	/** cause of the failure of the log - null until failed */
+	private volatile Throwable failed;
+
+	/* -- metrics -- */
+	static final Metrics.Counter m_records = Specification.metrics.counter("wal.records");
+	static final Metrics.Counter m_bytes = Specification.metrics.counter("wal.bytes");
+	/** write and fsync of a group commit batch */
+	static final Metrics.Timer m_flush = Specification.metrics.timer("wal.flush");
+
+	/** serializes file io of flusher and {@link #truncate()} */
+	private final Object iolock = new Object();
+
+	// ------------------------------------------------------------------------
+	// WriteAheadLog.Completion
+	// ------------------------------------------------------------------------
+	/** 
+	 * callback on commit of an appended record.  Called on the flusher thread, or
+	 * - if the log has failed - on the appender's. 
+	 */
+	interface Completion {
+		/** @param t null if committed, else the cause of the failure */
+		void onCommit(Throwable t);
+	}
+
+	/** visitor of replayed records */
+	interface Replay {
+		/** @param record the image record - position to limit */
+		void onRecord(long offset, ByteBuffer record) throws IOException;
+	}
+
+	// ------------------------------------------------------------------------
+	// initialization concerns
+	// ------------------------------------------------------------------------
+	@SuppressWarnings("unchecked")
+	@Override final
+	public <T> T initialize(Class<T> vt) throws Throwable {
+		final File root = new File(context.getProperty(Servant.Property.DB_IMAGE_ROOT));
+		if(!root.exists() && !root.mkdirs())
+			throw new IOException(String.format("failed to create image root %s", root.getAbsolutePath()));
+		file = new File(root, WAL_FNAME);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		log.log(Level.FINER, "WAL - opened %s - %d bytes", file, channel.size());
+
+		running = true;
+		flusher = new Thread(this, "0ff5e7db-wal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		return (T) this;
+	}
+
+	/**
+	 * Replays all intact records of the log.  Replay stops at the first torn or
+	 * corrupt record.
+	 * @return number of records replayed
+	 */
+	final int replay(final Replay visitor) throws IOException {
+		synchronized (iolock) {
+			final long size = channel.size();
+			final ByteBuffer b = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+			channel.read(b, 0);
+			b.flip();
+			final byte[] a = b.array();
+			int n = 0;
+			while(b.remaining() >= RECORD_HEADER_BYTES) {
+				final int pos = b.position();
+				final int len = Codec.Binary.BigEndian.readInt(a, pos);
+				final int sum = Codec.Binary.BigEndian.readInt(a, pos + Codec.INTEGER_BYTES);
+				if(len <= 0 || b.remaining() - RECORD_HEADER_BYTES < len)
+					break;
+				if(Hash.CRC32C.hash(a, pos + 2 * Codec.INTEGER_BYTES, Codec.LONG_BYTES + len) != sum) {
+					log.warning("WAL - checksum mismatch at %d - replay stopped", pos);
+					break;
+				}
+				final long offset = Codec.Binary.BigEndian.readLong(a, pos + 2 * Codec.INTEGER_BYTES);
+				final ByteBuffer record = b.duplicate();
+				record.limit(pos + RECORD_HEADER_BYTES + len).position(pos + RECORD_HEADER_BYTES);
+				visitor.onRecord(offset, record);
+				b.position(pos + RECORD_HEADER_BYTES + len);
+				n++;
+			}
+			log.log(Level.FINE, "WAL - replayed %d records", n);
+			return n;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// log api
+	// ------------------------------------------------------------------------
+	/**
+	 * Queues the record for the next group commit.
+	 * @param offset image offset of the record
+	 * @param record image record - position to limit
+	 * @param completion notified on commit
+	 */
+	final void append(final long offset, final ByteBuffer record, final Completion completion) {
+		final int len = record.remaining();
+		final Throwable fault;
+		synchronized (this) {
+			fault = failed;
+			if(fault == null) {
+				if(pending.remaining() < RECORD_HEADER_BYTES + len) {
+					final ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER_BYTES + len));
+					pending.flip();
+					grown.put(pending);
+					pending = grown;
+				}
+				final int pos = pending.position();
+				final byte[] a = pending.array();
+				Codec.Binary.BigEndian.writeInt(len, a, pos);
+				Codec.Binary.BigEndian.writeLong(offset, a, pos + 2 * Codec.INTEGER_BYTES);
+				pending.position(pos + RECORD_HEADER_BYTES);
+				pending.put(record.duplicate());
+				crc.reset().update(a, pos + 2 * Codec.INTEGER_BYTES, Codec.LONG_BYTES).update(record);
+				Codec.Binary.BigEndian.writeInt(crc.digest(), a, pos + Codec.INTEGER_BYTES);
+				waiters.add(completion);
+				if(waiters.size() == 1)
+					notify();
+			}
+		}
+		if(fault != null)
+			completion.onCommit(fault);
+	}
+
+	/**
+	 * Discards the log content.  Caller must assure that all records appended
+	 * so far are otherwise durable.
+	 */
+	final void truncate() throws IOException {
+		synchronized (iolock) {
+			channel.truncate(0);
+			channel.position(0);
+			channel.force(true);
+		}
+		log.log(Level.FINE, "WAL - truncated");
+	}
+
+	/** stops the flusher after a final flush */
+	final void close() throws IOException, InterruptedException {
+		running = false;
+		synchronized (this) {
+			notify();
+		}
+		flusher.join();
+		channel.close();
+	}
+
+	// ------------------------------------------------------------------------
+	// group commit
+	// ------------------------------------------------------------------------
+	@Override final
+	public void run() {
+		try {
+			commit();
+		} catch (InterruptedException e) {
+			log.log(Level.FINE, "WAL - flusher interrupted");
+			fail(e);
+		}
+	}
+
+	private final void commit() throws InterruptedException {
+		for(;;) {
+			final ByteBuffer batch;
+			final List<Completion> committing;
+			synchronized (this) {
+				while(waiters.isEmpty()) {
+					if(!running) return;
+					wait();
+				}
+				batch = pending;
+				committing = waiters;
+				pending = spare;
+				waiters = sparewaiters;
+			}
+
+			Throwable fault = failed;
+			boolean torn = false;
+			batch.flip();
+			if(fault == null) {
+				final long t0 = System.nanoTime();
+				synchronized (iolock) {
+					long start = -1;
+					try {
+						start = channel.position();
+						while(batch.hasRemaining())
+							channel.write(batch);
+						channel.force(false);
+						m_flush.since(t0);
+						m_records.add(committing.size());
+						m_bytes.add(batch.limit());
+					} catch (Throwable t) {
+						log.error("WAL - group commit failed", t);
+						fault = t;
+						torn = !rollback(start);
+					}
+				}
+			}
+			complete(committing, fault);
+			log.log(Level.FINEST, "WAL - committed %d records in %d bytes", committing.size(), batch.limit());
+			if(torn)
+				fail(fault);
+
+			batch.clear();
+			committing.clear();
+			synchronized (this) {
+				spare = batch;
+				sparewaiters = committing;
+			}
+		}
+	}
+
+	/**
+	 * Truncates the log back to the start of a failed batch.  Under iolock.
+	 * @param start log position of the batch - negative if unknown
+	 * @return false if the log may end with torn bytes
+	 */
+	private final boolean rollback(final long start) {
+		if(start < 0)
+			return false;
+		try {
+			channel.truncate(start);
+			channel.position(start);
+			channel.force(false);
+			log.warning("WAL - failed batch truncated at %d", start);
+			return true;
+		} catch (Throwable t) {
+			log.error("WAL - failed batch truncate failed", t);
+			return false;
+		}
+	}
+
+	/** fails the log - queued and later appends are completed with cause */
+	private final void fail(final Throwable cause) {
+		final List<Completion> abandoned;
+		synchronized (this) {
+			if(failed == null)
+				failed = cause;
+			abandoned = waiters;
+			waiters = new ArrayList<Completion>();
+			pending.clear();
+		}
+		log.error("WAL - failed - appends will fail", cause);
+		complete(abandoned, failed);
+	}
+
+	private static final void complete(final List<Completion> completions, final Throwable fault) {
+		for(Completion c : completions) {
+			try {
+				c.onCommit(fault);
+			} catch (Throwable t) {
+				log.error("WAL - on completion", t);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of non-negative long values (e.g. nanosecond latencies),
+ * after HdrHistogram.  Values are counted in buckets of {@link #SUB_BUCKETS}
+ * linear sub-buckets per power of 2, so any recorded value is reported within a
+ * relative error of 1/{@link #SUB_BUCKETS} - across the full range of long, in
+ * a fixed ~30KB of counts.
+ * <p>
+ * Not thread-safe.  Concurrent recorders should each use their own instance
+ * and {@link #add(Histogram)} them for reporting.
+ *
+ * @author alphazero
+ */
+public final class Histogram {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	static final int SUB_BITS = 7;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int HALF = SUB_BUCKETS >> 1;
+	static final int BUCKETS = (Long.SIZE - SUB_BITS) * HALF + HALF;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * @param counts bucket counts - taken as is
+	 * @return histogram of the counts - min is per the lowest non-empty bucket
+	 */
+	static final Histogram of(final long[] counts, final long sum, final long max) {
+		final Histogram h = new Histogram();
+		for(int i=0; i<BUCKETS; i++) {
+			if(counts[i] == 0)
+				continue;
+			if(h.count == 0)
+				h.min = lowest(i);
+			h.counts[i] = counts[i];
+			h.count += counts[i];
+		}
+		h.sum = sum;
+		h.max = max;
+		return h;
+	}
+
+	// ------------------------------------------------------------------------
+	// recording
+	// ------------------------------------------------------------------------
+	/** @param v value to record - must be non-negative */
+	public final void record(final long v) throws IllegalArgumentException {
+		if(v < 0)
+			throw new IllegalArgumentException(String.format("negative value %d", v));
+		counts[index(v)]++;
+		count++;
+		sum += v;
+		if(v < min) min = v;
+		if(v > max) max = v;
+	}
+
+	/** adds the counts of other to this histogram */
+	public final Histogram add(final Histogram other) {
+		for(int i=0; i<BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		return this;
+	}
+
+	public final void reset() {
+		Arrays.fill(counts, 0);
+		count = sum = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	// ------------------------------------------------------------------------
+	// reporting
+	// ------------------------------------------------------------------------
+	public final long count() { return count; }
+	public final long min() { return count == 0 ? 0 : min; }
+	public final long max() { return max; }
+	public final double mean() { return count == 0 ? 0 : (double) sum / count; }
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return the highest value equivalent to the value at the percentile - 0 if empty
+	 */
+	public final long percentile(final double percentile) throws IllegalArgumentException {
+		Assert.isTrue(percentile >= 0 && percentile <= 100, "percentile in [0, 100]", IllegalArgumentException.class);
+		if(count == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long n = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			n += counts[i];
+			if(n >= rank)
+				return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	/** @return "n:%d min:%d p50:%d p99:%d p999:%d max:%d" with values divided by unit */
+	public final String summary(final long unit) {
+		return String.format("n:%d min:%d p50:%d p99:%d p999:%d max:%d", count,
+				min() / unit, percentile(50) / unit, percentile(99) / unit, percentile(99.9) / unit, max / unit);
+	}
+
+	// ------------------------------------------------------------------------
+	// buckets
+	// ------------------------------------------------------------------------
+	/*
+	 * Values below SUB_BUCKETS map to themselves.  Above, a value with its
+	 * highest bit at SUB_BITS - 1 + e keeps its SUB_BITS high bits, and buckets
+	 * of successive e are HALF indices apart.
+	 */
+	static final int index(final long v) {
+		if(v < SUB_BUCKETS)
+			return (int) v;
+		final int e = Long.SIZE - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return (e << (SUB_BITS - 1)) + (int) (v >>> e);
+	}
+	/** @return lowest value of bucket i */
+	static final long lowest(final int i) {
+		if(i < SUB_BUCKETS)
+			return i;
+		final int e = (i >> (SUB_BITS - 1)) - 1;
+		return (long) (i - (e << (SUB_BITS - 1))) << e;
+	}
+	/** @return highest value of bucket i */
+	static final long highest(final int i) {
+		if(i < SUB_BUCKETS)
+			return i;
+		final int e = (i >> (SUB_BITS - 1)) - 1;
+		return lowest(i) + (1L << e) - 1;
+	}
+}
@@ -22,7 +22,14 @@
 
 package ove.x0ff5e7db.util;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.SelectionKey;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
@@ -31,6 +38,12 @@ import java.util.logging.LogRecord;
  * review, only value added (outside of formatter/handler) is exception
  * related.  
  * TODO: reduce to necessary essentials. 
+ * <p>
+ * Log calls are level guarded and never format on the caller's thread: records
+ * are queued to the {@link Log.Handler} ring and formatted and written, in
+ * batches, by its writer thread.  Arguments known to change before then - 
+ * {@link Mutable}s, such as reused flyweights, selection keys and atomic
+ * counters - are captured on publish.  All others are recorded as is.
  */
 public class Log {
 	
@@ -47,82 +60,88 @@ public class Log {
 		if(name == null) throw new IllegalArgumentException("name is null");
 		if(name.isEmpty()) throw new IllegalArgumentException("name is blank");
 
-		String lname = null;
-		lname = String.format("%8s", name).substring(0, 8);
-		java.util.logging.Logger stdlog = java.util.logging.Logger.getLogger(lname);
-		stdlog.setUseParentHandlers(false);
-		// REVU: this is buggy 
-		// TODO: should only happen once per named logger
-		final Handler handler = new Log.Handler();
-		final Formatter formatter = new Log.Formatter();
-		handler.trySetFormatter(formatter);
-		stdlog.addHandler(handler);
-		return new Logger(stdlog, dumpstack);
+		final String lname = loggerName(name);
+		Logger logger = registry.get(lname);
+		if(logger == null) {
+			synchronized (registry) {
+				if((logger = registry.get(lname)) == null) {
+					final java.util.logging.Logger stdlog = java.util.logging.Logger.getLogger(lname);
+					stdlog.setUseParentHandlers(false);
+					stdlog.addHandler(Handler.shared);
+					logger = new Logger(stdlog, dumpstack);
+					registry.put(lname, logger);
+				}
+			}
+		}
+		return logger.dumpstack == dumpstack ? logger : new Logger(logger.stdlog, dumpstack);
+	}
+	/** @return the (8 char) registered name for name */
+	static String loggerName(final String name) {
+		return String.format("%8s", name).substring(0, 8);
 	}
+	/**
+	 * Loggers by (truncated) name - each configured exactly once.  Loggers of
+	 * the same name share level.  Also holds the j.u.l. loggers, which are
+	 * otherwise only weakly referenced by the LogManager, and with them
+	 * their level.
+	 */
+	private static final ConcurrentMap<String, Logger> registry = new ConcurrentHashMap<String, Logger>();
+
+	// ------------------------------------------------------------------------
+	// Log.Mutable
+	// ------------------------------------------------------------------------
+	/** 
+	 * Marks log arguments whose state may change once the log call returns, e.g.
+	 * reused flyweights.  These are captured on publish as their string value.
+	 */
+	public interface Mutable { }
+
 	// ------------------------------------------------------------------------
 	// Log.Logger
 	// ------------------------------------------------------------------------
+	/**
+	 * Level guarded - arguments of disabled levels are neither formatted nor
+	 * recorded.  Note that the varargs array (and any boxing) is still paid at
+	 * the call site, so hot paths should guard with {@link #isLoggable(Level)}.
+	 */
 	public static class Logger {
-		private final java.util.logging.Logger stdlog;
-		private final boolean dumpstack;
+		final java.util.logging.Logger stdlog;
+		final boolean dumpstack;
 		Logger(java.util.logging.Logger stdlog, boolean dumpstack){
 			this.stdlog = stdlog;
 			this.dumpstack = dumpstack;
 		}
+		final public boolean isLoggable(Level level) {
+			return stdlog.isLoggable(level);
+		}
 		final public void severe (String msg){
 			stdlog.severe(msg);
 		}
 		final public void error (String fmt, Object...args){
-			stdlog.severe(String.format(fmt, args));
+			stdlog.log(Level.SEVERE, fmt, args);
 		}
 		final public void error (String msg, Throwable t){
-			final String ttype = t.getClass().getSimpleName();
-			String tmsg =  t.getMessage();
-			if(t.getMessage() == null || tmsg.isEmpty()) 
-				tmsg = String.format("- cause: %s", ttype);
-			else
-				tmsg = String.format("- cause: %s - %s", ttype, tmsg);
-			
-			stdlog.severe(String.format("%s %s", msg, tmsg));
-
-			if (dumpstack) t.printStackTrace();
+			log(Level.SEVERE, msg, t);
 		}
 		
 		final public void warning (String msg){
 			stdlog.warning(msg);
 		}
 		final public void warning (String fmt, Object...args){
-			stdlog.warning(String.format(fmt, args));
+			stdlog.log(Level.WARNING, fmt, args);
 		}
 		final public void warning (String msg, Throwable t){
-			final String ttype = t.getClass().getSimpleName();
-			String tmsg =  t.getMessage();
-			if(t.getMessage() == null || tmsg.isEmpty()) 
-				tmsg = String.format("- cause: %s", ttype);
-			else
-				tmsg = String.format("- cause: %s - %s", ttype, tmsg);
-			
-			stdlog.warning(String.format("%s %s", msg, tmsg));
-
-			if (dumpstack) t.printStackTrace();
+			log(Level.WARNING, msg, t);
 		}
 		
 		final public void info (String msg){
 			stdlog.info(msg);
 		}
 		final public void info (String fmt, Object...args){
-			stdlog.info(String.format(fmt, args));
+			stdlog.log(Level.INFO, fmt, args);
 		}
 		final public void info (String msg, Throwable t){
-			final String ttype = t.getClass().getSimpleName();
-			String tmsg =  t.getMessage();
-			if(t.getMessage() == null || tmsg.isEmpty()) 
-				tmsg = String.format("- cause: %s", ttype);
-			else
-				tmsg = String.format("- cause: %s - %s", ttype, tmsg);
-			
-			stdlog.info(String.format("%s %s", msg, tmsg));
-			if (dumpstack) t.printStackTrace();
+			log(Level.INFO, msg, t);
 		}
 		
 		final public Logger setLevel(Level level) { 
@@ -135,21 +154,61 @@ public class Log {
 		final public void log(Level level, String fmt, Object...args){
 			stdlog.log(level, fmt, args);
 		}
+		/** msg is followed by the cause, and the {@link Throwable} stack if dumpstack */
 		final public void log(Level level, String msg, Throwable t){
-			stdlog.log(level, msg, t);
+			if(!stdlog.isLoggable(level))
+				return;
+			final LogRecord record = new LogRecord(level, msg);
+			record.setLoggerName(stdlog.getName());
+			record.setParameters(new Object[]{ dumpstack ? Formatter.CAUSE : Formatter.CAUSE_ONLY });
+			record.setThrown(t);
+			stdlog.log(record);
 		}
 	}
 	
 	// ------------------------------------------------------------------------
 	// Log.Handler
 	// ------------------------------------------------------------------------
+	/**
+	 * Asynchronous handler.  {@link #publish(LogRecord)} queues the record in a
+	 * bounded ring and returns - it neither formats nor blocks.  Mutable record
+	 * parameters are captured - see {@link #snapshot(Object[])}.  A single daemon
+	 * writer drains the ring, formats the batch and writes it to System.err
+	 * with one flush.  Records published to a full ring are dropped and
+	 * counted, and the count is logged by the writer.
+	 */
 	public static class Handler extends java.util.logging.Handler {
+		/** shared by all loggers */
+		static final Handler shared = new Handler();
+
+		static final int RING_SIZE = 8192;	// power of 2
+		static final long SHUTDOWN_FLUSH_MSECS = 1000;
+
+		/* -- guarded by this -- */
+		private final LogRecord[] ring = new LogRecord[RING_SIZE];
+		private long head;
+		private long tail;
+		private long dropped;
+		private boolean writing;
+
+		private java.util.logging.Formatter formatter;
+
+		public Handler() {
+			trySetFormatter(new Log.Formatter());
+			final Thread writer = new Thread(new Runnable() {
+				@Override final public void run() { write(); }
+			}, "0ff5e7db-log-writer");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override final public void run() { flush(SHUTDOWN_FLUSH_MSECS); }
+			}, "0ff5e7db-log-flush"));
+		}
 		/**
 		 * Try and set the formatter -- may not be possible if
 		 * run in containers, etc. due to security checks.
 		 * @param fmt 
 		 */
-		private java.util.logging.Formatter formatter;
 		final void trySetFormatter(Formatter fmt){
 			try {
 				super.setFormatter(fmt);
@@ -162,46 +221,176 @@ public class Log {
 		}
 		@Override final
 		public void publish(LogRecord record) {
-			System.err.print(formatter.format(record));
-			flush();
+			if(!isLoggable(record))
+				return;
+			final Object[] params = record.getParameters();
+			if(params != null)
+				record.setParameters(snapshot(params));
+			synchronized (this) {
+				if(tail - head == RING_SIZE) {
+					dropped++;
+					return;
+				}
+				ring[(int) (tail++ & (RING_SIZE - 1))] = record;
+				if(tail - head == 1)
+					notifyAll();
+			}
+		}
+		/**
+		 * Captures parameters known to change before the writer formats them:
+		 * atomic counters as their value, and {@link Mutable}s and selection keys
+		 * as their string value.  Other parameters are not touched.
+		 * @return params, or a copy with mutable parameters captured
+		 */
+		static Object[] snapshot(final Object[] params) {
+			Object[] snapshot = params;
+			for(int i=0; i<params.length; i++) {
+				final Object p = params[i];
+				final Object v;
+				if(p instanceof AtomicInteger || p instanceof AtomicLong)
+					v = Long.valueOf(((Number) p).longValue());
+				else if(p instanceof Mutable || p instanceof SelectionKey)
+					v = String.valueOf(p);
+				else
+					continue;
+				if(snapshot == params)
+					snapshot = params.clone();
+				snapshot[i] = v;
+			}
+			return snapshot;
 		}
+		/** waits until all records published so far are written */
 		@Override final
 		public void flush() {
-			System.err.flush();
+			flush(0);
+		}
+		/** @param msecs max wait - 0 waits indefinitely */
+		final void flush(final long msecs) {
+			final long until = System.currentTimeMillis() + msecs;
+			synchronized (this) {
+				final long mark = tail;
+				try {
+					while(head < mark || writing) {
+						final long remaining = until - System.currentTimeMillis();
+						if(msecs > 0 && remaining <= 0)
+							return;
+						wait(msecs > 0 ? remaining : 0);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
 		@Override final
 		public void close() throws SecurityException {
 			flush();
 		}
+
+		/** writer loop */
+		private final void write() {
+			final LogRecord[] batch = new LogRecord[RING_SIZE];
+			final StringBuilder out = new StringBuilder(64 * 1024);
+			for(;;) {
+				int n = 0;
+				long ndropped = 0;
+				synchronized (this) {
+					writing = false;
+					notifyAll();
+					while(head == tail && dropped == 0) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					for(; head < tail; n++) {
+						final int i = (int) (head++ & (RING_SIZE - 1));
+						batch[n] = ring[i];
+						ring[i] = null;
+					}
+					ndropped = dropped;
+					dropped = 0;
+					writing = true;
+				}
+				out.setLength(0);
+				for(int i=0; i<n; i++) {
+					try {
+						out.append(formatter.format(batch[i]));
+					} catch (Throwable t) {
+						out.append("log - format fault - ").append(t).append(Formatter.LINESEP);
+					}
+					batch[i] = null;
+				}
+				if(ndropped > 0)
+					out.append("log - ring full - dropped ").append(ndropped).append(" records").append(Formatter.LINESEP);
+				System.err.print(out);
+				System.err.flush();
+			}
+		}
 	}
 	
 	// ------------------------------------------------------------------------
 	// Log.Formatter
 	// ------------------------------------------------------------------------
-	/**  simple formatter for a clean single line log out. */
+	/**
+	 * simple formatter for a clean single line log out.
+	 * <p>
+	 * Not thread-safe: the date string is cached per second, and the line is
+	 * built in a reused buffer.  The (single) handler writer is its only user.
+	 */
 	public static class Formatter extends java.util.logging.Formatter {
-		final String LINESEP = System.getProperty("line.separator");
-		@SuppressWarnings("boxing")
+		static final String LINESEP = System.getProperty("line.separator");
+		/** record parameter marking a message to be followed by the thrown's cause and stack */
+		static final Object CAUSE = new Object();
+		/** as {@link #CAUSE} without the stack */
+		static final Object CAUSE_ONLY = new Object();
+
+		private final StringBuilder line = new StringBuilder(256);
+		private long datesecs = -1;
+		private String date;
+
 		@Override final
 		public String format(LogRecord record) {
-			// TODO: clean up the mess above and fix this.
-			final Level level = record.getLevel();
-			final String logger = record.getLoggerName();
+			final long time = record.getMillis();
+			if(time / 1000 != datesecs) {
+				datesecs = time / 1000;
+				date = new Date(time).toString();
+			}
+			line.setLength(0);
+			final String millis = Long.toString(time);
+			for(int i=millis.length(); i<14; i++)
+				line.append('0');
+			line.append(millis).append(' ').append(date);
+			line.append(" [").append(record.getLoggerName()).append("][tid:").append(record.getThreadID()).append("] ");
+			final String level = record.getLevel().getLocalizedName();
+			line.append(level);
+			for(int i=level.length(); i<7; i++)
+				line.append(' ');
+			line.append(" - ");
+
 			final String msg = record.getMessage();
 			final Object[] msgparams = record.getParameters();
-			final int tid = record.getThreadID();
-			final long time = record.getMillis();
-			
-			String _msg = null;
-			if(msgparams != null && msgparams.length > 0){
-				_msg = String.format(msg, msgparams);
+			final Throwable t = record.getThrown();
+			final boolean withcause = msgparams != null && msgparams.length == 1 && (msgparams[0] == CAUSE || msgparams[0] == CAUSE_ONLY);
+			if(withcause) {
+				line.append(msg);
+				if(t != null) {
+					line.append(" - cause: ").append(t.getClass().getSimpleName());
+					if(t.getMessage() != null && !t.getMessage().isEmpty())
+						line.append(" - ").append(t.getMessage());
+				}
+			} else if(msgparams != null && msgparams.length > 0) {
+				line.append(String.format(msg, msgparams));
+			} else {
+				line.append(msg);
 			}
-			else {
-				_msg = msg;
+			line.append(LINESEP);
+			if(withcause && t != null && msgparams[0] == CAUSE) {
+				final StringWriter stack = new StringWriter();
+				t.printStackTrace(new PrintWriter(stack));
+				line.append(stack);
 			}
-			
-			final Date d = new Date(time);
-			return String.format("%014d %s [%s][tid:%d] %-7s - %s%s", time, d, logger, tid, level.getLocalizedName(), _msg, LINESEP);
+			return line.toString();
 		}
 	}
 
@@ -221,4 +410,16 @@ public class Log {
 		
 		log.setLevel(level);
 	}
+	/**
+	 * Sets the level of the named logger, and so of all its users.  Takes
+	 * effect immediately - handlers are unchanged.
+	 * @param name logger name as given to {@link #getLogger(String)}
+	 * @throws IllegalArgumentException if no such logger, or level is not recognized
+	 */
+	public static void setLoggerLevel(final String name, final String levelname) throws IllegalArgumentException{
+		if(name == null) throw new IllegalArgumentException("name is null");
+		final Logger log = registry.get(loggerName(name));
+		if(log == null) throw new IllegalArgumentException("Log#setLogLevel: no logger named: " + name);
+		setLoggerLevel(log, levelname);
+	}
 }
@@ -0,0 +1,197 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of named metrics for instrumenting hot paths.
+ * <p>
+ * {@link Counter}s are striped - updates go to a per-thread-hashed, cache line
+ * padded cell - and summed on read.  {@link Timer}s record into a fixed memory
+ * array of {@link Histogram} buckets with a single (uncontended, as spread
+ * over buckets) atomic increment.  {@link Gauge}s are read on demand.
+ * Recording never locks or allocates; reads are not atomic snapshots across
+ * cells and buckets, which is fine for monitoring.
+ * <p>
+ * Metrics are created on first lookup and live for the life of the registry.
+ * Names are dot separated, e.g. <code>net.accepts</code>.
+ *
+ * @author alphazero
+ */
+public final class Metrics {
+	// ------------------------------------------------------------------------
+	// properties
+	// ------------------------------------------------------------------------
+	/** cells per counter - power of 2 */
+	static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+	/** longs per cache line */
+	static final int PAD = 8;
+
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+	static final int stripes(final int cpus) {
+		return Math.min(64, Integer.highestOneBit(Math.max(cpus, 1) * 2 - 1) << 1);
+	}
+	/** @return the stripe of the current thread */
+	static final int stripe() {
+		final long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+	}
+
+	// ------------------------------------------------------------------------
+	// registry
+	// ------------------------------------------------------------------------
+	/** @return the named counter - created if necessary */
+	public final Counter counter(final String name) {
+		return lookup(name, Counter.class, new Counter());
+	}
+	/** @return the named timer - created if necessary */
+	public final Timer timer(final String name) {
+		return lookup(name, Timer.class, new Timer());
+	}
+	/**
+	 * Registers the gauge, replacing any prior gauge of the name - e.g. of a
+	 * prior instance of the measured component.
+	 * @return the gauge
+	 */
+	public final Gauge gauge(final String name, final Gauge gauge) {
+		Assert.notNull(name, "name", IllegalArgumentException.class);
+		Assert.notNull(gauge, "gauge", IllegalArgumentException.class);
+		final Object prior = metrics.put(name, gauge);
+		Assert.isTrue(prior == null || prior instanceof Gauge, "name is not a counter or timer", IllegalArgumentException.class);
+		return gauge;
+	}
+	private final <T> T lookup(final String name, final Class<T> type, final T created) {
+		Assert.notNull(name, "name", IllegalArgumentException.class);
+		Object m = metrics.get(name);
+		if(m == null) {
+			m = metrics.putIfAbsent(name, created);
+			if(m == null)
+				m = created;
+		}
+		Assert.isTrue(type.isInstance(m), "metric is of the requested type", IllegalArgumentException.class);
+		return type.cast(m);
+	}
+
+	/**
+	 * Renders all metrics, one per line and sorted by name, as
+	 * <pre>
+	 * name value
+	 * name n:%d min:%d p50:%d p99:%d p999:%d max:%d
+	 * </pre>
+	 * for counters and gauges, and timers (in usec), respectively.
+	 * @param prefix only metrics with names starting with prefix
+	 */
+	public final String dump(final String prefix) {
+		final StringBuilder s = new StringBuilder();
+		for(Map.Entry<String, Object> e : metrics.entrySet()) {
+			if(!e.getKey().startsWith(prefix))
+				continue;
+			final Object m = e.getValue();
+			s.append(e.getKey()).append(' ');
+			if(m instanceof Counter)
+				s.append(((Counter) m).get());
+			else if(m instanceof Gauge)
+				s.append(((Gauge) m).value());
+			else
+				s.append(((Timer) m).snapshot().summary(1000)).append(" usec");
+			s.append('\n');
+		}
+		return s.toString();
+	}
+
+	// ========================================================================
+	// INNER TYPES
+	// ========================================================================
+
+	// ------------------------------------------------------------------------
+	// Metrics.Gauge
+	// ------------------------------------------------------------------------
+	/** sampled value - called on read, from any thread */
+	public interface Gauge {
+		long value();
+	}
+
+	// ------------------------------------------------------------------------
+	// Metrics.Counter
+	// ------------------------------------------------------------------------
+	/** striped counter - cf. j.u.c.atomic.LongAdder */
+	public static final class Counter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+		Counter() {}
+
+		public final void increment() {
+			cells.incrementAndGet(stripe() * PAD);
+		}
+		public final void add(final long delta) {
+			cells.addAndGet(stripe() * PAD, delta);
+		}
+		/** @return sum of the cells */
+		public final long get() {
+			long n = 0;
+			for(int i=0; i<STRIPES; i++)
+				n += cells.get(i * PAD);
+			return n;
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// Metrics.Timer
+	// ------------------------------------------------------------------------
+	/** concurrent latency {@link Histogram} in nanoseconds */
+	public static final class Timer {
+		private final AtomicLongArray counts = new AtomicLongArray(Histogram.BUCKETS);
+		private final Counter sum = new Counter();
+		private final AtomicLong max = new AtomicLong();
+		Timer() {}
+
+		/** @param nanos elapsed time - negative values (clock skew) are ignored */
+		public final void record(final long nanos) {
+			if(nanos < 0)
+				return;
+			counts.incrementAndGet(Histogram.index(nanos));
+			sum.add(nanos);
+			long m;
+			while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+				;
+		}
+		/** @return records the time elapsed since t0 - per System.nanoTime() */
+		public final long since(final long t0) {
+			final long nanos = System.nanoTime() - t0;
+			record(nanos);
+			return nanos;
+		}
+		/** @return histogram of the values recorded so far */
+		public final Histogram snapshot() {
+			final long[] c = new long[Histogram.BUCKETS];
+			for(int i=0; i<c.length; i++)
+				c[i] = counts.get(i);
+			return Histogram.of(c, sum.get(), max.get());
+		}
+	}
+}
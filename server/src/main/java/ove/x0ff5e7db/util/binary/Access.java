@@ -0,0 +1,102 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Unchecked little-endian reads of hash input, so that the hash providers
+ * have a single implementation for <code>byte[]</code> and (heap or direct)
+ * {@link ByteBuffer} input.  Callers assure bounds.
+ * <p>
+ * REVU: array reads assemble words byte by byte - (Java 6) bytecode has no
+ * wide array loads.  Buffer reads are single wide loads, swapped as necessary.
+ */
+abstract class Access<T> {
+	abstract long getLong(T in, int off);
+	abstract int getInt(T in, int off);
+	/** @return the unsigned byte at off */
+	abstract int getByte(T in, int off);
+	/** copies in[off, off+len) to dst at doff */
+	abstract void copy(T in, int off, byte[] dst, int doff, int len);
+
+	/** @throws IndexOutOfBoundsException if [off, off+len) is not in [0, limit) */
+	static void checkRange(final int limit, final int off, final int len) {
+		if(off < 0 || len < 0 || limit - off < len)
+			throw new IndexOutOfBoundsException(String.format("(limit:%d, off:%d, len:%d)", limit, off, len));
+	}
+
+	/** @return the int at off as an unsigned value */
+	final long getUint(final T in, final int off) {
+		return getInt(in, off) & 0xFFFFFFFFL;
+	}
+
+	// ------------------------------------------------------------------------
+	// instances
+	// ------------------------------------------------------------------------
+	static final Access<byte[]> ARRAY = new Access<byte[]>() {
+		@Override final long getLong(final byte[] b, final int off) {
+			return ((long) b[off] & 0xFF)
+				| (((long) b[off+1] & 0xFF) <<  8)
+				| (((long) b[off+2] & 0xFF) << 16)
+				| (((long) b[off+3] & 0xFF) << 24)
+				| (((long) b[off+4] & 0xFF) << 32)
+				| (((long) b[off+5] & 0xFF) << 40)
+				| (((long) b[off+6] & 0xFF) << 48)
+				| (((long) b[off+7] & 0xFF) << 56);
+		}
+		@Override final int getInt(final byte[] b, final int off) {
+			return (b[off] & 0xFF)
+				| ((b[off+1] & 0xFF) <<  8)
+				| ((b[off+2] & 0xFF) << 16)
+				| ((b[off+3] & 0xFF) << 24);
+		}
+		@Override final int getByte(final byte[] b, final int off) {
+			return b[off] & 0xFF;
+		}
+		@Override final void copy(final byte[] b, final int off, final byte[] dst, final int doff, final int len) {
+			System.arraycopy(b, off, dst, doff, len);
+		}
+	};
+
+	/** absolute index reads - buffer position, limit, and order are unchanged */
+	static final Access<ByteBuffer> BUFFER = new Access<ByteBuffer>() {
+		@Override final long getLong(final ByteBuffer b, final int off) {
+			final long v = b.getLong(off);
+			return b.order() == ByteOrder.LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+		}
+		@Override final int getInt(final ByteBuffer b, final int off) {
+			final int v = b.getInt(off);
+			return b.order() == ByteOrder.LITTLE_ENDIAN ? v : Integer.reverseBytes(v);
+		}
+		@Override final int getByte(final ByteBuffer b, final int off) {
+			return b.get(off) & 0xFF;
+		}
+		/* used for short (sub block) copies only - avoids the duplicate of a bulk get */
+		@Override final void copy(final ByteBuffer b, final int off, final byte[] dst, final int doff, final int len) {
+			for(int i=0; i<len; i++)
+				dst[doff + i] = b.get(off + i);
+		}
+	};
+}
@@ -22,8 +22,14 @@
 
 package ove.x0ff5e7db.util.binary;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
- * Convert to and from language primitives from provided <code>byte[]</code> buffers.
+ * Convert to and from language primitives from provided <code>byte[]</code> buffers,
+ * or in place from (heap or direct) {@link ByteBuffer}s.
  * @author joubin <alphazero@sensesay.net>
  */
 public interface Codec {
@@ -58,6 +64,36 @@ public interface Codec {
 		short readShort(final byte[] b) throws NullPointerException, IllegalArgumentException;
 		short readShort(final byte[] b, final int off) throws NullPointerException, IllegalArgumentException;
 
+		/* 
+		 * ByteBuffer variants use absolute indexing - buffer position, limit, and 
+		 * byte order are neither used nor changed.  Bounds are checked by the buffer.
+		 */
+		void writeLong(final long v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		long readLong(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		void writeInt(final int v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		int readInt(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		void writeShort(final short v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		short readShort(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+
+		/* 
+		 * bulk variants - n values of array v from voff, to/from b at off.  
+		 * Bounds are checked once per call.  ByteBuffer variants as above.
+		 */
+		void writeLongs(final long[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException;
+		void readLongs(final byte[] b, final int off, final long[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException;
+		void writeLongs(final long[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		void readLongs(final ByteBuffer b, final int off, final long[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException;
+
+		void writeInts(final int[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException;
+		void readInts(final byte[] b, final int off, final int[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException;
+		void writeInts(final int[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		void readInts(final ByteBuffer b, final int off, final int[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException;
+
+		void writeShorts(final short[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException;
+		void readShorts(final byte[] b, final int off, final short[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException;
+		void writeShorts(final short[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException;
+		void readShorts(final ByteBuffer b, final int off, final short[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException;
+
 		// ------------------------------------------------------------------------
 		// big-endian ref-impl 
 		// ------------------------------------------------------------------------
@@ -73,14 +109,7 @@ public interface Codec {
 					throw new NullPointerException("b");
 				if(b.length - off < LONG_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
-				b[off]   = (byte)(v >>> 56);
-				b[off+1] = (byte)(v >>> 48);
-				b[off+2] = (byte)(v >>> 40);
-				b[off+3] = (byte)(v >>> 32);
-				b[off+4] = (byte)(v >>> 24);
-				b[off+5] = (byte)(v >>> 16);
-				b[off+6] = (byte)(v >>>  8);
-				b[off+7] = (byte)(v >>>  0);
+				putLong(v, b, off);
 				return LONG_BYTES;
 			}
 			@Override final 
@@ -93,16 +122,7 @@ public interface Codec {
 					throw new NullPointerException("b");
 				if(b.length - off < LONG_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
-				return ( 
-						((long)b[0] << 56) +
-						((long)(b[1] & 255) << 48) +
-						((long)(b[2] & 255) << 40) +
-						((long)(b[3] & 255) << 32) +
-						((long)(b[4] & 255) << 24) +
-						((b[5] & 255) << 16) +
-						((b[6] & 255) <<  8) +
-						((b[7] & 255) <<  0)
-						);
+				return getLong(b, off);
 			}
 
 			@Override final 
@@ -115,10 +135,7 @@ public interface Codec {
 					throw new NullPointerException("b");
 				if(b.length - off < INTEGER_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
-				b[off]   = (byte) ((v >>> 24) & 0xFF);
-				b[off+1] = (byte) ((v >>> 16) & 0xFF);
-				b[off+2] = (byte) ((v >>>  8) & 0xFF);
-				b[off+3] = (byte) ((v >>>  0) & 0xFF);
+				putInt(v, b, off);
 			}
 
 			@Override final 
@@ -131,11 +148,7 @@ public interface Codec {
 					throw new NullPointerException("b");
 				if(b.length - off < INTEGER_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
-				int b1 = b[off] & 0xFF;
-				int b2 = b[off+1] & 0xFF;
-				int b3 = b[off+2] & 0xFF;
-				int b4 = b[off+3] & 0xFF;
-				return ((b1 << 24) + (b2 << 16) + (b3 << 8) + (b4 << 0));
+				return getInt(b, off);
 			}
 
 			@Override final 
@@ -149,8 +162,7 @@ public interface Codec {
 				if(b.length - off < SHORT_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
 
-				b[off] = (byte) ((v >>> 8) & 0xFF);
-				b[off+1] = (byte) ((v >>> 0) & 0xFF);
+				putShort(v, b, off);
 			}
 			@Override final 
 			public short readShort(final byte[] b) throws NullPointerException, IllegalArgumentException {
@@ -163,10 +175,337 @@ public interface Codec {
 				if(b.length - off < SHORT_BYTES) 
 					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off).toString());
 
+				return getShort(b, off);
+			}
+
+			/* 
+			 * single (wide) access per value - direct buffers are native memory loads,
+			 * byte swapped as necessary.
+			 */
+			@Override final 
+			public void writeLong(final long v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				b.putLong(off, b.order() == ByteOrder.BIG_ENDIAN ? v : Long.reverseBytes(v));
+			}
+			@Override final 
+			public long readLong(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				final long v = b.getLong(off);
+				return b.order() == ByteOrder.BIG_ENDIAN ? v : Long.reverseBytes(v);
+			}
+			@Override final 
+			public void writeInt(final int v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				b.putInt(off, b.order() == ByteOrder.BIG_ENDIAN ? v : Integer.reverseBytes(v));
+			}
+			@Override final 
+			public int readInt(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				final int v = b.getInt(off);
+				return b.order() == ByteOrder.BIG_ENDIAN ? v : Integer.reverseBytes(v);
+			}
+			@Override final 
+			public void writeShort(final short v, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				b.putShort(off, b.order() == ByteOrder.BIG_ENDIAN ? v : Short.reverseBytes(v));
+			}
+			@Override final 
+			public short readShort(final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				final short v = b.getShort(off);
+				return b.order() == ByteOrder.BIG_ENDIAN ? v : Short.reverseBytes(v);
+			}
+
+			/* 
+			 * bulk ByteBuffer variants copy via a big-endian view buffer - for direct
+			 * buffers a (swapping) memory copy. 
+			 */
+			@Override final 
+			public void writeLongs(final long[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, LONG_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=LONG_BYTES)
+					putLong(v[i], b, p);
+			}
+			@Override final 
+			public void readLongs(final byte[] b, final int off, final long[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, LONG_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=LONG_BYTES)
+					v[i] = getLong(b, p);
+			}
+			@Override final 
+			public void writeLongs(final long[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asLongBuffer().put(v, voff, n);
+			}
+			@Override final 
+			public void readLongs(final ByteBuffer b, final int off, final long[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asLongBuffer().get(v, voff, n);
+			}
+
+			@Override final 
+			public void writeInts(final int[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, INTEGER_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=INTEGER_BYTES)
+					putInt(v[i], b, p);
+			}
+			@Override final 
+			public void readInts(final byte[] b, final int off, final int[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, INTEGER_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=INTEGER_BYTES)
+					v[i] = getInt(b, p);
+			}
+			@Override final 
+			public void writeInts(final int[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asIntBuffer().put(v, voff, n);
+			}
+			@Override final 
+			public void readInts(final ByteBuffer b, final int off, final int[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asIntBuffer().get(v, voff, n);
+			}
+
+			@Override final 
+			public void writeShorts(final short[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, SHORT_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=SHORT_BYTES)
+					putShort(v[i], b, p);
+			}
+			@Override final 
+			public void readShorts(final byte[] b, final int off, final short[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException {
+				checkBounds(v.length, voff, n, b.length, off, SHORT_BYTES);
+				for(int i=voff, p=off; i<voff+n; i++, p+=SHORT_BYTES)
+					v[i] = getShort(b, p);
+			}
+			@Override final 
+			public void writeShorts(final short[] v, final int voff, final int n, final ByteBuffer b, final int off) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asShortBuffer().put(v, voff, n);
+			}
+			@Override final 
+			public void readShorts(final ByteBuffer b, final int off, final short[] v, final int voff, final int n) throws NullPointerException, IndexOutOfBoundsException {
+				view(b, off).asShortBuffer().get(v, voff, n);
+			}
+
+			// ------------------------------------------------------------------------
+			// unchecked
+			// ------------------------------------------------------------------------
+			private static void checkBounds(final int vlen, final int voff, final int n, final int blen, final int off, final int size) {
+				if(voff < 0 || n < 0 || vlen - voff < n)
+					throw new IllegalArgumentException(String.format("(v.len:%d, voff:%d, n:%d)", vlen, voff, n));
+				if(off < 0 || (blen - off) / size < n)
+					throw new IllegalArgumentException(String.format("(b.len:%d, off:%d, n:%d)", blen, off, n));
+			}
+			/** @return big-endian view of b from off to limit */
+			private static ByteBuffer view(final ByteBuffer b, final int off) {
+				final ByteBuffer d = b.duplicate().order(ByteOrder.BIG_ENDIAN);
+				d.position(off);
+				return d;
+			}
+			private static void putLong(final long v, final byte[] b, final int off) {
+				b[off]   = (byte)(v >>> 56);
+				b[off+1] = (byte)(v >>> 48);
+				b[off+2] = (byte)(v >>> 40);
+				b[off+3] = (byte)(v >>> 32);
+				b[off+4] = (byte)(v >>> 24);
+				b[off+5] = (byte)(v >>> 16);
+				b[off+6] = (byte)(v >>>  8);
+				b[off+7] = (byte)(v >>>  0);
+			}
+			private static long getLong(final byte[] b, final int off) {
+				return ( 
+						((long)b[off] << 56) +
+						((long)(b[off+1] & 255) << 48) +
+						((long)(b[off+2] & 255) << 40) +
+						((long)(b[off+3] & 255) << 32) +
+						((long)(b[off+4] & 255) << 24) +
+						((b[off+5] & 255) << 16) +
+						((b[off+6] & 255) <<  8) +
+						((b[off+7] & 255) <<  0)
+						);
+			}
+			private static void putInt(final int v, final byte[] b, final int off) {
+				b[off]   = (byte) ((v >>> 24) & 0xFF);
+				b[off+1] = (byte) ((v >>> 16) & 0xFF);
+				b[off+2] = (byte) ((v >>>  8) & 0xFF);
+				b[off+3] = (byte) ((v >>>  0) & 0xFF);
+			}
+			private static int getInt(final byte[] b, final int off) {
+				int b1 = b[off] & 0xFF;
+				int b2 = b[off+1] & 0xFF;
+				int b3 = b[off+2] & 0xFF;
+				int b4 = b[off+3] & 0xFF;
+				return ((b1 << 24) + (b2 << 16) + (b3 << 8) + (b4 << 0));
+			}
+			private static void putShort(final short v, final byte[] b, final int off) {
+				b[off] = (byte) ((v >>> 8) & 0xFF);
+				b[off+1] = (byte) ((v >>> 0) & 0xFF);
+			}
+			private static short getShort(final byte[] b, final int off) {
 				int b1 = b[off] & 0xFF;
 				int b2 = b[off+1] & 0xFF;
 				return (short)((b1 << 8) + (b2 << 0));
 			}
 		}
 	}
+
+	// ------------------------------------------------------------------------
+	// Codec.VarInt
+	// ------------------------------------------------------------------------
+	/**
+	 * Variable length encodings of (64 bit) integers:
+	 * <ul>
+	 * <li>unsigned LEB128 - 7 bits per byte, low bits first, high bit set on all
+	 * but the last byte.  1 byte for values < 128, at most {@link #MAX_BYTES}.</li>
+	 * <li>signed - zigzag mapped to unsigned, so small magnitudes are small.</li>
+	 * <li>deltas - a non-decreasing run of values as its first value followed by
+	 * the differences of successive values, all unsigned LEB128.</li>
+	 * </ul>
+	 * <code>byte[]</code> variants take an offset and return the number of bytes 
+	 * written; single value decoders return the value, which spans {@link #sizeOf(long)}
+	 * bytes.  Decoders reject with an {@link IllegalArgumentException} truncated,
+	 * over-long (more than {@link #MAX_BYTES}, or a 10th byte above 1) and 
+	 * non-canonical (a redundant trailing 0x00 byte) encodings.
+	 * {@link ByteBuffer} variants are relative - i.e. from and advancing the
+	 * buffer position.
+	 */
+	public static final class VarInt {
+		public static final int MAX_BYTES = 10;
+
+		private VarInt() {}
+
+		/** @return bytes required for the unsigned LEB128 encoding of v */
+		public static int sizeOf(final long v) {
+			final int bits = Long.SIZE - Long.numberOfLeadingZeros(v | 1);
+			return (bits + 6) / 7;
+		}
+
+		// ------------------------------------------------------------------------
+		// zigzag
+		// ------------------------------------------------------------------------
+		/** maps signed to unsigned: 0, -1, 1, -2, ... to 0, 1, 2, 3, ... */
+		public static long zigzag(final long v) {
+			return (v << 1) ^ (v >> 63);
+		}
+		public static long unzigzag(final long v) {
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		// ------------------------------------------------------------------------
+		// byte[] 
+		// ------------------------------------------------------------------------
+		/** @return bytes written */
+		public static int writeLong(long v, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+			if(b.length - off < sizeOf(v))
+				throw new IllegalArgumentException(String.format("(b.len:%d, off:%d)", b.length, off));
+			int p = off;
+			while((v & ~0x7FL) != 0) {
+				b[p++] = (byte) (v | 0x80);
+				v >>>= 7;
+			}
+			b[p++] = (byte) v;
+			return p - off;
+		}
+		public static long readLong(final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+			long v = 0;
+			for(int p = off, shift = 0; ; p++, shift += 7) {
+				if(p >= b.length)
+					throw new IllegalArgumentException(String.format("truncated varint (b.len:%d, off:%d)", b.length, off));
+				final int c = b[p];
+				check(c, shift, p > off, off);
+				v |= (long) (c & 0x7F) << shift;
+				if(c >= 0)
+					return v;
+			}
+		}
+		/** 
+		 * @param c byte at shift
+		 * @param more true if not the first byte
+		 * @throws IllegalArgumentException if c makes the encoding over-long or non-canonical
+		 */
+		private static void check(final int c, final int shift, final boolean more, final long off) throws IllegalArgumentException {
+			if(shift == 63 && (c & 0xFF) > 1)
+				throw new IllegalArgumentException(String.format("malformed (over-long) varint at off:%d", off));
+			if(c == 0 && more)
+				throw new IllegalArgumentException(String.format("malformed (non-canonical) varint at off:%d", off));
+		}
+		/** @return bytes written */
+		public static int writeSignedLong(final long v, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+			return writeLong(zigzag(v), b, off);
+		}
+		public static long readSignedLong(final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+			return unzigzag(readLong(b, off));
+		}
+
+		/**
+		 * @param v non-decreasing values
+		 * @return bytes written
+		 */
+		public static int writeDeltas(final long[] v, final int voff, final int n, final byte[] b, final int off) throws NullPointerException, IllegalArgumentException {
+			int p = off;
+			long prev = 0;
+			for(int i=voff; i<voff+n; i++) {
+				final long d = v[i] - prev;
+				if(i > voff && v[i] < prev)
+					throw new IllegalArgumentException(String.format("run not sorted at %d", i));
+				p += writeLong(d, b, p);
+				prev = v[i];
+			}
+			return p - off;
+		}
+		/** @return bytes read */
+		public static int readDeltas(final byte[] b, final int off, final long[] v, final int voff, final int n) throws NullPointerException, IllegalArgumentException {
+			int p = off;
+			long prev = 0;
+			for(int i=voff; i<voff+n; i++) {
+				final int start = p;
+				long d = 0;
+				for(int shift = 0; ; shift += 7) {
+					if(p >= b.length)
+						throw new IllegalArgumentException(String.format("truncated varint (b.len:%d, off:%d)", b.length, start));
+					final int c = b[p++];
+					check(c, shift, p - 1 > start, start);
+					d |= (long) (c & 0x7F) << shift;
+					if(c >= 0)
+						break;
+				}
+				v[i] = prev += d;
+			}
+			return p - off;
+		}
+
+		// ------------------------------------------------------------------------
+		// ByteBuffer 
+		// ------------------------------------------------------------------------
+		public static void writeLong(long v, final ByteBuffer b) throws NullPointerException, BufferOverflowException {
+			while((v & ~0x7FL) != 0) {
+				b.put((byte) (v | 0x80));
+				v >>>= 7;
+			}
+			b.put((byte) v);
+		}
+		public static long readLong(final ByteBuffer b) throws NullPointerException, BufferUnderflowException, IllegalArgumentException {
+			final int off = b.position();
+			long v = 0;
+			for(int shift = 0; ; shift += 7) {
+				final int c = b.get();
+				check(c, shift, shift > 0, off);
+				v |= (long) (c & 0x7F) << shift;
+				if(c >= 0)
+					return v;
+			}
+		}
+		public static void writeSignedLong(final long v, final ByteBuffer b) throws NullPointerException, BufferOverflowException {
+			writeLong(zigzag(v), b);
+		}
+		public static long readSignedLong(final ByteBuffer b) throws NullPointerException, BufferUnderflowException, IllegalArgumentException {
+			return unzigzag(readLong(b));
+		}
+		/** @param v non-decreasing values */
+		public static void writeDeltas(final long[] v, final int voff, final int n, final ByteBuffer b) throws NullPointerException, BufferOverflowException, IllegalArgumentException {
+			long prev = 0;
+			for(int i=voff; i<voff+n; i++) {
+				if(i > voff && v[i] < prev)
+					throw new IllegalArgumentException(String.format("run not sorted at %d", i));
+				writeLong(v[i] - prev, b);
+				prev = v[i];
+			}
+		}
+		public static void readDeltas(final ByteBuffer b, final long[] v, final int voff, final int n) throws NullPointerException, BufferUnderflowException, IllegalArgumentException {
+			long prev = 0;
+			for(int i=voff; i<voff+n; i++) {
+				v[i] = prev += readLong(b);
+			}
+		}
+	}
 }
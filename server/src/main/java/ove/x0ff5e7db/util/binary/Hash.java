@@ -22,6 +22,16 @@
 
 package ove.x0ff5e7db.util.binary;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Hash functions of byte sequences - whole arrays, array ranges, and (heap or
+ * direct) {@link ByteBuffer} content - all hashing in place.  For all inputs, 
+ * the same byte sequence hashes to the same value.
+ * <p>
+ * Sequences presented in chunks - e.g. as read from a socket - are hashed
+ * incrementally by a {@link Stream}.
+ */
 public interface Hash {
 	/**
 	 * Provider is not required to test for nulls, etc.  Could possibly 
@@ -32,8 +42,51 @@ public interface Hash {
 	 */
 	int hash(byte[] b) ;
 	
+	/**
+	 * 64 bit hash.  Providers of 32 (or fewer) bits return their {@link #hash(byte[])} 
+	 * zero extended.  Inversely, 64 bit providers' {@link #hash(byte[])} is the 
+	 * xor fold of this hash. 
+	 * @param b byte buffer to be hashed
+	 * @return hash of b
+	 */
+	long hash64(byte[] b);
+	
+	/* -- ranges: b[off, off+len) -- */
+	int hash(byte[] b, int off, int len);
+	long hash64(byte[] b, int off, int len);
+
+	/* -- buffers: from position to limit, which are unchanged -- */
+	int hash(ByteBuffer b);
+	long hash64(ByteBuffer b);
+	/* -- buffers: absolute range [off, off+len) -- */
+	int hash(ByteBuffer b, int off, int len);
+	long hash64(ByteBuffer b, int off, int len);
+
 	int bitsize();
 
+	/** @return a new incremental hasher of this provider */
+	Stream stream();
+
+	// ------------------------------------------------------------------------
+	// Hash.Stream
+	// ------------------------------------------------------------------------
+	/**
+	 * Incremental hash of a byte sequence presented in any number of chunks.
+	 * The digest of all chunks updated since creation (or reset) equals the
+	 * provider's hash of their concatenation.  Not thread-safe.
+	 */
+	public interface Stream {
+		Stream update(byte[] b, int off, int len);
+		/** updates with b's content from position to limit, which are unchanged */
+		Stream update(ByteBuffer b);
+		Stream update(ByteBuffer b, int off, int len);
+		/** @return digest as {@link Hash#hash(byte[])} - stream state is unchanged */
+		int digest();
+		/** @return digest as {@link Hash#hash64(byte[])} - stream state is unchanged */
+		long digest64();
+		Stream reset();
+	}
+
 	// ------------------------------------------------------------------------
 	// Convenience instances
 	// ------------------------------------------------------------------------
@@ -41,6 +94,14 @@ public interface Hash {
 	Hash MBUint32 = new ModifiedBernstein.Uint32();
 	/** */
 	Hash MBInt32 = new ModifiedBernstein.Int32();
+	/** */
+	Hash Murmur3_32 = new Murmur3.X86_32();
+	/** */
+	Hash CRC32C = new CRC.CRC32C();
+	/** */
+	Hash XXH64 = new XXHash.H64();
+	/** */
+	Hash WyH64 = new WyHash.H64();
 	
 	// ------------------------------------------------------------------------
 	// Providers 
@@ -48,7 +109,11 @@ public interface Hash {
 	
 	enum Provider {
 		MBInt32 (Hash.MBInt32, ModifiedBernstein.class),
-		MBUint32 (Hash.MBUint32,  ModifiedBernstein.class);
+		MBUint32 (Hash.MBUint32,  ModifiedBernstein.class),
+		Murmur3_32 (Hash.Murmur3_32, Murmur3.class),
+		CRC32C (Hash.CRC32C, CRC.class),
+		XXH64 (Hash.XXH64, XXHash.class),
+		WyH64 (Hash.WyH64, WyHash.class);
 		final public String id;
 		final public Hash provider;
 		Provider(Hash provider, Class<?> algogroup){
@@ -59,12 +124,25 @@ public interface Hash {
 
 	/** based on the various copies of implementation found on the net. Name is not canonical. */
 	public interface ModifiedBernstein {
-		public static class Int32 implements Hash{
-			@Override public int bitsize() { return 32;}
-			@Override public int hash(byte[] b) {
-				int h = 5381;
-				for(int i=0; i<b.length; i++) {
-					h = ((h << 5) - h) + b[i];
+		public static class Int32 extends Hash32 {
+			static final int H0 = 5381;
+			@Override <T> int hash(final Access<T> a, final T in, final int off, final int len) {
+				return update(H0, a, in, off, len);
+			}
+			@Override public Stream stream() {
+				return new Stream32() {
+					int h = H0;
+					@Override final <T> void update(final Access<T> a, final T in, final int off, final int len) {
+						h = Int32.update(h, a, in, off, len);
+					}
+					@Override final public int digest() { return h & mask(); }
+					@Override final public Stream reset() { h = H0; return this; }
+				};
+			}
+			int mask() { return -1; }
+			static <T> int update(int h, final Access<T> a, final T in, final int off, final int len) {
+				for(int i=off; i<off+len; i++) {
+					h = ((h << 5) - h) + (byte) a.getByte(in, i);
 				}
 				return h;
 			}
@@ -72,8 +150,497 @@ public interface Hash {
 		/** Masks output of {@link Int32} with {@link Integer#MAX_VALUE} */
 		public static final class Uint32 extends Int32{
 			@Override final public int bitsize() { return 31;}
-			@Override final public int hash(byte[] b) {
- 				return super.hash(b) & Integer.MAX_VALUE;  
+			@Override final <T> int hash(final Access<T> a, final T in, final int off, final int len) {
+ 				return super.hash(a, in, off, len) & Integer.MAX_VALUE;  
+			}
+			@Override final int mask() { return Integer.MAX_VALUE; }
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// provider bases
+	// ------------------------------------------------------------------------
+	/** base of 32 bit providers - all inputs are hashed by a single implementation */
+	public abstract static class Hash32 implements Hash {
+		@Override public int bitsize() { return 32;}
+		@Override final public int hash(byte[] b) {
+			return hash(Access.ARRAY, b, 0, b.length);
+		}
+		@Override final public long hash64(byte[] b) {
+			return hash(Access.ARRAY, b, 0, b.length) & 0xFFFFFFFFL;
+		}
+		@Override final public int hash(byte[] b, int off, int len) {
+			Access.checkRange(b.length, off, len);
+			return hash(Access.ARRAY, b, off, len);
+		}
+		@Override final public long hash64(byte[] b, int off, int len) {
+			return hash(b, off, len) & 0xFFFFFFFFL;
+		}
+		@Override final public int hash(ByteBuffer b) {
+			return hash(Access.BUFFER, b, b.position(), b.remaining());
+		}
+		@Override final public long hash64(ByteBuffer b) {
+			return hash(b) & 0xFFFFFFFFL;
+		}
+		@Override final public int hash(ByteBuffer b, int off, int len) {
+			Access.checkRange(b.limit(), off, len);
+			return hash(Access.BUFFER, b, off, len);
+		}
+		@Override final public long hash64(ByteBuffer b, int off, int len) {
+			return hash(b, off, len) & 0xFFFFFFFFL;
+		}
+		abstract <T> int hash(Access<T> a, T in, int off, int len);
+	}
+	/** base of 64 bit providers - all inputs are hashed by a single implementation */
+	public abstract static class Hash64 implements Hash {
+		@Override public int bitsize() { return 64;}
+		@Override final public int hash(byte[] b) {
+			return fold(hash64(Access.ARRAY, b, 0, b.length));
+		}
+		@Override final public long hash64(byte[] b) {
+			return hash64(Access.ARRAY, b, 0, b.length);
+		}
+		@Override final public int hash(byte[] b, int off, int len) {
+			return fold(hash64(b, off, len));
+		}
+		@Override final public long hash64(byte[] b, int off, int len) {
+			Access.checkRange(b.length, off, len);
+			return hash64(Access.ARRAY, b, off, len);
+		}
+		@Override final public int hash(ByteBuffer b) {
+			return fold(hash64(b));
+		}
+		@Override final public long hash64(ByteBuffer b) {
+			return hash64(Access.BUFFER, b, b.position(), b.remaining());
+		}
+		@Override final public int hash(ByteBuffer b, int off, int len) {
+			return fold(hash64(b, off, len));
+		}
+		@Override final public long hash64(ByteBuffer b, int off, int len) {
+			Access.checkRange(b.limit(), off, len);
+			return hash64(Access.BUFFER, b, off, len);
+		}
+		abstract <T> long hash64(Access<T> a, T in, int off, int len);
+
+		static int fold(final long h) {
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/** base of streams - all inputs are presented as chunks to a single implementation */
+	public abstract static class AbstractStream implements Stream {
+		@Override final public Stream update(byte[] b, int off, int len) {
+			Access.checkRange(b.length, off, len);
+			update(Access.ARRAY, b, off, len);
+			return this;
+		}
+		@Override final public Stream update(ByteBuffer b) {
+			update(Access.BUFFER, b, b.position(), b.remaining());
+			return this;
+		}
+		@Override final public Stream update(ByteBuffer b, int off, int len) {
+			Access.checkRange(b.limit(), off, len);
+			update(Access.BUFFER, b, off, len);
+			return this;
+		}
+		abstract <T> void update(Access<T> a, T in, int off, int len);
+	}
+	/** base of 32 bit provider streams */
+	public abstract static class Stream32 extends AbstractStream {
+		@Override final public long digest64() {
+			return digest() & 0xFFFFFFFFL;
+		}
+	}
+	/** base of 64 bit provider streams */
+	public abstract static class Stream64 extends AbstractStream {
+		@Override final public int digest() {
+			return Hash64.fold(digest64());
+		}
+	}
+
+	/** MurmurHash3 (Austin Appleby) - x86 32 bit variant, seed 0 */
+	public interface Murmur3 {
+		public static final class X86_32 extends Hash32 {
+			static final int C1 = 0xcc9e2d51;
+			static final int C2 = 0x1b873593;
+			@SuppressWarnings("fallthrough")
+			@Override final <T> int hash(final Access<T> a, final T b, final int off, final int len) {
+				int h = 0;
+				final int end = off + (len & ~3);
+				for(int p = off; p < end; p += 4) {
+					h ^= mixK(a.getInt(b, p));
+					h = Integer.rotateLeft(h, 13);
+					h = h * 5 + 0xe6546b64;
+				}
+				int k = 0;
+				switch (len & 3) {
+				case 3: k ^= a.getByte(b, end + 2) << 16;
+				case 2: k ^= a.getByte(b, end + 1) << 8;
+				case 1: k ^= a.getByte(b, end);
+					h ^= mixK(k);
+				}
+				return fmix(h ^ len);
+			}
+			@Override final public Stream stream() {
+				return new Stream32() {
+					int h;
+					long total;
+					/* partial block - n bytes, little-endian */
+					int k, n;
+					@Override final <T> void update(final Access<T> a, final T in, int off, int len) {
+						total += len;
+						for(; n != 0 && len > 0; off++, len--)
+							push(a.getByte(in, off));
+						for(; len >= 4; off += 4, len -= 4) {
+							h ^= mixK(a.getInt(in, off));
+							h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+						}
+						for(; len > 0; off++, len--)
+							push(a.getByte(in, off));
+					}
+					private final void push(final int c) {
+						k |= c << (n++ << 3);
+						if(n == 4) {
+							h ^= mixK(k);
+							h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+							k = n = 0;
+						}
+					}
+					@Override final public int digest() {
+						return fmix((n == 0 ? h : h ^ mixK(k)) ^ (int) total);
+					}
+					@Override final public Stream reset() {
+						h = k = n = 0;
+						total = 0;
+						return this;
+					}
+				};
+			}
+			static int mixK(int k) {
+				k *= C1;
+				k = Integer.rotateLeft(k, 15);
+				return k * C2;
+			}
+			static int fmix(int h) {
+				h ^= h >>> 16;
+				h *= 0x85ebca6b;
+				h ^= h >>> 13;
+				h *= 0xc2b2ae35;
+				return h ^ (h >>> 16);
+			}
+		}
+	}
+
+	/** cyclic redundancy checks - table driven, slicing by 8 */
+	public interface CRC {
+		/** CRC-32C (Castagnoli) as used by iSCSI, ext4, etc. */
+		public static final class CRC32C extends Hash32 {
+			static final int POLY = 0x82F63B78; // reflected
+			static final int[][] T = new int[8][256];
+			static {
+				for(int i=0; i<256; i++) {
+					int c = i;
+					for(int k=0; k<8; k++)
+						c = (c >>> 1) ^ ((c & 1) * POLY);
+					T[0][i] = c;
+				}
+				for(int i=0; i<256; i++)
+					for(int t=1; t<8; t++)
+						T[t][i] = (T[t-1][i] >>> 8) ^ T[0][T[t-1][i] & 0xFF];
+			}
+			@Override final <T> int hash(final Access<T> a, final T b, final int off, final int len) {
+				return ~update(~0, a, b, off, len);
+			}
+			@Override final public Stream stream() {
+				return new Stream32() {
+					int crc = ~0;
+					@Override final <T> void update(final Access<T> a, final T in, final int off, final int len) {
+						crc = CRC.CRC32C.update(crc, a, in, off, len);
+					}
+					@Override final public int digest() { return ~crc; }
+					@Override final public Stream reset() { crc = ~0; return this; }
+				};
+			}
+			/** @return crc register after update - pre/post inversion is the caller's */
+			static <T> int update(int crc, final Access<T> a, final T b, int off, int len) {
+				final int[] t0 = T[0], t1 = T[1], t2 = T[2], t3 = T[3], t4 = T[4], t5 = T[5], t6 = T[6], t7 = T[7];
+				for(; len >= 8; off += 8, len -= 8) {
+					crc ^= a.getInt(b, off);
+					final int hi = a.getInt(b, off + 4);
+					crc = t7[crc & 0xFF] ^ t6[(crc >>> 8) & 0xFF] ^ t5[(crc >>> 16) & 0xFF] ^ t4[crc >>> 24]
+						^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+				}
+				for(; len > 0; off++, len--)
+					crc = (crc >>> 8) ^ t0[(crc ^ a.getByte(b, off)) & 0xFF];
+				return crc;
+			}
+		}
+	}
+
+	/** xxHash (Yann Collet) - 64 bit variant, seed 0 */
+	public interface XXHash {
+		public static final class H64 extends Hash64 {
+			static final long P1 = 0x9E3779B185EBCA87L;
+			static final long P2 = 0xC2B2AE3D27D4EB4FL;
+			static final long P3 = 0x165667B19E3779F9L;
+			static final long P4 = 0x85EBCA77C2B2AE63L;
+			static final long P5 = 0x27D4EB2F165667C5L;
+			@Override final <T> long hash64(final Access<T> a, final T b, final int off, final int len) {
+				final int end = off + len;
+				int p = off;
+				long h;
+				if(len >= 32) {
+					long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1;
+					for(final int limit = end - 32; p <= limit; p += 32) {
+						v1 = round(v1, a.getLong(b, p));
+						v2 = round(v2, a.getLong(b, p + 8));
+						v3 = round(v3, a.getLong(b, p + 16));
+						v4 = round(v4, a.getLong(b, p + 24));
+					}
+					h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+					h = merge(h, v1);
+					h = merge(h, v2);
+					h = merge(h, v3);
+					h = merge(h, v4);
+				} else {
+					h = P5;
+				}
+				h += len;
+				return tail(h, a, b, p, end);
+			}
+			@Override final public Stream stream() {
+				return new Stream64() {
+					long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1;
+					long total;
+					/* partial stripe */
+					final byte[] mem = new byte[32];
+					int n;
+					@Override final <T> void update(final Access<T> a, final T in, int off, int len) {
+						total += len;
+						if(n + len < 32) {
+							a.copy(in, off, mem, n, len);
+							n += len;
+							return;
+						}
+						if(n > 0) {
+							final int fill = 32 - n;
+							a.copy(in, off, mem, n, fill);
+							stripe(Access.ARRAY, mem, 0);
+							off += fill;
+							len -= fill;
+							n = 0;
+						}
+						for(; len >= 32; off += 32, len -= 32)
+							stripe(a, in, off);
+						a.copy(in, off, mem, 0, len);
+						n = len;
+					}
+					private final <T> void stripe(final Access<T> a, final T in, final int p) {
+						v1 = round(v1, a.getLong(in, p));
+						v2 = round(v2, a.getLong(in, p + 8));
+						v3 = round(v3, a.getLong(in, p + 16));
+						v4 = round(v4, a.getLong(in, p + 24));
+					}
+					@Override final public long digest64() {
+						long h;
+						if(total >= 32) {
+							h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+							h = merge(h, v1);
+							h = merge(h, v2);
+							h = merge(h, v3);
+							h = merge(h, v4);
+						} else {
+							h = P5;
+						}
+						return tail(h + total, Access.ARRAY, mem, 0, n);
+					}
+					@Override final public Stream reset() {
+						v1 = P1 + P2; v2 = P2; v3 = 0; v4 = -P1;
+						total = 0;
+						n = 0;
+						return this;
+					}
+				};
+			}
+			static long round(long acc, final long lane) {
+				acc += lane * P2;
+				acc = Long.rotateLeft(acc, 31);
+				return acc * P1;
+			}
+			static long merge(long h, final long v) {
+				h ^= round(0, v);
+				return h * P1 + P4;
+			}
+			/** @return hash after processing the (less than 32 byte) tail and final avalanche */
+			static <T> long tail(long h, final Access<T> a, final T b, int p, final int end) {
+				for(; p + 8 <= end; p += 8) {
+					h ^= round(0, a.getLong(b, p));
+					h = Long.rotateLeft(h, 27) * P1 + P4;
+				}
+				if(p + 4 <= end) {
+					h ^= a.getUint(b, p) * P1;
+					h = Long.rotateLeft(h, 23) * P2 + P3;
+					p += 4;
+				}
+				for(; p < end; p++) {
+					h ^= a.getByte(b, p) * P5;
+					h = Long.rotateLeft(h, 11) * P1;
+				}
+				h ^= h >>> 33;
+				h *= P2;
+				h ^= h >>> 29;
+				h *= P3;
+				return h ^ (h >>> 32);
+			}
+		}
+	}
+
+	/** wyhash (Wang Yi) - final version 4, default secret, seed 0 */
+	public interface WyHash {
+		public static final class H64 extends Hash64 {
+			static final long S0 = 0x2d358dccaa6c78a5L;
+			static final long S1 = 0x8bb84b93962eacc9L;
+			static final long S2 = 0x4b33a62ed433d4a3L;
+			static final long S3 = 0x4d5a2da51de1aa47L;
+			/** initial state - seed (0) mixed with the secret */
+			static final long SEED = mix(S0, S1);
+			@Override final <T> long hash64(final Access<T> acc, final T b, final int off, final int len) {
+				return hash64(acc, b, off, len, SEED);
+			}
+			/** 
+			 * seeded variant - e.g. for the (seeded) published test vectors
+			 * @return wyhash of b with the given seed
+			 */
+			static long hash64(final byte[] b, final long seed) {
+				return hash64(Access.ARRAY, b, 0, b.length, seed ^ mix(seed ^ S0, S1));
+			}
+			/** @param seed initial state - the seed mixed with the secret */
+			private static <T> long hash64(final Access<T> acc, final T b, final int off, final int len, long seed) {
+				long a, bb;
+				if(len <= 16) {
+					if(len >= 4) {
+						final int q = (len >>> 3) << 2;
+						a = (acc.getUint(b, off) << 32) | acc.getUint(b, off + q);
+						bb = (acc.getUint(b, off + len - 4) << 32) | acc.getUint(b, off + len - 4 - q);
+					} else if(len > 0) {
+						a = ((long) acc.getByte(b, off) << 16) | ((long) acc.getByte(b, off + (len >>> 1)) << 8) | acc.getByte(b, off + len - 1);
+						bb = 0;
+					} else {
+						a = bb = 0;
+					}
+				} else {
+					int p = off;
+					int i = len;
+					if(i >= 48) {
+						long see1 = seed, see2 = seed;
+						do {
+							seed = mix(acc.getLong(b, p) ^ S1, acc.getLong(b, p + 8) ^ seed);
+							see1 = mix(acc.getLong(b, p + 16) ^ S2, acc.getLong(b, p + 24) ^ see1);
+							see2 = mix(acc.getLong(b, p + 32) ^ S3, acc.getLong(b, p + 40) ^ see2);
+							p += 48;
+							i -= 48;
+						} while(i >= 48);
+						seed ^= see1 ^ see2;
+					}
+					while(i > 16) {
+						seed = mix(acc.getLong(b, p) ^ S1, acc.getLong(b, p + 8) ^ seed);
+						i -= 16;
+						p += 16;
+					}
+					a = acc.getLong(b, p + i - 16);
+					bb = acc.getLong(b, p + i - 8);
+				}
+				a ^= S1;
+				bb ^= seed;
+				final long lo = a * bb;
+				final long hi = multiplyHigh(a, bb);
+				return mix(lo ^ S0 ^ len, hi ^ S1);
+			}
+			/**
+			 * wyhash reads the last 16 bytes of the input last, and consumes 48 byte
+			 * blocks only while at least 48 bytes remain.  The stream thus defers a 
+			 * full pending block until more input arrives, and retains the last 16 
+			 * bytes of the last consumed block.
+			 */
+			@Override final public Stream stream() {
+				return new Stream64() {
+					long seed = SEED, see1 = SEED, see2 = SEED;
+					boolean blocks;
+					long total;
+					/* [16 bytes of history][pending - n bytes] */
+					final byte[] buf = new byte[16 + 48];
+					int n;
+					@Override final <T> void update(final Access<T> a, final T in, int off, int len) {
+						total += len;
+						while(len > 0) {
+							if(n == 48) {
+								block(Access.ARRAY, buf, 16);
+								System.arraycopy(buf, 16 + 32, buf, 0, 16);
+								n = 0;
+							}
+							if(n == 0 && len > 48) {
+								for(; len > 48; off += 48, len -= 48)
+									block(a, in, off);
+								a.copy(in, off - 16, buf, 0, 16);
+							}
+							final int take = Math.min(48 - n, len);
+							a.copy(in, off, buf, 16 + n, take);
+							n += take;
+							off += take;
+							len -= take;
+						}
+					}
+					private final <T> void block(final Access<T> acc, final T b, final int p) {
+						seed = mix(acc.getLong(b, p) ^ S1, acc.getLong(b, p + 8) ^ seed);
+						see1 = mix(acc.getLong(b, p + 16) ^ S2, acc.getLong(b, p + 24) ^ see1);
+						see2 = mix(acc.getLong(b, p + 32) ^ S3, acc.getLong(b, p + 40) ^ see2);
+						blocks = true;
+					}
+					@Override final public long digest64() {
+						if(total <= 16)
+							return hash64(Access.ARRAY, buf, 16, n);
+						long seed = this.seed;
+						int p = 16;
+						int i = n;
+						if(i == 48) {
+							seed = mix(getLong(buf, p) ^ S1, getLong(buf, p + 8) ^ seed);
+							seed ^= mix(getLong(buf, p + 16) ^ S2, getLong(buf, p + 24) ^ see1) 
+								^ mix(getLong(buf, p + 32) ^ S3, getLong(buf, p + 40) ^ see2);
+							p += 48;
+							i = 0;
+						} else if(blocks) {
+							seed ^= see1 ^ see2;
+						}
+						for(; i > 16; i -= 16, p += 16)
+							seed = mix(getLong(buf, p) ^ S1, getLong(buf, p + 8) ^ seed);
+						final long a = getLong(buf, p + i - 16) ^ S1;
+						final long bb = getLong(buf, p + i - 8) ^ seed;
+						return mix((a * bb) ^ S0 ^ total, multiplyHigh(a, bb) ^ S1);
+					}
+					private final long getLong(final byte[] b, final int p) {
+						return Access.ARRAY.getLong(b, p);
+					}
+					@Override final public Stream reset() {
+						seed = see1 = see2 = SEED;
+						blocks = false;
+						total = 0;
+						n = 0;
+						return this;
+					}
+				};
+			}
+			/** @return lo ^ hi of the 128 bit product */
+			static long mix(final long a, final long b) {
+				return (a * b) ^ multiplyHigh(a, b);
+			}
+			/** @return high 64 bits of the unsigned 128 bit product */
+			static long multiplyHigh(final long a, final long b) {
+				final long alo = a & 0xFFFFFFFFL, ahi = a >>> 32;
+				final long blo = b & 0xFFFFFFFFL, bhi = b >>> 32;
+				final long lolo = alo * blo;
+				final long hilo = ahi * blo;
+				final long cross = (lolo >>> 32) + (hilo & 0xFFFFFFFFL) + alo * bhi;
+				return ahi * bhi + (hilo >>> 32) + (cross >>> 32);
 			}
 		}
 	}
@@ -22,6 +22,10 @@
 
 package ove.x0ff5e7db;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
 
 import ove.x0ff5e7db.util.Log;
@@ -42,4 +46,40 @@ public class TestBase {
 	protected static final long comprpcycle(long iters, long delta){
 		return (long) ((float)delta/iters);
 	}
+
+	// ------------------------------------------------------------------------
+	// utilities - components
+	// ------------------------------------------------------------------------
+	/** @return a root context with the given property overrides - faults fail the test */
+	protected static final Servant.Context newTestContext(final Properties props) {
+		return new Servant.Context() {
+			final Map<String, Object> map = new HashMap<String, Object>();
+			@Override final 
+			public void onError(Servant.Fault f) {
+				throw new RuntimeException(f.toString(), f.t);
+			}
+			@Override final 
+			public String getProperty(Servant.Property prop) {
+				return props.getProperty(prop.key(), prop.defval());
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V bind(String k, V v) {
+				return (V) map.put(k, v);
+			}
+			@SuppressWarnings("unchecked")
+			@Override final
+			public <V> V get(String k, Class<V> vc) {
+				return (V) map.get(k);
+			}
+		};
+	}
+	/** @return a new empty temp directory - deleted on exit */
+	protected static final File newTempDir(String prefix) throws Exception {
+		final File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdirs())
+			throw new Exception("failed to create temp dir " + dir);
+		dir.deleteOnExit();
+		return dir;
+	}
 }
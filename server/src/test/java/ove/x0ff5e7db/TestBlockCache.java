@@ -0,0 +1,171 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"server:cache", "capability:cache"})
+public class TestBlockCache extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static final int blocksize = 512;
+
+	static BlockCache newBlockCache(int blocksPerShard) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_CACHE_BLOCK_SIZE.key(), String.valueOf(blocksize));
+		props.setProperty(Servant.Property.DB_CACHE_SIZE.key(), String.valueOf(blocksize * blocksPerShard * BlockCache.SHARDS));
+		final BlockCache cache = new BlockCache();
+		cache.setContext(newTestContext(props));
+		return cache.initialize(BlockCache.class);
+	}
+
+	/** verifies cached block content is the block's id */
+	static final BlockCache.Reader<Boolean> verifier = new BlockCache.Reader<Boolean>() {
+		@Override public Boolean read(ByteBuffer arena, int base, int pos, int valid) {
+			Assert.assertEquals(valid, blocksize);
+			return Boolean.valueOf(arena.getLong(base + pos) == arena.getLong(base) );
+		}
+	};
+
+	/** read-through access - @return true on hit */
+	static boolean access(BlockCache cache, long blockno) {
+		final Boolean ok = cache.read(blockno, 8, verifier);
+		if(ok != null) {
+			Assert.assertTrue(ok.booleanValue(), "block content for " + blockno);
+			return true;
+		}
+		final ByteBuffer b = ByteBuffer.allocate(blocksize);
+		b.putLong(0, blockno).putLong(8, blockno);
+		cache.load(blockno, b);
+		return false;
+	}
+
+	// ------------------------------------------------------------------------
+	// test 2Q replacement
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testScanResistance () throws Throwable {
+		final BlockCache cache = newBlockCache(32);
+		final int nhot = 32;
+		long cold = 1000000;
+
+		// interleave hot accesses with short scans so the hot set gets
+		// evicted from probation and re-admitted to the main queue
+		for(int round=0; round<16; round++) {
+			for(long b=0; b<nhot; b++) access(cache, b);
+			for(int i=0; i<BlockCache.SHARDS * 12; i++) access(cache, cold++);
+		}
+
+		// long scan of cold blocks
+		for(int i=0; i<BlockCache.SHARDS * 32 * 100; i++) access(cache, cold++);
+		Assert.assertTrue(cache.evictions() > 0);
+
+		int hits = 0;
+		for(long b=0; b<nhot; b++) {
+			if(access(cache, b)) hits++;
+		}
+		logger.info("hot set hits after scan: %d of %d - cache hits:%d misses:%d evictions:%d", hits, nhot, cache.hits(), cache.misses(), cache.evictions());
+		Assert.assertEquals(hits, nhot, "hot set should survive the scan");
+	}
+
+	@Test()
+	public void testCapacity () throws Throwable {
+		final BlockCache cache = newBlockCache(8);
+		final int n = 8 * BlockCache.SHARDS * 4;
+		for(long b=0; b<n; b++) access(cache, b);
+		Assert.assertEquals(cache.misses(), n);
+		int hits = 0;
+		for(long b=0; b<n; b++) {
+			if(cache.read(b, 0, verifier) != null) hits++;
+		}
+		Assert.assertTrue(hits <= 8 * BlockCache.SHARDS, "hits can not exceed capacity");
+	}
+
+	// ------------------------------------------------------------------------
+	// test BlockCache.LongIntMap
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testLongIntMap () {
+		final int capacity = 1024;
+		final BlockCache.LongIntMap map = new BlockCache.LongIntMap(capacity);
+		final Map<Long, Integer> ref = new HashMap<Long, Integer>();
+		for(int i=0; i<100000; i++) {
+			final long k = rand.nextInt(capacity * 2);
+			final Long kk = Long.valueOf(k);
+			if(rand.nextBoolean() && (ref.size() < capacity || ref.containsKey(kk))) {
+				final int v = rand.nextInt(Integer.MAX_VALUE);
+				map.put(k, v);
+				ref.put(kk, Integer.valueOf(v));
+			} else {
+				final Integer v = ref.remove(kk);
+				Assert.assertEquals(map.remove(k), v == null ? -1 : v.intValue());
+			}
+			final long q = rand.nextInt(capacity * 2);
+			final Integer v = ref.get(Long.valueOf(q));
+			Assert.assertEquals(map.get(q), v == null ? -1 : v.intValue());
+		}
+	}
+
+	@Test()
+	public void testShardMapProbes () {
+		// a shard's map filled to capacity with blocks of that shard only
+		final int capacity = 4096;
+		final BlockCache.LongIntMap map = new BlockCache.LongIntMap(capacity);
+		final long[] blocks = new long[capacity];
+		int n = 0;
+		for(long blockno = 0; n < capacity; blockno++) {
+			if(BlockCache.shardOf(blockno) == 3)
+				blocks[n++] = blockno;
+		}
+		for(int i=0; i<capacity; i++)
+			map.put(blocks[i], i);
+
+		long probes = 0;
+		for(int i=0; i<capacity; i++) {
+			Assert.assertEquals(map.get(blocks[i]), i);
+			int slot = map.home(blocks[i]);
+			while(map.keys[slot] != blocks[i]) {
+				slot = (slot + 1) & map.mask;
+				probes++;
+			}
+		}
+		// half full - linear probing averages ~1.5 probes per (successful) lookup
+		Assert.assertTrue(probes < 2 * capacity, "mean displacement " + (double) probes / capacity);
+
+		// sequential blocks spread over all shards
+		final int[] perShard = new int[BlockCache.SHARDS];
+		for(long blockno = 0; blockno < BlockCache.SHARDS * 64; blockno++)
+			perShard[BlockCache.shardOf(blockno)]++;
+		for(int i=0; i<BlockCache.SHARDS; i++)
+			Assert.assertTrue(perShard[i] > 32 && perShard[i] < 96, "blocks in shard " + i + ": " + perShard[i]);
+	}
+}
@@ -0,0 +1,162 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.util.Properties;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"server:pool", "capability:pool"})
+public class TestBufferPool extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static final int minsize = 512;
+
+	static BufferPool newBufferPool(long capacity, boolean debug) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_CACHE_BLOCK_SIZE.key(), String.valueOf(minsize));
+		props.setProperty(Servant.Property.DB_BUFFER_POOL_SIZE.key(), String.valueOf(capacity));
+		props.setProperty(Servant.Property.DB_BUFFER_POOL_DEBUG.key(), String.valueOf(debug));
+		final BufferPool pool = new BufferPool();
+		pool.setContext(newTestContext(props));
+		return pool.initialize(BufferPool.class);
+	}
+
+	// ------------------------------------------------------------------------
+	// test size classes and reuse
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testSizeClasses () throws Throwable {
+		final BufferPool pool = newBufferPool(1 << 24, false);
+		Assert.assertEquals(pool.sizeClass(0), 0);
+		Assert.assertEquals(pool.sizeClass(minsize), 0);
+		Assert.assertEquals(pool.sizeClass(minsize + 1), 1);
+		Assert.assertEquals(pool.sizeClass(BufferPool.MAX_CLASS_SIZE), pool.sizeClass(BufferPool.MAX_CLASS_SIZE - 1));
+		Assert.assertEquals(pool.sizeClass(BufferPool.MAX_CLASS_SIZE + 1), -1);
+
+		for(int size : new int[]{1, minsize, minsize + 1, 3000, BufferPool.MAX_CLASS_SIZE}) {
+			final BufferPool.Buffer b = pool.acquire(size);
+			Assert.assertTrue(b.buf.isDirect(), "pooled buffer is direct");
+			Assert.assertEquals(b.buf.position(), 0);
+			Assert.assertEquals(b.buf.limit(), size);
+			Assert.assertEquals(b.buf.capacity(), pool.classSize(pool.sizeClass(size)));
+			b.release();
+		}
+	}
+
+	@Test()
+	public void testReuse () throws Throwable {
+		final BufferPool pool = newBufferPool(1 << 24, false);
+		final BufferPool.Buffer b = pool.acquire(100);
+		b.buf.putInt(0xCAFE);
+		b.release();
+		final long allocated = pool.allocated();
+
+		final BufferPool.Buffer b2 = pool.acquire(minsize);
+		Assert.assertSame(b2, b, "released buffer reused");
+		Assert.assertEquals(b2.buf.position(), 0);
+		Assert.assertEquals(b2.buf.limit(), minsize);
+		Assert.assertEquals(pool.allocated(), allocated, "no allocation on reuse");
+		b2.release();
+	}
+
+	/** buffers released on one thread are reused by others via the shared free list */
+	@Test()
+	public void testSharedReuse () throws Throwable {
+		final BufferPool pool = newBufferPool(1 << 24, false);
+		final BufferPool.Buffer[] held = new BufferPool.Buffer[BufferPool.LOCAL_MAX + 1];
+		for(int i=0; i<held.length; i++)
+			held[i] = pool.acquire(minsize);
+		for(BufferPool.Buffer b : held)
+			b.release();
+		final long allocated = pool.allocated();
+
+		final BufferPool.Buffer[] got = new BufferPool.Buffer[1];
+		final Thread t = new Thread(new Runnable() {
+			@Override public void run() { got[0] = pool.acquire(minsize); }
+		});
+		t.start();
+		t.join();
+		Assert.assertSame(got[0], held[held.length - 1], "overflow to shared list reused");
+		Assert.assertEquals(pool.allocated(), allocated, "no allocation on reuse");
+	}
+
+	// ------------------------------------------------------------------------
+	// test capacity bound
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testCapacity () throws Throwable {
+		final BufferPool pool = newBufferPool(4 * minsize, false);
+		final BufferPool.Buffer[] held = new BufferPool.Buffer[4];
+		for(int i=0; i<held.length; i++) {
+			held[i] = pool.acquire(minsize);
+			Assert.assertTrue(held[i].sizeclass >= 0, "pooled within capacity");
+		}
+		Assert.assertEquals(pool.allocated(), 4 * minsize);
+
+		final BufferPool.Buffer over = pool.acquire(minsize);
+		Assert.assertEquals(over.sizeclass, -1, "unpooled beyond capacity");
+		Assert.assertFalse(over.buf.isDirect(), "unpooled buffer is heap");
+		Assert.assertEquals(over.buf.limit(), minsize);
+		over.release();
+
+		final BufferPool.Buffer big = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+		Assert.assertEquals(big.sizeclass, -1, "unpooled above largest class");
+		Assert.assertEquals(big.buf.limit(), BufferPool.MAX_CLASS_SIZE + 1);
+		big.release();
+
+		for(BufferPool.Buffer b : held)
+			b.release();
+		Assert.assertEquals(pool.allocated(), 4 * minsize, "free buffers retained");
+	}
+
+	// ------------------------------------------------------------------------
+	// test release discipline
+	// ------------------------------------------------------------------------
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void testDoubleRelease () throws Throwable {
+		final BufferPool pool = newBufferPool(1 << 24, false);
+		final BufferPool.Buffer b = pool.acquire(minsize);
+		b.release();
+		b.release();
+	}
+
+	@Test()
+	public void testLeaks () throws Throwable {
+		final BufferPool pool = newBufferPool(1 << 24, true);
+		final BufferPool.Buffer b1 = pool.acquire(minsize);
+		final BufferPool.Buffer b2 = pool.acquire(3 * minsize);
+		Assert.assertEquals(pool.leaks().size(), 2);
+		b1.release();
+		Assert.assertEquals(pool.leaks().size(), 1);
+		Assert.assertTrue(pool.leaks().iterator().next().getMessage().contains(String.valueOf(3 * minsize)), "leak site records size");
+		b2.release();
+		Assert.assertTrue(pool.leaks().isEmpty(), "no leaks");
+
+		Assert.assertTrue(newBufferPool(1 << 24, false).leaks().isEmpty(), "not tracked unless debug");
+	}
+}
@@ -0,0 +1,288 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.util.binary.Codec;
+
+@Test(groups={"server:fs", "capability:storage"})
+public class TestImageStore extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static ImageStore newImageStore(File root, int segsize) throws Throwable {
+		return newImageStore(root, segsize, null);
+	}
+	static ImageStore newImageStore(File root, int segsize, BlockCache cache) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), root.getAbsolutePath());
+		props.setProperty(Servant.Property.DB_IMAGE_SEGMENT_SIZE.key(), String.valueOf(segsize));
+		final Servant.Context context = newTestContext(props);
+		if(cache != null)
+			context.bind(Servant.CtxBinding.block_cache.id(), cache);
+		final ImageStore store = new ImageStore();
+		store.setContext(context);
+		return store.initialize(ImageStore.class);
+	}
+	static void serve(Protocol.Service service, Protocol.Op op, long reqid, String key, long offset, byte[] data, TestProtocol.Replies replies) {
+		final ByteBuffer f = TestProtocol.frame(op, reqid, key.getBytes(), offset, data);
+		final Protocol.Request req = new Protocol.Request();
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		service.serve(req, replies);
+	}
+
+	// ------------------------------------------------------------------------
+	// test ops
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testOps () throws Throwable {
+		final ImageStore store = newImageStore(newTempDir("0ff5e7db-fs"), 4096);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		final byte[] v = new byte[1000];
+		rand.nextBytes(v);
+
+		serve(store, Protocol.Op.GET, 1, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(1).status, Protocol.Status.NOT_FOUND);
+
+		serve(store, Protocol.Op.PUT, 2, "k0", 0, v, replies);
+		Assert.assertEquals(replies.last(2).status, Protocol.Status.OK);
+		serve(store, Protocol.Op.GET, 3, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(3).status, Protocol.Status.OK);
+		Assert.assertEquals(replies.last(3).body, v);
+
+		serve(store, Protocol.Op.APPEND, 4, "k0", 999, v, replies);
+		Assert.assertEquals(replies.last(4).status, Protocol.Status.CONFLICT);
+		Assert.assertEquals(replies.last(4).v, v.length);
+		serve(store, Protocol.Op.APPEND, 5, "k0", v.length, v, replies);
+		Assert.assertEquals(replies.last(5).status, Protocol.Status.OK);
+		Assert.assertEquals(replies.last(5).v, 2 * v.length);
+		serve(store, Protocol.Op.APPEND, 6, "k0", Protocol.APPEND_AT_END, v, replies);
+		Assert.assertEquals(replies.last(6).v, 3 * v.length);
+		serve(store, Protocol.Op.GET, 7, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(7).body.length, 3 * v.length);
+
+		serve(store, Protocol.Op.DELETE, 8, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(8).status, Protocol.Status.OK);
+		serve(store, Protocol.Op.DELETE, 9, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(9).status, Protocol.Status.NOT_FOUND);
+		serve(store, Protocol.Op.GET, 10, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(10).status, Protocol.Status.NOT_FOUND);
+	}
+
+	@Test()
+	public void testCachedReads () throws Throwable {
+		final BlockCache cache = TestBlockCache.newBlockCache(64);
+		final ImageStore store = newImageStore(newTempDir("0ff5e7db-fs"), 64 * TestBlockCache.blocksize, cache);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		final int n = 200;
+		final byte[][] vals = new byte[n][];
+		int r = 0;
+		for(int i=0; i<n; i++) {
+			// mix of values that fit in a block and those that span blocks
+			vals[i] = new byte[rand.nextInt(TestBlockCache.blocksize * 2) + 1];
+			rand.nextBytes(vals[i]);
+			serve(store, Protocol.Op.PUT, i, "key-" + i, 0, vals[i], replies);
+			r++;
+			// reads interleaved with appends to the (cached) tail block
+			final int j = rand.nextInt(i + 1);
+			serve(store, Protocol.Op.GET, j, "key-" + j, 0, new byte[0], replies);
+			Assert.assertEquals(replies.last(++r).body, vals[j]);
+		}
+		for(int pass=0; pass<2; pass++) {
+			for(int i=0; i<n; i++) {
+				serve(store, Protocol.Op.GET, i, "key-" + i, 0, new byte[0], replies);
+				Assert.assertEquals(replies.last(++r).body, vals[i]);
+			}
+		}
+		Assert.assertTrue(cache.hits() > 0, "cache hits");
+	}
+
+	@Test()
+	public void testServeInline () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int segsize = 4096;
+		final ImageStore store = TestWriteAheadLog.newImageStore(root, segsize, TestWriteAheadLog.newWriteAheadLog(root));
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		final Protocol.Request req = new Protocol.Request();
+		final byte[] v = new byte[1300];
+
+		// writes that fit in the tail segment are served inline
+		int n = 0;
+		for(int i=0; i<3; i++) {
+			final ByteBuffer f = TestProtocol.frame(Protocol.Op.PUT, i, ("key-" + i).getBytes(), 0, v);
+			Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+			Assert.assertTrue(store.serveInline(req, replies), "put in segment served inline");
+			n++;
+		}
+		// the 4th rolls the segment - a checkpoint and a new segment file - so is not
+		final ByteBuffer f = TestProtocol.frame(Protocol.Op.PUT, 3, "key-3".getBytes(), 0, v);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		Assert.assertFalse(store.serveInline(req, replies), "put rolling the segment deferred");
+		Assert.assertEquals(root.list(new FilenameFilter() {
+			@Override public boolean accept(File dir, String name) { return name.startsWith("image."); }
+		}).length, 1, "no segment rolled inline");
+		replies.last(n);
+		store.serve(req, replies);
+		Assert.assertEquals(replies.last(n + 1).status, Protocol.Status.OK);
+		n++;
+
+		// writes do not wait for another writer - e.g. one in a checkpoint
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread writer = new Thread() {
+			@Override public void run() {
+				store.writer.lock();
+				try {
+					held.countDown();
+					release.await();
+				} catch (InterruptedException e) {
+				} finally {
+					store.writer.unlock();
+				}
+			}
+		};
+		writer.start();
+		held.await();
+		final ByteBuffer g = TestProtocol.frame(Protocol.Op.PUT, 4, "key-4".getBytes(), 0, new byte[16]);
+		Assert.assertEquals(req.decode(g, 0, g.limit()), Protocol.Status.OK);
+		Assert.assertFalse(store.serveInline(req, replies), "put deferred while the store is held");
+		release.countDown();
+		writer.join();
+		Assert.assertTrue(store.serveInline(req, replies), "put served inline once released");
+		Assert.assertEquals(replies.last(n + 1).status, Protocol.Status.OK);
+	}
+
+	// ------------------------------------------------------------------------
+	// test recovery
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testRecovery () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int segsize = 4096;
+		final int n = 100;
+		final byte[][] vals = new byte[n][];
+
+		final ImageStore store = newImageStore(root, segsize);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		for(int i=0; i<n; i++) {
+			vals[i] = new byte[rand.nextInt(512) + 1];
+			rand.nextBytes(vals[i]);
+			serve(store, Protocol.Op.PUT, i, "key-" + i, 0, vals[i], replies);
+		}
+		for(int i=0; i<n; i+=2) {
+			serve(store, Protocol.Op.DELETE, i, "key-" + i, 0, new byte[0], replies);
+		}
+		Assert.assertTrue(root.list().length > 1, "image should have multiple segments");
+
+		final ImageStore recovered = newImageStore(root, segsize);
+		final TestProtocol.Replies rreplies = new TestProtocol.Replies();
+		for(int i=0; i<n; i++) {
+			serve(recovered, Protocol.Op.GET, i, "key-" + i, 0, new byte[0], rreplies);
+			final TestProtocol.Replies.Reply reply = rreplies.last(i + 1);
+			if(i % 2 == 0) {
+				Assert.assertEquals(reply.status, Protocol.Status.NOT_FOUND);
+			} else {
+				Assert.assertEquals(reply.status, Protocol.Status.OK);
+				Assert.assertEquals(reply.body, vals[i]);
+			}
+		}
+	}
+
+	@Test()
+	public void testRecoveryStopsAtInvalidHeader () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int segsize = 4096;
+		final ImageStore store = newImageStore(root, segsize);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		final byte[] v = new byte[100];
+		for(int i=0; i<4; i++)
+			serve(store, Protocol.Op.PUT, i, "key-" + i, 0, v, replies);
+		Assert.assertEquals(replies.last(4).status, Protocol.Status.OK);
+
+		// corrupt the value length of the 3rd record
+		final int reclen = ImageStore.RECORD_HEADER_BYTES + "key-0".length() + v.length;
+		final RandomAccessFile raf = new RandomAccessFile(new File(root, String.format(ImageStore.SEGMENT_FNAME_FMT, 0)), "rw");
+		try {
+			raf.seek(2 * reclen + Codec.SHORT_BYTES);
+			raf.writeInt(-7);
+		} finally {
+			raf.close();
+		}
+
+		final ImageStore recovered = newImageStore(root, segsize);
+		final TestProtocol.Replies rreplies = new TestProtocol.Replies();
+		for(int i=0; i<4; i++) {
+			serve(recovered, Protocol.Op.GET, i, "key-" + i, 0, new byte[0], rreplies);
+			Assert.assertEquals(rreplies.last(i + 1).status, i < 2 ? Protocol.Status.OK : Protocol.Status.NOT_FOUND, "key-" + i);
+		}
+		// appends resume at the invalid record, and recover
+		serve(recovered, Protocol.Op.PUT, 4, "key-4", 0, v, rreplies);
+		Assert.assertEquals(rreplies.last(5).status, Protocol.Status.OK);
+		final ImageStore again = newImageStore(root, segsize);
+		serve(again, Protocol.Op.GET, 5, "key-4", 0, new byte[0], rreplies);
+		Assert.assertEquals(rreplies.last(6).status, Protocol.Status.OK);
+		serve(again, Protocol.Op.GET, 6, "key-3", 0, new byte[0], rreplies);
+		Assert.assertEquals(rreplies.last(7).status, Protocol.Status.NOT_FOUND);
+	}
+
+	@Test()
+	public void testDeleteAppendFault () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int segsize = 4096;
+		final ImageStore store = newImageStore(root, segsize);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		// fills the segment to the byte - the tombstone must roll the segment
+		serve(store, Protocol.Op.PUT, 1, "k0", 0, new byte[segsize - ImageStore.RECORD_HEADER_BYTES - 2], replies);
+		Assert.assertEquals(replies.last(1).status, Protocol.Status.OK);
+
+		// the next segment can not be created
+		Assert.assertTrue(new File(root, String.format(ImageStore.SEGMENT_FNAME_FMT, 1)).mkdir());
+		serve(store, Protocol.Op.DELETE, 2, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(2).status, Protocol.Status.ERROR);
+		serve(store, Protocol.Op.GET, 3, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(3).status, Protocol.Status.OK, "key not deleted on failed tombstone append");
+
+		// and with the segment creatable, the store appends past the full segment
+		Assert.assertTrue(new File(root, String.format(ImageStore.SEGMENT_FNAME_FMT, 1)).delete());
+		serve(store, Protocol.Op.PUT, 4, "k1", 0, new byte[10], replies);
+		Assert.assertEquals(replies.last(4).status, Protocol.Status.OK);
+		serve(store, Protocol.Op.DELETE, 5, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(5).status, Protocol.Status.OK);
+		final ImageStore recovered = newImageStore(root, segsize);
+		serve(recovered, Protocol.Op.GET, 6, "k0", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(6).status, Protocol.Status.NOT_FOUND);
+		serve(recovered, Protocol.Op.GET, 7, "k1", 0, new byte[0], replies);
+		Assert.assertEquals(replies.last(7).status, Protocol.Status.OK);
+	}
+}
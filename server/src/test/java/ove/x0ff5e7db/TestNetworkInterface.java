@@ -0,0 +1,523 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.util.Metrics;
+
+@Test(groups={"server:net", "capability:net"})
+public class TestNetworkInterface extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static NetworkInterface.Backpressure newBackpressure(long high, long low, int inflight) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_NET_HIGH_WATER.key(), String.valueOf(high));
+		props.setProperty(Servant.Property.DB_NET_LOW_WATER.key(), String.valueOf(low));
+		props.setProperty(Servant.Property.DB_NET_INFLIGHT.key(), String.valueOf(inflight));
+		return new NetworkInterface.Backpressure(newTestContext(props), new NetworkInterface.Reactor[0]);
+	}
+
+	/** @return a started (nio) network interface on an ephemeral port, serving service */
+	static NetworkInterface startNetworkInterface(final Properties props, final Protocol.Service service) throws Throwable {
+		props.setProperty(Servant.Property.DB_SERVER_PORT.key(), "0");
+		if(props.getProperty(Servant.Property.DB_NET_REACTORS.key()) == null)
+			props.setProperty(Servant.Property.DB_NET_REACTORS.key(), "1");
+		// served on the reactor unless a test asks for the dispatch stage
+		if(props.getProperty(Servant.Property.DB_DISPATCH_WORKERS.key()) == null)
+			props.setProperty(Servant.Property.DB_DISPATCH_WORKERS.key(), "0");
+		final Servant.Context context = newTestContext(props);
+		context.bind(Servant.CtxBinding.buffer_pool.id(), BufferPool.of(context));
+		context.bind(Servant.CtxBinding.protocol_service.id(), service);
+		final NetworkInterface net = new NetworkInterface(context);
+		net.initialize(NetworkInterface.class);
+		for(NetworkInterface.Reactor reactor : net.reactors())
+			start(reactor, "test-" + reactor);
+		start(net, "test-acceptor");
+		return net;
+	}
+	private static void start(Runnable r, String name) {
+		final Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+	}
+	/** @return a client connection to the network interface */
+	static SocketChannel connect(NetworkInterface net) throws Exception {
+		return SocketChannel.open(new InetSocketAddress("localhost", net.port()));
+	}
+
+	// ------------------------------------------------------------------------
+	// test global watermarks
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testQueuedBytesWatermarks () throws Throwable {
+		final NetworkInterface.Backpressure bp = newBackpressure(1000, 200, 100);
+		bp.queued.addAndGet(1000);
+		Assert.assertFalse(bp.overloaded(), "at high watermark");
+		bp.queued.addAndGet(1);
+		Assert.assertTrue(bp.overloaded(), "above high watermark");
+		bp.saturate();
+		Assert.assertTrue(bp.saturated());
+
+		// hysteresis: saturated until under the low watermark
+		bp.queued.addAndGet(-501);
+		bp.onRelief();
+		Assert.assertFalse(bp.overloaded());
+		Assert.assertTrue(bp.saturated(), "saturated between watermarks");
+		bp.queued.addAndGet(-300);
+		bp.onRelief();
+		Assert.assertFalse(bp.saturated(), "relieved at low watermark");
+	}
+
+	@Test()
+	public void testInflightWatermarks () throws Throwable {
+		final NetworkInterface.Backpressure bp = newBackpressure(1000, 200, 100);
+		bp.requests.addAndGet(101);
+		Assert.assertTrue(bp.overloaded(), "above in flight limit");
+		bp.saturate();
+		bp.requests.addAndGet(-50);
+		bp.onRelief();
+		Assert.assertTrue(bp.saturated(), "saturated above half the limit");
+		bp.requests.addAndGet(-1);
+		bp.onRelief();
+		Assert.assertFalse(bp.saturated(), "relieved at half the limit");
+	}
+
+	@Test(expectedExceptions=IllegalArgumentException.class)
+	public void testBadWatermarks () throws Throwable {
+		newBackpressure(100, 200, 100);
+	}
+
+	// ------------------------------------------------------------------------
+	// test frame decoding
+	// ------------------------------------------------------------------------
+	/** GETs echo the key */
+	static final class KeyEchoService implements Protocol.Service {
+		@Override public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, ByteBuffer.wrap(req.key()));
+		}
+	}
+
+	/** @return n GET frames of keys "key-{i}", concatenated */
+	static ByteBuffer gets(int n) {
+		final ByteBuffer out = ByteBuffer.allocate(n * 64);
+		for(int i=0; i<n; i++)
+			out.put(TestProtocol.frame(Protocol.Op.GET, i, ("key-" + i).getBytes(), 0, new byte[0]));
+		out.flip();
+		return out;
+	}
+
+	/** reads and verifies the n (in order) responses of {@link #gets(int)} */
+	static void readEchoes(SocketChannel chan, int n) throws Exception {
+		for(int i=0; i<n; i++) {
+			final ByteBuffer h = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+			read(chan, h);
+			Assert.assertEquals(h.getLong(Protocol.REQID_OFF), i);
+			Assert.assertEquals(h.get(Protocol.STATUS_OFF), Protocol.Status.OK.code);
+			final ByteBuffer payload = ByteBuffer.allocate(Protocol.Frames.payloadLength(h, 0));
+			read(chan, payload);
+			Assert.assertEquals(new String(payload.array()), "key-" + i);
+		}
+	}
+
+	@Test()
+	public void testFramesSplitAcrossReads () throws Throwable {
+		final NetworkInterface net = startNetworkInterface(new Properties(), new KeyEchoService());
+		final SocketChannel chan = connect(net);
+		chan.socket().setTcpNoDelay(true);
+		final long reads = NetworkInterface.m_reads.get();
+		try {
+			// 3 byte writes - header and payload of each frame split over reads
+			final int n = 4;
+			final ByteBuffer out = gets(n);
+			while(out.hasRemaining()) {
+				final ByteBuffer chunk = out.duplicate();
+				chunk.limit(Math.min(out.position() + 3, out.limit()));
+				while(chunk.hasRemaining())
+					chan.write(chunk);
+				out.position(chunk.position());
+				Thread.sleep(2);
+			}
+			readEchoes(chan, n);
+			Assert.assertTrue(NetworkInterface.m_reads.get() - reads > n, "frames split over reads");
+		} finally {
+			chan.close();
+			net.close();
+		}
+	}
+
+	@Test()
+	public void testPipelinedFramesInOneRead () throws Throwable {
+		final NetworkInterface net = startNetworkInterface(new Properties(), new KeyEchoService());
+		final SocketChannel chan = connect(net);
+		try {
+			final int n = 100;
+			final ByteBuffer out = gets(n);
+			final long reads = NetworkInterface.m_reads.get();
+			while(out.hasRemaining())
+				chan.write(out);
+			readEchoes(chan, n);
+			Assert.assertTrue(NetworkInterface.m_reads.get() - reads < n, "many frames per read");
+		} finally {
+			chan.close();
+			net.close();
+		}
+	}
+
+	@Test()
+	public void testOversizeFrameRejected () throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_NET_BUFFER_SIZE.key(), "4096");
+		final NetworkInterface net = startNetworkInterface(props, new KeyEchoService());
+		final SocketChannel chan = connect(net);
+		try {
+			// just the header - of a frame larger than the connection's input buffer
+			final ByteBuffer header = TestProtocol.frame(Protocol.Op.PUT, 1, "key".getBytes(), 0, new byte[8192]);
+			header.limit(Protocol.HEADER_BYTES);
+			while(header.hasRemaining())
+				chan.write(header);
+			try {
+				Assert.assertEquals(chan.read(ByteBuffer.allocate(Protocol.HEADER_BYTES)), -1, "connection closed");
+			} catch (IOException reset) { }
+		} finally {
+			chan.close();
+			net.close();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// test response writes
+	// ------------------------------------------------------------------------
+	/** GETs reply with a value of {@link #size} bytes, each the request id */
+	static final class LargeValueService implements Protocol.Service {
+		static final int size = 64 * 1024;
+		@Override public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+			final byte[] v = new byte[size];
+			Arrays.fill(v, (byte) req.reqid());
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, ByteBuffer.wrap(v));
+		}
+	}
+
+	@Test()
+	public void testPartialGatheringWrites () throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_NET_SO_SNDBUF.key(), "8192");
+		final NetworkInterface net = startNetworkInterface(props, new LargeValueService());
+		final SocketChannel chan = SocketChannel.open();
+		chan.socket().setReceiveBufferSize(8192);
+		chan.connect(new InetSocketAddress("localhost", net.port()));
+		try {
+			// all responses - more buffers than a gathering write takes - are
+			// queued before the client reads any of them
+			final int n = NetworkInterface.Connection.GATHER_MAX;
+			final long writes = NetworkInterface.m_writes.get();
+			final ByteBuffer out = gets(n);
+			while(out.hasRemaining())
+				chan.write(out);
+			Thread.sleep(100);
+
+			for(int i=0; i<n; i++) {
+				final ByteBuffer h = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+				read(chan, h);
+				Assert.assertEquals(h.getLong(Protocol.REQID_OFF), i, "responses in order");
+				Assert.assertEquals(Protocol.Frames.payloadLength(h, 0), LargeValueService.size);
+				final ByteBuffer payload = ByteBuffer.allocate(LargeValueService.size);
+				read(chan, payload);
+				for(int j=0; j<payload.limit(); j++)
+					if(payload.get(j) != (byte) i)
+						Assert.fail(String.format("response %d byte %d", i, j));
+			}
+			Assert.assertTrue(NetworkInterface.m_writes.get() - writes > n, "responses written in parts");
+		} finally {
+			chan.close();
+			net.close();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// test thread per connection engine
+	// ------------------------------------------------------------------------
+	/** GETs echo the key in a pooled buffer; PUTs complete on another thread with the data length */
+	static final class EchoService implements Protocol.Service {
+		final BufferPool pool;
+		EchoService(BufferPool pool) { this.pool = pool; }
+		@Override public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+			final byte[] key = req.key();
+			if(req.op() == Protocol.Op.GET) {
+				final BufferPool.Buffer v = pool.acquire(key.length);
+				v.buf.put(key).flip();
+				responder.replyPooled(req.op(), req.reqid(), Protocol.Status.OK, v);
+				return;
+			}
+			final long len = req.datalen;
+			final Protocol.Op op = req.op();
+			final long reqid = req.reqid();
+			new Thread(new Runnable() {
+				@Override public void run() { responder.reply(op, reqid, Protocol.Status.OK, len); }
+			}).start();
+		}
+	}
+
+	static void read(SocketChannel chan, ByteBuffer b) throws Exception {
+		while(b.hasRemaining()) {
+			if(chan.read(b) < 0)
+				throw new EOFException();
+		}
+		b.flip();
+	}
+
+	@Test()
+	public void testBlockingNetworkInterface () throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_SERVER_PORT.key(), "0");
+		props.setProperty(Servant.Property.DB_NET_CONN_INFLIGHT.key(), "2");
+		props.setProperty(Servant.Property.DB_BUFFER_POOL_DEBUG.key(), "true");
+		final Servant.Context context = newTestContext(props);
+		final BufferPool pool = BufferPool.of(context);
+		context.bind(Servant.CtxBinding.buffer_pool.id(), pool);
+		context.bind(Servant.CtxBinding.protocol_service.id(), new EchoService(pool));
+		final BlockingNetworkInterface net = new BlockingNetworkInterface();
+		net.setContext(context);
+		net.initialize(BlockingNetworkInterface.class);
+		final Thread acceptor = new Thread(net, "test-acceptor");
+		acceptor.start();
+
+		final SocketChannel chan = SocketChannel.open(new InetSocketAddress("localhost", net.port()));
+		try {
+			// pipelined - more than the in flight limit
+			final int n = 8;
+			final ByteBuffer out = ByteBuffer.allocate(1024);
+			for(int i=0; i<n; i++) {
+				final byte[] key = ("key-" + i).getBytes();
+				if(i % 2 == 0)
+					out.put(TestProtocol.frame(Protocol.Op.GET, i, key, 0, new byte[0]));
+				else
+					out.put(TestProtocol.frame(Protocol.Op.PUT, i, key, 0, new byte[i]));
+			}
+			out.flip();
+			while(out.hasRemaining())
+				chan.write(out);
+
+			final boolean[] seen = new boolean[n];
+			for(int i=0; i<n; i++) {
+				final ByteBuffer h = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+				read(chan, h);
+				final int reqid = (int) h.getLong(Protocol.REQID_OFF);
+				Assert.assertEquals(h.get(Protocol.STATUS_OFF), Protocol.Status.OK.code, "status of " + reqid);
+				Assert.assertFalse(seen[reqid], "one response per request");
+				seen[reqid] = true;
+				final ByteBuffer payload = ByteBuffer.allocate(Protocol.Frames.payloadLength(h, 0));
+				read(chan, payload);
+				if(reqid % 2 == 0)
+					Assert.assertEquals(new String(payload.array()), "key-" + reqid);
+				else
+					Assert.assertEquals(payload.getLong(0), reqid);
+			}
+		} finally {
+			chan.close();
+			net.close();
+			acceptor.join(5000);
+		}
+		final long t0 = System.currentTimeMillis();
+		while(!pool.leaks().isEmpty() && System.currentTimeMillis() - t0 < 5000)
+			Thread.sleep(10);
+		Assert.assertTrue(pool.leaks().isEmpty(), "pooled buffers released");
+	}
+
+	// ------------------------------------------------------------------------
+	// test dispatch stage
+	// ------------------------------------------------------------------------
+	/** GETs of "hit" keys are served inline, all else deferred */
+	static final class InlineEchoService implements Protocol.InlineService {
+		int served;
+		@Override public boolean serveInline(final Protocol.Request req, final Protocol.Responder responder) {
+			if(req.op() != Protocol.Op.GET || !new String(req.key()).startsWith("hit"))
+				return false;
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, ByteBuffer.wrap(req.key()));
+			return true;
+		}
+		@Override public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+			served++;
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, req.datalen);
+		}
+	}
+
+	@Test()
+	public void testServeInline () throws Throwable {
+		final Servant.Context context = newTestContext(new Properties());
+		final InlineEchoService service = new InlineEchoService();
+		context.bind(Servant.CtxBinding.protocol_service.id(), service);
+		final NetworkInterface.ProtocolHandler handler = new NetworkInterface.ProtocolHandler();
+		handler.setContext(context);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		final Protocol.Request req = new Protocol.Request();
+
+		final ByteBuffer hit = TestProtocol.frame(Protocol.Op.GET, 1, "hit".getBytes(), 0, new byte[0]);
+		Assert.assertTrue(handler.serveInline(req, hit, 0, hit.limit(), replies), "hit served inline");
+		Assert.assertEquals(replies.last(1).reqid, 1);
+
+		final ByteBuffer miss = TestProtocol.frame(Protocol.Op.GET, 2, "miss".getBytes(), 0, new byte[0]);
+		Assert.assertFalse(handler.serveInline(req, miss, 0, miss.limit(), replies), "miss deferred");
+		final ByteBuffer put = TestProtocol.frame(Protocol.Op.PUT, 3, "hit".getBytes(), 0, new byte[3]);
+		Assert.assertFalse(handler.serveInline(req, put, 0, put.limit(), replies), "put deferred");
+		Assert.assertEquals(replies.replies.size(), 1, "deferred requests not responded to");
+		handler.serveDeferred(req, miss, 0, miss.limit(), replies);
+		handler.serveDeferred(req, put, 0, put.limit(), replies);
+		Assert.assertEquals(replies.last(3).reqid, 3);
+		Assert.assertEquals(service.served, 2);
+
+		// bad requests are responded to inline
+		final ByteBuffer bad = TestProtocol.frame(Protocol.Op.GET, 4, "hit".getBytes(), 0, new byte[1]);
+		Assert.assertTrue(handler.serveInline(req, bad, 0, bad.limit(), replies));
+		Assert.assertEquals(replies.last(4).status, Protocol.Status.BAD_REQUEST);
+	}
+
+	@Test()
+	public void testDispatchCounts () throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_DISPATCH_WORKERS.key(), "2");
+		final NetworkInterface net = startNetworkInterface(props, new InlineEchoService());
+		final long requests = NetworkInterface.m_requests.get();
+		final long inline = Dispatcher.m_inline.get();
+		final long offloaded = Dispatcher.m_offloaded.get();
+		final SocketChannel chan = connect(net);
+		try {
+			// a miss first - the hits behind it queue on the busy strand
+			final int n = 16;
+			final ByteBuffer out = ByteBuffer.allocate(4096);
+			for(int i=0; i<n; i++)
+				out.put(TestProtocol.frame(Protocol.Op.GET, i, (i % 4 == 0 ? "miss" : "hit").getBytes(), 0, new byte[0]));
+			out.flip();
+			while(out.hasRemaining())
+				chan.write(out);
+			for(int i=0; i<n; i++) {
+				final ByteBuffer h = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+				read(chan, h);
+				read(chan, ByteBuffer.allocate(Protocol.Frames.payloadLength(h, 0)));
+			}
+		} finally {
+			chan.close();
+			net.close();
+		}
+		Assert.assertEquals(NetworkInterface.m_requests.get() - requests, 16, "each request counted once");
+		Assert.assertEquals(Dispatcher.m_inline.get() - inline + Dispatcher.m_offloaded.get() - offloaded, 16);
+		Assert.assertTrue(Dispatcher.m_offloaded.get() - offloaded >= 4, "misses offloaded");
+	}
+
+	/** GETs of "hit" keys are served inline, all else blocks until released */
+	static final class BlockingService implements Protocol.InlineService {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		@Override public boolean serveInline(final Protocol.Request req, final Protocol.Responder responder) {
+			if(!new String(req.key()).startsWith("hit"))
+				return false;
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, ByteBuffer.wrap(req.key()));
+			return true;
+		}
+		@Override public void serve(final Protocol.Request req, final Protocol.Responder responder) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			responder.reply(req.op(), req.reqid(), Protocol.Status.OK, ByteBuffer.wrap(req.key()));
+		}
+	}
+	static void send(SocketChannel chan, long reqid, String key) throws Exception {
+		final ByteBuffer f = TestProtocol.frame(Protocol.Op.GET, reqid, key.getBytes(), 0, new byte[0]);
+		while(f.hasRemaining())
+			chan.write(f);
+	}
+	static void await(Metrics.Counter counter, long n) throws InterruptedException {
+		final long t0 = System.currentTimeMillis();
+		while(counter.get() < n && System.currentTimeMillis() - t0 < 5000)
+			Thread.sleep(10);
+		Assert.assertTrue(counter.get() >= n, "counter reached");
+	}
+
+	@Test()
+	public void testFullQueueParksStrand () throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_DISPATCH_WORKERS.key(), "1");
+		props.setProperty(Servant.Property.DB_DISPATCH_QUEUE.key(), "1");
+		final BlockingService service = new BlockingService();
+		final NetworkInterface net = startNetworkInterface(props, service);
+		final long offloaded = Dispatcher.m_offloaded.get();
+		final long parked = Dispatcher.m_parked.get();
+		final SocketChannel[] chans = new SocketChannel[3];
+		final SocketChannel probe = connect(net);
+		try {
+			// the 1st occupies the worker, the 2nd the queue, the 3rd is rejected
+			for(int i=0; i<chans.length; i++) {
+				chans[i] = connect(net);
+				send(chans[i], i, "block-" + i);
+				await(Dispatcher.m_offloaded, offloaded + i + 1);
+				if(i == 0)
+					Assert.assertTrue(service.started.await(5, TimeUnit.SECONDS), "worker busy");
+			}
+			await(Dispatcher.m_parked, parked + 1);
+
+			// the reactor is not running the rejected strand - it still serves inline
+			send(probe, 9, "hit");
+			probe.configureBlocking(false);
+			final ByteBuffer h = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+			final long t0 = System.currentTimeMillis();
+			while(h.hasRemaining() && System.currentTimeMillis() - t0 < 5000) {
+				if(probe.read(h) == 0)
+					Thread.sleep(10);
+			}
+			Assert.assertFalse(h.hasRemaining(), "inline request served while the dispatch queue is full");
+
+			// once released, the parked strand is rescheduled
+			service.release.countDown();
+			for(int i=0; i<chans.length; i++) {
+				final ByteBuffer r = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+				read(chans[i], r);
+				final ByteBuffer body = ByteBuffer.allocate(Protocol.Frames.payloadLength(r, 0));
+				read(chans[i], body);
+				Assert.assertEquals(new String(body.array()), "block-" + i);
+			}
+		} finally {
+			service.release.countDown();
+			probe.close();
+			for(SocketChannel chan : chans)
+				if(chan != null) chan.close();
+			net.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ove.x0ff5e7db.util.binary.Hash;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"server:fs", "capability:index"})
+public class TestOffsetIndex extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	/** keys by (fake) offset - stands in for the image */
+	static final class Keys implements OffsetIndex.Keys {
+		final List<byte[]> keys = new ArrayList<byte[]>();
+		long add(byte[] key) {
+			keys.add(key);
+			return keys.size() - 1;
+		}
+		@Override public boolean matches(long offset, ByteBuffer b, int off, int len) {
+			final byte[] key = new byte[len];
+			for(int i=0; i<len; i++)
+				key[i] = b.get(off + i);
+			return Arrays.equals(keys.get((int) offset), key);
+		}
+	}
+	static final class K {
+		final byte[] b;
+		K(byte[] b) { this.b = b; }
+		@Override public int hashCode() { return Arrays.hashCode(b); }
+		@Override public boolean equals(Object o) { return Arrays.equals(b, ((K) o).b); }
+	}
+
+	// ------------------------------------------------------------------------
+	// test ops through resizing
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testOps () {
+		for(Hash.Provider provider : Hash.Provider.values()) {
+			final Keys keys = new Keys();
+			final OffsetIndex index = new OffsetIndex(provider.provider, 16, keys);
+			final Map<K, Long> expected = new HashMap<K, Long>();
+			final List<byte[]> universe = new ArrayList<byte[]>();
+			for(int i=0; i<5000; i++)
+				universe.add(String.format("key-%d", i).getBytes());
+			// keys are indexed in place - at an offset in a larger buffer
+			final ByteBuffer b = ByteBuffer.allocateDirect(64);
+			final int off = 7;
+
+			for(int i=0; i<50000; i++) {
+				final byte[] key = universe.get(rand.nextInt(universe.size()));
+				b.clear();
+				b.position(off);
+				b.put(key);
+				final Long prior = expected.get(new K(key));
+				final long exp = prior == null ? OffsetIndex.EMPTY : prior.longValue();
+				switch (rand.nextInt(4)) {
+				case 0:
+					Assert.assertEquals(index.remove(b, off, key.length), exp);
+					expected.remove(new K(key));
+					break;
+				case 1:
+					Assert.assertEquals(index.get(b, off, key.length), exp);
+					break;
+				default:
+					final long offset = keys.add(key);
+					Assert.assertEquals(index.put(b, off, key.length, offset), exp);
+					expected.put(new K(key), Long.valueOf(offset));
+				}
+				Assert.assertEquals(index.size(), expected.size(), provider.id);
+			}
+			for(byte[] key : universe) {
+				final Long offset = expected.get(new K(key));
+				Assert.assertEquals(index.get(ByteBuffer.wrap(key), 0, key.length), offset == null ? OffsetIndex.EMPTY : offset.longValue(), provider.id);
+			}
+			Assert.assertTrue(index.capacity() > 16, "index grew");
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// test capacity limit
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testCapacityLimit () {
+		Assert.assertTrue((long) OffsetIndex.MAX_CAPACITY * OffsetIndex.SLOT_BYTES <= Integer.MAX_VALUE, "MAX_CAPACITY slots fit a ByteBuffer");
+
+		final int max = 64;
+		final int limit = (int) (max * OffsetIndex.LOAD_FACTOR);
+		final Keys keys = new Keys();
+		final OffsetIndex index = new OffsetIndex(Hash.Murmur3_32, 2, keys, max);
+		for(int i=0; i<limit; i++) {
+			final byte[] key = String.format("key-%d", i).getBytes();
+			Assert.assertEquals(index.put(ByteBuffer.wrap(key), 0, key.length, keys.add(key)), OffsetIndex.EMPTY);
+		}
+		Assert.assertEquals(index.capacity(), max);
+
+		final byte[] over = "key-over".getBytes();
+		try {
+			index.put(ByteBuffer.wrap(over), 0, over.length, keys.add(over));
+			Assert.fail("expected IllegalStateException");
+		} catch (IllegalStateException expected) { }
+
+		// index is unchanged and usable
+		Assert.assertEquals(index.size(), limit);
+		Assert.assertEquals(index.get(ByteBuffer.wrap(over), 0, over.length), OffsetIndex.EMPTY);
+		for(int i=0; i<limit; i++) {
+			final byte[] key = String.format("key-%d", i).getBytes();
+			Assert.assertEquals(index.get(ByteBuffer.wrap(key), 0, key.length), i);
+		}
+		final byte[] first = "key-0".getBytes();
+		final long offset = keys.add(first);
+		Assert.assertEquals(index.put(ByteBuffer.wrap(first), 0, first.length, offset), 0);
+		Assert.assertEquals(index.remove(ByteBuffer.wrap(first), 0, first.length), offset);
+		Assert.assertEquals(index.put(ByteBuffer.wrap(over), 0, over.length, keys.add(over)), OffsetIndex.EMPTY);
+		Assert.assertEquals(index.size(), limit);
+	}
+}
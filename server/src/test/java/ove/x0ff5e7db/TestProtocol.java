@@ -0,0 +1,182 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.util.binary.Codec;
+
+@Test(groups={"server:net", "capability:protocol"})
+public class TestProtocol extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static ByteBuffer frame(Protocol.Op op, long reqid, byte[] key, long offset, byte[] data) {
+		final boolean append = op == Protocol.Op.APPEND;
+		final int paylen = Protocol.KEYLEN_BYTES + key.length + (append ? Codec.LONG_BYTES : 0) + data.length;
+		final ByteBuffer b = ByteBuffer.allocate(Protocol.HEADER_BYTES + paylen);
+		b.putInt(paylen).put(op.code).put((byte)0).putShort((short)0).putLong(reqid);
+		b.putShort((short) key.length).put(key);
+		if(append) b.putLong(offset);
+		b.put(data);
+		b.flip();
+		return b;
+	}
+
+	/** records responses */
+	static final class Replies implements Protocol.Responder {
+		static final class Reply {
+			final Protocol.Op op;
+			final long reqid;
+			final Protocol.Status status;
+			final byte[] body;
+			final long v;
+			Reply(Protocol.Op op, long reqid, Protocol.Status status, byte[] body, long v) {
+				this.op = op; this.reqid = reqid; this.status = status; this.body = body; this.v = v;
+			}
+		}
+		final List<Reply> replies = new ArrayList<Reply>();
+		@Override public synchronized void reply(Protocol.Op op, long reqid, Protocol.Status status, ByteBuffer body) {
+			byte[] b = null;
+			if(body != null) {
+				b = new byte[body.remaining()];
+				body.duplicate().get(b);
+			}
+			replies.add(new Reply(op, reqid, status, b, 0));
+			notifyAll();
+		}
+		@Override public synchronized void reply(Protocol.Op op, long reqid, Protocol.Status status, long v) {
+			replies.add(new Reply(op, reqid, status, null, v));
+			notifyAll();
+		}
+		@Override public synchronized void replyPooled(Protocol.Op op, long reqid, Protocol.Status status, BufferPool.Buffer body) {
+			reply(op, reqid, status, body.buf);
+			body.release();
+		}
+		/** @return the last reply - waits up to 5 seconds for it */
+		synchronized Reply last(int n) throws InterruptedException {
+			final long t0 = System.currentTimeMillis();
+			while(replies.size() < n && System.currentTimeMillis() - t0 < 5000)
+				wait(100);
+			Assert.assertEquals(replies.size(), n, "reply count");
+			return replies.get(n - 1);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// test Protocol.Request decode
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testDecodeRequests () {
+		final byte[] key = "some-key".getBytes();
+		final byte[] data = new byte[333];
+		rand.nextBytes(data);
+		final Protocol.Request req = new Protocol.Request();
+
+		ByteBuffer f = frame(Protocol.Op.PUT, 1234567890123L, key, 0, data);
+		Assert.assertEquals(Protocol.Frames.payloadLength(f, 0), f.limit() - Protocol.HEADER_BYTES);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		Assert.assertEquals(req.op(), Protocol.Op.PUT);
+		Assert.assertEquals(req.reqid(), 1234567890123L);
+		Assert.assertEquals(req.key(), key);
+		Assert.assertEquals(req.datalen, data.length);
+
+		f = frame(Protocol.Op.APPEND, 7, key, 1024, data);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		Assert.assertEquals(req.offset, 1024);
+		Assert.assertEquals(req.datalen, data.length);
+
+		f = frame(Protocol.Op.GET, 8, key, 0, new byte[0]);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		Assert.assertEquals(req.datalen, 0);
+	}
+
+	@Test()
+	public void testDecodeRequestAtOffset () {
+		final byte[] key = "k".getBytes();
+		final ByteBuffer f = frame(Protocol.Op.DELETE, 42, key, 0, new byte[0]);
+		for(ByteBuffer b : new ByteBuffer[]{ ByteBuffer.allocate(f.limit() + 11), ByteBuffer.allocateDirect(f.limit() + 11)}) {
+			b.position(11);
+			b.put(f.duplicate());
+			final Protocol.Request req = new Protocol.Request();
+			Assert.assertEquals(Protocol.Frames.payloadLength(b, 11), f.limit() - Protocol.HEADER_BYTES);
+			Assert.assertEquals(req.decode(b, 11, f.limit()), Protocol.Status.OK);
+			Assert.assertEquals(req.reqid(), 42);
+			Assert.assertEquals(req.key(), key);
+		}
+	}
+
+	@Test()
+	public void testDecodeBadRequests () {
+		final Protocol.Request req = new Protocol.Request();
+
+		ByteBuffer f = frame(Protocol.Op.GET, 1, "k".getBytes(), 0, new byte[1]);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.BAD_REQUEST);
+
+		f = frame(Protocol.Op.GET, 2, new byte[0], 0, new byte[0]);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.BAD_REQUEST);
+
+		f = frame(Protocol.Op.GET, 3, "k".getBytes(), 0, new byte[0]);
+		f.put(Protocol.OP_OFF, (byte) 0x7F);
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.UNSUPPORTED);
+		Assert.assertEquals(req.reqid(), 3);
+	}
+
+	@Test()
+	public void testDecodeStats () {
+		final Protocol.Request req = new Protocol.Request();
+		final ByteBuffer f = ByteBuffer.allocate(Protocol.HEADER_BYTES);
+		f.putInt(0).put(Protocol.Op.STATS.code).put((byte)0).putShort((short)0).putLong(5).flip();
+		Assert.assertEquals(req.decode(f, 0, f.limit()), Protocol.Status.OK);
+		Assert.assertEquals(req.op(), Protocol.Op.STATS);
+		Assert.assertEquals(req.key().length, 0);
+
+		ByteBuffer p = frame(Protocol.Op.STATS, 6, "net.".getBytes(), 0, new byte[0]);
+		Assert.assertEquals(req.decode(p, 0, p.limit()), Protocol.Status.OK);
+		Assert.assertEquals(req.key(), "net.".getBytes());
+
+		p = frame(Protocol.Op.STATS, 7, "net.".getBytes(), 0, new byte[1]);
+		Assert.assertEquals(req.decode(p, 0, p.limit()), Protocol.Status.BAD_REQUEST);
+	}
+
+	// ------------------------------------------------------------------------
+	// test response header encode
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testResponseHeader () {
+		final ByteBuffer h = Protocol.Frames.header(Protocol.Op.PUT, 99, Protocol.Status.CONFLICT, Codec.LONG_BYTES, true, 4096);
+		Assert.assertEquals(h.remaining(), Protocol.HEADER_BYTES + Codec.LONG_BYTES);
+		Assert.assertEquals(h.getInt(Protocol.PAYLEN_OFF), Codec.LONG_BYTES);
+		Assert.assertEquals(h.get(Protocol.OP_OFF), Protocol.Op.PUT.code);
+		Assert.assertEquals(h.get(Protocol.STATUS_OFF), Protocol.Status.CONFLICT.code);
+		Assert.assertEquals(h.getLong(Protocol.REQID_OFF), 99);
+		Assert.assertEquals(h.getLong(Protocol.HEADER_BYTES), 4096);
+	}
+}
@@ -0,0 +1,232 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package ove.x0ff5e7db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups={"server:fs", "capability:storage"})
+public class TestWriteAheadLog extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// utilities
+	// ------------------------------------------------------------------------
+	static WriteAheadLog newWriteAheadLog(File root) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), root.getAbsolutePath());
+		final WriteAheadLog wal = new WriteAheadLog();
+		wal.setContext(newTestContext(props));
+		return wal.initialize(WriteAheadLog.class);
+	}
+	static List<byte[]> appendAll(WriteAheadLog wal, int n) throws InterruptedException {
+		final List<byte[]> records = new ArrayList<byte[]>();
+		final CountDownLatch latch = new CountDownLatch(n);
+		final AtomicInteger faults = new AtomicInteger();
+		for(int i=0; i<n; i++) {
+			final byte[] r = new byte[rand.nextInt(256) + 1];
+			rand.nextBytes(r);
+			records.add(r);
+			wal.append(i * 1000L, ByteBuffer.wrap(r), new WriteAheadLog.Completion() {
+				@Override public void onCommit(Throwable t) {
+					if(t != null) faults.incrementAndGet();
+					latch.countDown();
+				}
+			});
+		}
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS), "all appends committed");
+		Assert.assertEquals(faults.get(), 0);
+		return records;
+	}
+	static List<byte[]> replayAll(WriteAheadLog wal) throws IOException {
+		final List<byte[]> replayed = new ArrayList<byte[]>();
+		wal.replay(new WriteAheadLog.Replay() {
+			@Override public void onRecord(long offset, ByteBuffer record) {
+				Assert.assertEquals(offset, replayed.size() * 1000L);
+				final byte[] r = new byte[record.remaining()];
+				record.get(r);
+				replayed.add(r);
+			}
+		});
+		return replayed;
+	}
+
+	// ------------------------------------------------------------------------
+	// test group commit and replay
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testAppendReplay () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int n = 1000;
+		final WriteAheadLog wal = newWriteAheadLog(root);
+		final List<byte[]> records = appendAll(wal, n);
+		wal.close();
+
+		final WriteAheadLog reopened = newWriteAheadLog(root);
+		final List<byte[]> replayed = replayAll(reopened);
+		Assert.assertEquals(replayed.size(), n);
+		for(int i=0; i<n; i++)
+			Assert.assertEquals(replayed.get(i), records.get(i));
+
+		reopened.truncate();
+		Assert.assertEquals(replayAll(reopened).size(), 0);
+		reopened.close();
+	}
+
+	@Test()
+	public void testCorruptTail () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int n = 10;
+		final WriteAheadLog wal = newWriteAheadLog(root);
+		appendAll(wal, n);
+		wal.close();
+
+		// flip a byte of the last record
+		final RandomAccessFile raf = new RandomAccessFile(new File(root, WriteAheadLog.WAL_FNAME), "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			final int b = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+		final WriteAheadLog reopened = newWriteAheadLog(root);
+		Assert.assertEquals(replayAll(reopened).size(), n - 1);
+		reopened.close();
+	}
+
+	/** records a completion */
+	static class Completed implements WriteAheadLog.Completion {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile Throwable fault;
+		@Override public void onCommit(Throwable t) {
+			fault = t;
+			latch.countDown();
+		}
+		Throwable await() throws InterruptedException {
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS), "completed");
+			return fault;
+		}
+	}
+
+	@Test()
+	public void testFlusherInterrupted () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final WriteAheadLog wal = newWriteAheadLog(root);
+		final Completed first = new Completed() {
+			@Override public void onCommit(Throwable t) {
+				Thread.currentThread().interrupt(); // the flusher's
+				super.onCommit(t);
+			}
+		};
+		wal.append(0, ByteBuffer.wrap(new byte[16]), first);
+		Assert.assertNull(first.await());
+		Thread.sleep(100);
+
+		// the log has failed - appends are completed with the cause, and none are written
+		for(int i=1; i<3; i++) {
+			final Completed c = new Completed();
+			wal.append(i * 1000L, ByteBuffer.wrap(new byte[16]), c);
+			Assert.assertTrue(c.await() instanceof InterruptedException, "append failed");
+		}
+		Assert.assertEquals(replayAll(wal).size(), 1);
+	}
+
+	// ------------------------------------------------------------------------
+	// test image recovery from log
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testImageRecovery () throws Throwable {
+		final File root = newTempDir("0ff5e7db-fs");
+		final int segsize = 1024 * 1024;
+		final int n = 100;
+		final byte[][] vals = new byte[n][];
+
+		final WriteAheadLog wal = newWriteAheadLog(root);
+		final ImageStore store = newImageStore(root, segsize, wal);
+		final TestProtocol.Replies replies = new TestProtocol.Replies();
+		for(int i=0; i<n; i++) {
+			vals[i] = new byte[rand.nextInt(512) + 1];
+			rand.nextBytes(vals[i]);
+			TestImageStore.serve(store, Protocol.Op.PUT, i, "key-" + i, 0, vals[i], replies);
+		}
+		for(int i=0; i<n; i+=2) {
+			TestImageStore.serve(store, Protocol.Op.DELETE, i, "key-" + i, 0, new byte[0], replies);
+		}
+		replies.last(n + n/2);
+		wal.close();
+
+		// recover an image root with nothing but the log
+		final File recoveredRoot = newTempDir("0ff5e7db-fs");
+		copy(new File(root, WriteAheadLog.WAL_FNAME), new File(recoveredRoot, WriteAheadLog.WAL_FNAME));
+		final ImageStore recovered = newImageStore(recoveredRoot, segsize, newWriteAheadLog(recoveredRoot));
+		final TestProtocol.Replies rreplies = new TestProtocol.Replies();
+		for(int i=0; i<n; i++) {
+			TestImageStore.serve(recovered, Protocol.Op.GET, i, "key-" + i, 0, new byte[0], rreplies);
+			final TestProtocol.Replies.Reply reply = rreplies.last(i + 1);
+			if(i % 2 == 0) {
+				Assert.assertEquals(reply.status, Protocol.Status.NOT_FOUND);
+			} else {
+				Assert.assertEquals(reply.status, Protocol.Status.OK);
+				Assert.assertEquals(reply.body, vals[i]);
+			}
+		}
+		Assert.assertEquals(new File(recoveredRoot, WriteAheadLog.WAL_FNAME).length(), 0, "log truncated after replay");
+	}
+	static ImageStore newImageStore(File root, int segsize, WriteAheadLog wal) throws Throwable {
+		final Properties props = new Properties();
+		props.setProperty(Servant.Property.DB_IMAGE_ROOT.key(), root.getAbsolutePath());
+		props.setProperty(Servant.Property.DB_IMAGE_SEGMENT_SIZE.key(), String.valueOf(segsize));
+		final Servant.Context context = newTestContext(props);
+		context.bind(Servant.CtxBinding.write_ahead_log.id(), wal);
+		final ImageStore store = new ImageStore();
+		store.setContext(context);
+		return store.initialize(ImageStore.class);
+	}
+	static void copy(File from, File to) throws IOException {
+		final FileInputStream in = new FileInputStream(from);
+		final FileOutputStream out = new FileOutputStream(to);
+		try {
+			final byte[] b = new byte[8192];
+			for(int n; (n = in.read(b)) > 0; )
+				out.write(b, 0, n);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.TestBase;
+
+@Test(groups={"server:util", "capability:metrics"})
+public class TestHistogram extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// test Histogram buckets
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testBuckets () {
+		Assert.assertEquals(Histogram.index(Long.MAX_VALUE), Histogram.BUCKETS - 1);
+		Assert.assertEquals(Histogram.highest(Histogram.BUCKETS - 1), Long.MAX_VALUE);
+		for(int i=1; i<Histogram.BUCKETS; i++) {
+			Assert.assertEquals(Histogram.lowest(i), Histogram.highest(i - 1) + 1, "buckets are contiguous at " + i);
+			Assert.assertEquals(Histogram.index(Histogram.lowest(i)), i);
+			Assert.assertEquals(Histogram.index(Histogram.highest(i)), i);
+		}
+		for(int i=0; i<10000; i++) {
+			final long v = rand.nextLong() >>> (1 + rand.nextInt(Long.SIZE - 1));
+			final int b = Histogram.index(v);
+			Assert.assertTrue(Histogram.lowest(b) <= v && v <= Histogram.highest(b));
+			Assert.assertTrue(Histogram.highest(b) - Histogram.lowest(b) <= v / (Histogram.SUB_BUCKETS / 2), "relative error bound for " + v);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+	// test Histogram percentiles
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testPercentiles () {
+		final Histogram h = new Histogram();
+		Assert.assertEquals(h.percentile(99), 0);
+		for(long v=1; v<=100000; v++)
+			h.record(v);
+		Assert.assertEquals(h.count(), 100000);
+		Assert.assertEquals(h.min(), 1);
+		Assert.assertEquals(h.max(), 100000);
+		Assert.assertEquals(h.mean(), 50000.5, 0.001);
+		assertNear(h.percentile(50), 50000);
+		assertNear(h.percentile(99), 99000);
+		assertNear(h.percentile(99.9), 99900);
+		Assert.assertEquals(h.percentile(100), 100000);
+
+		final Histogram other = new Histogram();
+		other.record(1000000);
+		h.add(other);
+		Assert.assertEquals(h.count(), 100001);
+		Assert.assertEquals(h.max(), 1000000);
+		Assert.assertEquals(h.percentile(100), 1000000);
+
+		h.reset();
+		Assert.assertEquals(h.count(), 0);
+		Assert.assertEquals(h.min(), 0);
+		Assert.assertEquals(h.max(), 0);
+	}
+	static void assertNear(long actual, long expected) {
+		Assert.assertTrue(Math.abs(actual - expected) <= expected / (Histogram.SUB_BUCKETS / 2), String.format("%d near %d", actual, expected));
+	}
+}
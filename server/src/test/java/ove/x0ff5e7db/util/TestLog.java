@@ -0,0 +1,177 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.TestBase;
+
+@Test(groups={"server:util", "capability:log"})
+public class TestLog extends TestBase {
+
+	/** @return what the log writer wrote to System.err while running r */
+	static String captureErr(Runnable r) {
+		final PrintStream err = System.err;
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		Log.Handler.shared.flush();
+		System.setErr(new PrintStream(buf, true));
+		try {
+			r.run();
+			Log.Handler.shared.flush();
+		} finally {
+			System.setErr(err);
+		}
+		return buf.toString();
+	}
+
+	// ------------------------------------------------------------------------
+	// test async handler
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testOrderedFlush () {
+		final Log.Logger log = Log.getLogger("testlog1").setLevel(Level.ALL);
+		final int n = 1000;
+		final String out = captureErr(new Runnable() {
+			@Override public void run() {
+				for(int i=0; i<n; i++)
+					log.info("line %d", i);
+				log.error("with cause", new IllegalStateException("bad state"));
+			}
+		});
+		int from = 0;
+		for(int i=0; i<n; i++) {
+			final int at = out.indexOf(String.format("line %d%s", i, Log.Formatter.LINESEP), from);
+			Assert.assertTrue(at >= from, "line " + i + " in order");
+			from = at;
+		}
+		Assert.assertTrue(out.contains("with cause - cause: IllegalStateException - bad state"));
+		Assert.assertTrue(out.contains("at " + TestLog.class.getName()), "stack dumped");
+	}
+
+	// ------------------------------------------------------------------------
+	// test level guard
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testLazyFormat () {
+		final Log.Logger log = Log.getLogger("testlog2").setLevel(Level.INFO);
+		final AtomicInteger formatted = new AtomicInteger();
+		final Object arg = new Object() {
+			@Override public String toString() {
+				formatted.incrementAndGet();
+				return "arg";
+			}
+		};
+		final String out = captureErr(new Runnable() {
+			@Override public void run() {
+				log.log(Level.FINE, "disabled %s", arg);
+				log.info("enabled %s", arg);
+			}
+		});
+		Assert.assertEquals(formatted.get(), 1);
+		Assert.assertFalse(out.contains("disabled"));
+		Assert.assertTrue(out.contains("enabled arg"));
+	}
+
+	/** stands in for a reused flyweight */
+	static final class Flyweight implements Log.Mutable {
+		final StringBuilder state = new StringBuilder();
+		@Override public String toString() { return state.toString(); }
+	}
+	/** a mutable number not known to the log */
+	static final class Counter extends Number {
+		private static final long serialVersionUID = 1L;
+		long n;
+		@Override public int intValue() { return (int) n; }
+		@Override public long longValue() { return n; }
+		@Override public float floatValue() { return n; }
+		@Override public double doubleValue() { return n; }
+	}
+
+	@Test()
+	public void testArgumentsCapturedOnPublish () {
+		final Log.Logger log = Log.getLogger("testlog4").setLevel(Level.ALL);
+		final Flyweight flyweight = new Flyweight();
+		flyweight.state.append("before");
+		final AtomicInteger counter = new AtomicInteger(1);
+		final String out = captureErr(new Runnable() {
+			@Override public void run() {
+				log.info("captured %s %d %d", flyweight, counter, 3L);
+				// modified before the writer formats the record
+				flyweight.state.setLength(0);
+				flyweight.state.append("after");
+				counter.set(2);
+			}
+		});
+		Assert.assertTrue(out.contains("captured before 1 3"), out);
+		Assert.assertFalse(out.contains("after"));
+	}
+
+	@Test()
+	public void testOtherArgumentsNotCaptured () {
+		final StringBuilder sb = new StringBuilder("sb");
+		final Counter n = new Counter();
+		final Object[] params = { "s", sb, n, Long.valueOf(1) };
+		Assert.assertSame(Log.Handler.snapshot(params), params, "nothing captured");
+		Assert.assertSame(params[1], sb);
+		Assert.assertSame(params[2], n);
+
+		final Object[] captured = Log.Handler.snapshot(new Object[] { new Flyweight(), n, new AtomicInteger(7) });
+		Assert.assertEquals(captured[0], "");
+		Assert.assertSame(captured[1], n, "not a known mutable - not captured");
+		Assert.assertEquals(captured[2], Long.valueOf(7));
+	}
+
+	// ------------------------------------------------------------------------
+	// test registry
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testRegistry () {
+		final Log.Logger log = Log.getLogger("testlog3");
+		Assert.assertSame(Log.getLogger("testlog3"), log);
+		Assert.assertSame(Log.getLogger("testlog3-truncated"), log);
+		Assert.assertEquals(log.stdlog.getHandlers().length, 1, "handler added once");
+
+		final Log.Logger nostack = Log.getLogger("testlog3", false);
+		Assert.assertFalse(nostack.dumpstack);
+		Assert.assertSame(nostack.stdlog, log.stdlog);
+		Assert.assertEquals(log.stdlog.getHandlers().length, 1, "handler added once");
+
+		Log.setLoggerLevel("testlog3", "warning");
+		Assert.assertFalse(log.isLoggable(Level.INFO));
+		Assert.assertFalse(nostack.isLoggable(Level.INFO));
+		final String out = captureErr(new Runnable() {
+			@Override public void run() {
+				log.info("not logged");
+				log.warning("logged once");
+			}
+		});
+		Assert.assertEquals(out.split("logged once", -1).length, 2, "logged once");
+		Assert.assertFalse(out.contains("not logged"));
+	}
+}
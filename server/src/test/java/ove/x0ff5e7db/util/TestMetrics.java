@@ -0,0 +1,97 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar.  All rights are reserved.
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.TestBase;
+
+@Test(groups={"server:util", "capability:metrics"})
+public class TestMetrics extends TestBase {
+
+	// ------------------------------------------------------------------------
+	// test Metrics.Counter
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testConcurrentCounter () throws InterruptedException {
+		final Metrics metrics = new Metrics();
+		final Metrics.Counter counter = metrics.counter("test.counter");
+		Assert.assertSame(metrics.counter("test.counter"), counter);
+
+		final int nthreads = 8;
+		final int n = 100000;
+		final CountDownLatch done = new CountDownLatch(nthreads);
+		for(int t=0; t<nthreads; t++) {
+			new Thread(new Runnable() {
+				@Override public void run() {
+					for(int i=0; i<n; i++)
+						counter.increment();
+					counter.add(-n / 2);
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		Assert.assertEquals(counter.get(), (long) nthreads * (n - n / 2));
+	}
+
+	// ------------------------------------------------------------------------
+	// test Metrics.Timer
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testTimer () {
+		final Metrics metrics = new Metrics();
+		final Metrics.Timer timer = metrics.timer("test.timer");
+		for(long v=1; v<=1000; v++)
+			timer.record(v * 1000);
+		timer.record(-1);
+		final Histogram h = timer.snapshot();
+		Assert.assertEquals(h.count(), 1000);
+		Assert.assertEquals(h.max(), 1000000);
+		Assert.assertEquals(h.mean(), 500500.0, 0.001);
+		Assert.assertTrue(h.min() <= 1000 && h.min() > 990);
+		TestHistogram.assertNear(h.percentile(99), 990000);
+	}
+
+	// ------------------------------------------------------------------------
+	// test Metrics registry
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testDump () {
+		final Metrics metrics = new Metrics();
+		metrics.counter("b.counter").add(42);
+		metrics.timer("a.timer").record(2000000);
+		metrics.gauge("b.gauge", new Metrics.Gauge() {
+			@Override public long value() { return 7; }
+		});
+		Assert.assertEquals(metrics.dump(""), "a.timer n:1 min:1998 p50:2000 p99:2000 p999:2000 max:2000 usec\nb.counter 42\nb.gauge 7\n");
+		Assert.assertEquals(metrics.dump("b.c"), "b.counter 42\n");
+		try {
+			metrics.timer("b.counter");
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException expected) { }
+	}
+}
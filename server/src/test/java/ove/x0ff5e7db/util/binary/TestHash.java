@@ -22,7 +22,11 @@
 
 package ove.x0ff5e7db.util.binary;
 
-import java.util.logging.Level;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -32,12 +36,6 @@ import ove.x0ff5e7db.TestBase;
 @Test(groups={"server:util", "capability:id"})
 public class TestHash extends TestBase {
 
-	// ------------------------------------------------------------------------
-	// properties
-	// ------------------------------------------------------------------------
-	static final int n_bench_cnt = 10000; // TODO: spec in pom
-
-
 	// TODO: need a meaningful test for hashes that doesn't take forever
 
 	// ------------------------------------------------------------------------
@@ -50,8 +48,16 @@ public class TestHash extends TestBase {
 				testHashProvider32bit(p.provider, p.id);
 			else if(p.provider.bitsize() == 31)
 				testHashProvider31bit(p.provider, p.id);
+			else if(p.provider.bitsize() == 64)
+				testHashProvider64bit(p.provider, p.id);
 		}
 	}
+	void testHashProvider64bit (Hash provider, String provider_id) {
+		final byte[] b = new byte[4096];
+		rand.nextBytes(b);
+		final long h = provider.hash64(b);
+		Assert.assertEquals(provider.hash(b), (int) (h ^ (h >>> 32)), String.format("hash should fold hash64 : provider:%s", provider_id));
+	}
 	public void testHashProvider32bit (Hash provider, String provider_id) {
 		doTestHashProvider32bit(provider, provider_id);
 	}
@@ -65,64 +71,112 @@ public class TestHash extends TestBase {
 		final int s_buff = 4096;
 		final byte[] b = new byte[s_buff];
 		rand.nextBytes(b);
-		return provider.hash(b);
+		final int h = provider.hash(b);
+		Assert.assertEquals(provider.hash64(b), h & 0xFFFFFFFFL, String.format("hash64 should zero extend hash : provider:%s", provider_id));
+		return h;
 	}
 
-	
-	// ------------------------------------------------------------------------
-	// bench Hash.Providers
-	// ------------------------------------------------------------------------
-	
-	/* 
-	 * REVU: generalize this - extract to bench util - low priority
-	 * TODO: see above.
-	 */
-	
+	/** published reference values (seed 0) */
 	@Test()
-	public void testBenchHashProviders () {
-		for(Hash.Provider p : Hash.Provider.values()){
-			testBenchHashProvider(p.provider, p.id);
+	public void testKnownValues () throws Exception {
+		final String[] in = {"", "a", "abc", "123456789", "hello", "The quick brown fox jumps over the lazy dog"};
+		final int[] murmur3 = {0, 0x3c2569b2, 0xb3dd93fa, 0xb4fef382, 0x248bfa47, 0x2e4ff723};
+		final long[] xxh64 = {0xef46db3751d8e999L, 0xd24ec4f1a98c6e5bL, 0x44bc2cf5ad770999L};
+		for(int i=0; i<in.length; i++) {
+			final byte[] b = in[i].getBytes("US-ASCII");
+			Assert.assertEquals(Hash.Murmur3_32.hash(b), murmur3[i], in[i]);
+			if(i < xxh64.length)
+				Assert.assertEquals(Hash.XXH64.hash64(b), xxh64[i], in[i]);
 		}
-	}
-	
-	public void testBenchHashProvider (Hash provider, String provider_id) {
-		final String t_feature = "hash";
-		final int s_buff = 4096;
-		final byte[] b = new byte[s_buff];
-		
-		final long t0 = System.nanoTime();
-		for(int i=0;i<n_bench_cnt;i++) {
-			rand.nextBytes(b);
-			@SuppressWarnings("unused")
-			int h = provider.hash(b);
-		}
-		final long tn = System.nanoTime();
-		final long delta = tn - t0;
-		long rpusec = comprpcycle(n_bench_cnt, delta);
+		Assert.assertEquals(Hash.CRC32C.hash("123456789".getBytes("US-ASCII")), 0xe3069283);
+		Assert.assertEquals(Hash.WyH64.hash64(new byte[0]), 0x93228a4de0eec5a2L);
+
+		// xxHash - the 32 byte stripe loop, and stripes with 8, 4 and 1 byte tails
+		Assert.assertEquals(Hash.XXH64.hash64("Nobody inspects the spammish repetition".getBytes("US-ASCII")), 0xfbcea83c8a378bf1L);
+		Assert.assertEquals(Hash.XXH64.hash64("The quick brown fox jumps over the lazy dog".getBytes("US-ASCII")), 0x0b242d361fda71bcL);
+
+		// wyhash reference vectors - message i is hashed with seed i
+		final String[] wyin = {"", "a", "abc", "message digest", "abcdefghijklmnopqrstuvwxyz",
+				"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789",
+				"12345678901234567890123456789012345678901234567890123456789012345678901234567890"};
+		final long[] wyh64 = {0x93228a4de0eec5a2L, 0xc5bac3db178713c4L, 0xa97f2f7b1d9b3314L, 0x786d1f1df3801df4L, 
+				0xdca5a8138ad37c87L, 0xb9e734f117cfaf70L, 0x6cc5eab49a92d617L};
+		for(int i=0; i<wyin.length; i++)
+			Assert.assertEquals(Hash.WyHash.H64.hash64(wyin[i].getBytes("US-ASCII"), i), wyh64[i], wyin[i]);
 
-		logger.log(Level.INFO, "delta:%011d nsecs - iters:%09d - opt-lat:%09d nsec : %s.%s( rand( b[%d] ) )", delta, n_bench_cnt, rpusec, provider_id, t_feature, s_buff);
+		// every tail length of the word at a time loops
+		final byte[] b = new byte[100];
+		rand.nextBytes(b);
+		for(Hash.Provider p : Hash.Provider.values()) {
+			final Set<Long> seen = new HashSet<Long>();
+			for(int len=0; len<=b.length; len++)
+				seen.add(p.provider.hash64(Arrays.copyOf(b, len)));
+			Assert.assertEquals(seen.size(), b.length + 1, String.format("collision in prefixes : provider:%s", p.id));
+		}
 	}
 
+	
+	/** ranges and buffers (heap, direct, either byte order) hash as arrays */
 	@Test()
-	public void testBenchHashProvidersOnly () {
-		for(Hash.Provider p : Hash.Provider.values()){
-			testBenchHashProviderOnly(p.provider, p.id);
+	public void testHashInPlace () {
+		final byte[] b = new byte[200];
+		rand.nextBytes(b);
+		final ByteBuffer[] buffers = {
+			ByteBuffer.wrap(b),
+			ByteBuffer.allocateDirect(b.length),
+			ByteBuffer.allocateDirect(b.length).order(ByteOrder.LITTLE_ENDIAN),
+		};
+		buffers[1].put(b).clear();
+		buffers[2].put(b).clear();
+		for(Hash.Provider p : Hash.Provider.values()) {
+			for(int len=0; len<=64; len++) {
+				final int off = rand.nextInt(b.length - len + 1);
+				final byte[] copy = Arrays.copyOfRange(b, off, off + len);
+				final long h = p.provider.hash64(copy);
+				Assert.assertEquals(p.provider.hash64(b, off, len), h, p.id);
+				Assert.assertEquals(p.provider.hash(b, off, len), p.provider.hash(copy), p.id);
+				for(ByteBuffer bb : buffers) {
+					Assert.assertEquals(p.provider.hash64(bb, off, len), h, p.id);
+					Assert.assertEquals(p.provider.hash(bb, off, len), p.provider.hash(copy), p.id);
+					bb.limit(off + len).position(off);
+					Assert.assertEquals(p.provider.hash64(bb), h, p.id);
+					Assert.assertEquals(p.provider.hash(bb), p.provider.hash(copy), p.id);
+					Assert.assertEquals(bb.position(), off);
+					bb.clear();
+				}
+			}
 		}
+		try {
+			Hash.XXH64.hash64(b, b.length - 1, 2);
+			Assert.fail("expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) { }
 	}
-	public void testBenchHashProviderOnly (Hash provider, String provider_id) {
-		final String t_feature = "hash";
-		final int s_buff = 4096;
-		final byte[] b = new byte[s_buff];
+
+	/** streams of random chunks of heap and direct input digest as the whole */
+	@Test()
+	public void testStreams () {
+		final byte[] b = new byte[1024];
 		rand.nextBytes(b);
-		
-		final long t0 = System.nanoTime();
-		for(int i=0;i<n_bench_cnt;i++) {
-			provider.hash(b);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+		direct.put(b).clear();
+		for(Hash.Provider p : Hash.Provider.values()) {
+			final Hash.Stream stream = p.provider.stream();
+			for(int r=0; r<200; r++) {
+				final int len = r < 130 ? r : rand.nextInt(b.length);
+				stream.reset();
+				for(int off=0; off<len; ) {
+					final int chunk = Math.min(rand.nextInt(rand.nextBoolean() ? 8 : 100), len - off);
+					if(rand.nextBoolean())
+						stream.update(b, off, chunk);
+					else
+						stream.update(direct, off, chunk);
+					off += chunk;
+					if(rand.nextInt(8) == 0)
+						Assert.assertEquals(stream.digest64(), p.provider.hash64(b, 0, off), String.format("%s : partial digest at %d", p.id, off));
+				}
+				Assert.assertEquals(stream.digest64(), p.provider.hash64(b, 0, len), String.format("%s : len %d", p.id, len));
+				Assert.assertEquals(stream.digest(), p.provider.hash(b, 0, len), String.format("%s : len %d", p.id, len));
+			}
 		}
-		final long tn = System.nanoTime();
-		final long delta = tn - t0;
-		long rpusec = comprpcycle(n_bench_cnt, delta);
-
-		logger.log(Level.INFO, "delta:%011d nsecs - iters:%09d - opt-lat:%09d nsec : %s.%s( b[%d] )", delta, n_bench_cnt, rpusec, provider_id, t_feature, s_buff);
 	}
 }
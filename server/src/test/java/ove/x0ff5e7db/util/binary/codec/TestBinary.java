@@ -22,12 +22,20 @@
 
 package ove.x0ff5e7db.util.binary.codec;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.TestBase;
 import ove.x0ff5e7db.util.binary.Codec;
 
 /**
  * @author joubin (alphazero@sensesay.net)
  */
-public class TestBinary {
+@Test(groups={"server:util", "capability:codec"})
+public class TestBinary extends TestBase {
 	void TestAddhoc() {
 		byte[] b = new byte[12];
 		int off = 1;
@@ -35,4 +43,126 @@ public class TestBinary {
 		
 		off += Codec.Binary.BigEndian.writeLong(v, b, off);
 	}
+
+	// ------------------------------------------------------------------------
+	// test Codec.Binary.BigEndian
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testBigEndianAtOffset () {
+		final Codec.Binary codec = Codec.Binary.BigEndian;
+		final byte[] b = new byte[32];
+		for(int off=0; off<b.length - Codec.LONG_BYTES; off++){
+			final long lv = rand.nextLong();
+			final int iv = rand.nextInt();
+			final short sv = (short) rand.nextInt();
+			rand.nextBytes(b);
+			codec.writeLong(lv, b, off);
+			Assert.assertEquals(codec.readLong(b, off), lv);
+			codec.writeInt(iv, b, off);
+			Assert.assertEquals(codec.readInt(b, off), iv);
+			codec.writeShort(sv, b, off);
+			Assert.assertEquals(codec.readShort(b, off), sv);
+		}
+	}
+
+	@Test()
+	public void testBigEndianByteBuffer () {
+		final Codec.Binary codec = Codec.Binary.BigEndian;
+		final byte[] expected = new byte[Codec.LONG_BYTES];
+		final ByteBuffer[] buffers = {
+			ByteBuffer.allocate(32), 
+			ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN), 
+			ByteBuffer.allocateDirect(32), 
+			ByteBuffer.allocateDirect(32).order(ByteOrder.LITTLE_ENDIAN), 
+		};
+		for(ByteBuffer b : buffers) {
+			for(int off=0; off<b.capacity() - Codec.LONG_BYTES; off++){
+				final long lv = rand.nextLong();
+				final int iv = rand.nextInt();
+				final short sv = (short) rand.nextInt();
+				codec.writeLong(lv, b, off);
+				Assert.assertEquals(codec.readLong(b, off), lv);
+				codec.writeLong(lv, expected, 0);
+				for(int i=0; i<Codec.LONG_BYTES; i++)
+					Assert.assertEquals(b.get(off + i), expected[i], "big-endian layout");
+				codec.writeInt(iv, b, off);
+				Assert.assertEquals(codec.readInt(b, off), iv);
+				Assert.assertEquals(codec.readInt(b, off), codec.readInt(toArray(b), off));
+				codec.writeShort(sv, b, off);
+				Assert.assertEquals(codec.readShort(b, off), sv);
+				Assert.assertEquals(codec.readShort(b, off), codec.readShort(toArray(b), off));
+			}
+			Assert.assertEquals(b.position(), 0);
+		}
+	}
+	@Test()
+	public void testBulk () {
+		final Codec.Binary codec = Codec.Binary.BigEndian;
+		final int n = 512;
+		final int off = 3;
+		final long[] lv = new long[n];
+		final int[] iv = new int[n];
+		final short[] sv = new short[n];
+		for(int i=0; i<n; i++) {
+			lv[i] = rand.nextLong();
+			iv[i] = rand.nextInt();
+			sv[i] = (short) rand.nextInt();
+		}
+		final byte[] b = new byte[off + n * Codec.LONG_BYTES];
+		final ByteBuffer[] buffers = {
+			ByteBuffer.allocate(b.length), 
+			ByteBuffer.allocateDirect(b.length).order(ByteOrder.LITTLE_ENDIAN), 
+		};
+
+		codec.writeLongs(lv, 1, n - 1, b, off);
+		final long[] lr = new long[n];
+		codec.readLongs(b, off, lr, 1, n - 1);
+		for(int i=1; i<n; i++) {
+			Assert.assertEquals(lr[i], lv[i]);
+			Assert.assertEquals(codec.readLong(b, off + (i - 1) * Codec.LONG_BYTES), lv[i]);
+		}
+		for(ByteBuffer bb : buffers) {
+			codec.writeLongs(lv, 1, n - 1, bb, off);
+			Assert.assertEquals(toArray(bb), b, "same bytes as per element encoding");
+			Assert.assertEquals(bb.position(), 0);
+			final long[] blr = new long[n];
+			codec.readLongs(bb, off, blr, 1, n - 1);
+			Assert.assertEquals(blr, lr);
+		}
+
+		codec.writeInts(iv, 0, n, b, off);
+		final int[] ir = new int[n];
+		codec.readInts(b, off, ir, 0, n);
+		Assert.assertEquals(ir, iv);
+		for(ByteBuffer bb : buffers) {
+			codec.writeInts(iv, 0, n, bb, off);
+			final int[] bir = new int[n];
+			codec.readInts(bb, off, bir, 0, n);
+			Assert.assertEquals(bir, iv);
+			Assert.assertEquals(codec.readInt(bb, off + 4 * Codec.INTEGER_BYTES), iv[4]);
+		}
+
+		codec.writeShorts(sv, 0, n, b, off);
+		final short[] sr = new short[n];
+		codec.readShorts(b, off, sr, 0, n);
+		Assert.assertEquals(sr, sv);
+		for(ByteBuffer bb : buffers) {
+			codec.writeShorts(sv, 0, n, bb, off);
+			final short[] bsr = new short[n];
+			codec.readShorts(bb, off, bsr, 0, n);
+			Assert.assertEquals(bsr, sv);
+		}
+
+		try {
+			codec.writeLongs(lv, 0, n, b, off + 1);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+	}
+	private static byte[] toArray(final ByteBuffer b) {
+		final byte[] a = new byte[b.capacity()];
+		final ByteBuffer d = b.duplicate();
+		d.clear();
+		d.get(a);
+		return a;
+	}
 }
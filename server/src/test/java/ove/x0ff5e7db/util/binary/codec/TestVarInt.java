@@ -0,0 +1,175 @@
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+/*                          ~!!! Al-Aziz Al-Hakeem !!!~                        */
+/*                          ~!!!  Ahura    Mazda   !!!~                        */
+/* !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! */
+
+/*
+ *   Copyright 2012 Joubin Houshyar
+ * 
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *  
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ove.x0ff5e7db.util.binary.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import ove.x0ff5e7db.TestBase;
+import ove.x0ff5e7db.util.binary.Codec;
+
+@Test(groups={"server:util", "capability:codec"})
+public class TestVarInt extends TestBase {
+
+	/** edge values and random values of every bit length */
+	static long[] values() {
+		final long[] v = new long[8 + 2 * Long.SIZE];
+		int i = 0;
+		for(long e : new long[]{0, 1, -1, 127, 128, 16383, 16384, Long.MIN_VALUE})
+			v[i++] = e;
+		for(int bits=1; bits<=Long.SIZE; bits++) {
+			final long r = rand.nextLong() >>> (Long.SIZE - bits);
+			v[i++] = r;
+			v[i++] = -r;
+		}
+		return v;
+	}
+
+	// ------------------------------------------------------------------------
+	// test Codec.VarInt
+	// ------------------------------------------------------------------------
+	@Test()
+	public void testLongs () {
+		final byte[] b = new byte[Codec.VarInt.MAX_BYTES + 3];
+		final ByteBuffer bb = ByteBuffer.allocate(Codec.VarInt.MAX_BYTES);
+		for(long v : values()) {
+			final int n = Codec.VarInt.writeLong(v, b, 3);
+			Assert.assertEquals(n, Codec.VarInt.sizeOf(v));
+			Assert.assertEquals(Codec.VarInt.readLong(b, 3), v);
+
+			Assert.assertEquals(Codec.VarInt.writeSignedLong(v, b, 3), Codec.VarInt.sizeOf(Codec.VarInt.zigzag(v)));
+			Assert.assertEquals(Codec.VarInt.readSignedLong(b, 3), v);
+			Assert.assertEquals(Codec.VarInt.unzigzag(Codec.VarInt.zigzag(v)), v);
+
+			bb.clear();
+			Codec.VarInt.writeLong(v, bb);
+			Assert.assertEquals(bb.position(), n);
+			bb.flip();
+			Assert.assertEquals(Codec.VarInt.readLong(bb), v);
+			Assert.assertFalse(bb.hasRemaining());
+		}
+		Assert.assertEquals(Codec.VarInt.sizeOf(127), 1);
+		Assert.assertEquals(Codec.VarInt.sizeOf(128), 2);
+		Assert.assertEquals(Codec.VarInt.sizeOf(-1), Codec.VarInt.MAX_BYTES);
+		Assert.assertEquals(Codec.VarInt.sizeOf(Codec.VarInt.zigzag(-1)), 1);
+	}
+
+	@Test()
+	public void testMalformed () {
+		final byte[] b = new byte[Codec.VarInt.MAX_BYTES + 1];
+		Arrays.fill(b, (byte) 0x80);
+		try {
+			Codec.VarInt.readLong(b, 0);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+		try {
+			Codec.VarInt.readLong(b, b.length - 2);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+		try {
+			Codec.VarInt.writeLong(Long.MAX_VALUE, new byte[4], 0);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	/** asserts all decoders reject the encoding */
+	static void assertRejected(final byte[] enc) {
+		try {
+			Codec.VarInt.readLong(enc, 0);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+		try {
+			Codec.VarInt.readLong(ByteBuffer.wrap(enc));
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+		try {
+			Codec.VarInt.readDeltas(enc, 0, new long[1], 0, 1);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	@Test()
+	public void testNonCanonical () {
+		assertRejected(new byte[]{ (byte) 0x80, 0x00 });
+		assertRejected(new byte[]{ (byte) 0x81, (byte) 0x80, 0x00 });
+		// the canonical encodings are accepted
+		Assert.assertEquals(Codec.VarInt.readLong(new byte[]{ 0x00 }, 0), 0);
+		Assert.assertEquals(Codec.VarInt.readLong(new byte[]{ (byte) 0x80, 0x01 }, 0), 128);
+
+		// a non-canonical delta does not shift the deltas that follow
+		final byte[] deltas = { 0x05, (byte) 0x83, 0x00, 0x01 };
+		try {
+			Codec.VarInt.readDeltas(deltas, 0, new long[3], 0, 3);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	@Test()
+	public void testOverflow () {
+		final byte[] max = new byte[Codec.VarInt.MAX_BYTES];
+		Assert.assertEquals(Codec.VarInt.writeLong(-1L, max, 0), Codec.VarInt.MAX_BYTES);
+		Assert.assertEquals(max[Codec.VarInt.MAX_BYTES - 1], 1);
+		Assert.assertEquals(Codec.VarInt.readLong(max, 0), -1L);
+
+		// 10th byte bits beyond the 64th
+		for(int c : new int[]{ 0x02, 0x7F }) {
+			final byte[] over = max.clone();
+			over[Codec.VarInt.MAX_BYTES - 1] = (byte) c;
+			assertRejected(over);
+		}
+	}
+
+	@Test()
+	public void testDeltas () {
+		final int n = 1000;
+		final long[] v = new long[n];
+		long offset = rand.nextInt(1 << 20);
+		for(int i=0; i<n; i++) {
+			v[i] = offset;
+			offset += rand.nextInt(4096);
+		}
+		final byte[] b = new byte[n * Codec.VarInt.MAX_BYTES];
+		final int len = Codec.VarInt.writeDeltas(v, 0, n, b, 0);
+		Assert.assertTrue(len < n * 2 + Codec.VarInt.MAX_BYTES, "deltas encode compactly");
+		final long[] r = new long[n];
+		Assert.assertEquals(Codec.VarInt.readDeltas(b, 0, r, 0, n), len);
+		Assert.assertEquals(r, v);
+
+		final ByteBuffer bb = ByteBuffer.allocateDirect(len);
+		Codec.VarInt.writeDeltas(v, 0, n, bb);
+		Assert.assertFalse(bb.hasRemaining());
+		bb.flip();
+		final long[] br = new long[n];
+		Codec.VarInt.readDeltas(bb, br, 0, n);
+		Assert.assertEquals(br, v);
+
+		v[n/2] = -1;
+		try {
+			Codec.VarInt.writeDeltas(v, 0, n, b, 0);
+			Assert.fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) { }
+	}
+}